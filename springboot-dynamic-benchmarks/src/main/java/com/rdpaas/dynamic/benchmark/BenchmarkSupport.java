@@ -0,0 +1,72 @@
+package com.rdpaas.dynamic.benchmark;
+
+import com.rdpaas.dynamic.core.ModuleClassLoader;
+import org.apache.ibatis.mapping.Environment;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.apache.ibatis.session.defaults.DefaultSqlSessionFactory;
+import org.apache.ibatis.transaction.jdbc.JdbcTransactionFactory;
+import org.h2.jdbcx.JdbcDataSource;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerMapping;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * 各个基准共用的环境：生成好的扩展jar包、h2内存库上的mybatis和只带springmvc注册表的spring容器
+ * @author rongdi
+ * @date 2021-05-01
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class BenchmarkSupport {
+
+    /**
+     * 生成一个临时的扩展jar包，文件名带上类数，扩展包id也就各不相同
+     */
+    public static Path generateJar(int classes) throws IOException {
+        Path dir = Files.createTempDirectory("springboot-dynamic-bench");
+        dir.toFile().deleteOnExit();
+        Path jar = ExtensionJarGenerator.generate(dir.resolve("bench-" + classes + ".jar"), classes);
+        jar.toFile().deleteOnExit();
+        return jar;
+    }
+
+    /**
+     * 用隔离模式装载扩展jar包，同一个jar包可以反复装载
+     */
+    public static ModuleClassLoader newClassLoader(Path jar, boolean parallel) throws IOException {
+        ModuleClassLoader classLoader = new ModuleClassLoader(BenchmarkSupport.class.getClassLoader(), jar.toUri().toURL());
+        classLoader.setIsolated(true);
+        classLoader.setParallelLoad(parallel);
+        return classLoader;
+    }
+
+    public static DataSource newDataSource() throws SQLException {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:bench;DB_CLOSE_DELAY=-1");
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("create table if not exists bench(id bigint primary key, name varchar(64))");
+        }
+        return dataSource;
+    }
+
+    public static SqlSessionFactory newSqlSessionFactory(DataSource dataSource) {
+        return new DefaultSqlSessionFactory(new Configuration(new Environment("bench", new JdbcTransactionFactory(), dataSource)));
+    }
+
+    /**
+     * 只注册了springmvc注册表的spring容器，registerBeans和refreshMVC只依赖这些
+     */
+    public static AnnotationConfigApplicationContext newApplicationContext() {
+        AnnotationConfigApplicationContext applicationContext = new AnnotationConfigApplicationContext();
+        applicationContext.registerBean("requestMappingHandlerMapping", RequestMappingHandlerMapping.class);
+        applicationContext.refresh();
+        return applicationContext;
+    }
+}
@@ -0,0 +1,165 @@
+package com.rdpaas.dynamic.benchmark;
+
+import org.springframework.asm.AnnotationVisitor;
+import org.springframework.asm.ClassWriter;
+import org.springframework.asm.FieldVisitor;
+import org.springframework.asm.MethodVisitor;
+import org.springframework.asm.Opcodes;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ * 生成测试用的扩展jar包，每一组包含一个controller、一个service、一个mapper接口和对应的mapper.xml，结构和
+ * springboot-dynamic-demo-ext一样：controller注入service，service注入mapper
+ * @author rongdi
+ * @date 2021-05-01
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class ExtensionJarGenerator {
+
+    private final static String PACKAGE = "com/rdpaas/bench/gen/";
+
+    private final static String OBJECT = "java/lang/Object";
+
+    private final static String GET_DESCRIPTOR = "(Ljava/lang/Long;)Ljava/util/Map;";
+
+    /**
+     * 每组的类数
+     */
+    public final static int CLASSES_PER_GROUP = 3;
+
+    /**
+     * 生成扩展jar包
+     * @param jar 生成到哪里
+     * @param classes 大约多少个类，按每组3个类向下取整，至少一组
+     * @return jar包路径
+     */
+    public static Path generate(Path jar, int classes) throws IOException {
+        int groups = Math.max(1, classes / CLASSES_PER_GROUP);
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar))) {
+            for (int i = 0; i < groups; i++) {
+                write(out, PACKAGE + "mapper/BenchMapper" + i + ".class", mapper(i));
+                write(out, PACKAGE + "service/BenchService" + i + ".class", service(i));
+                write(out, PACKAGE + "controller/BenchController" + i + ".class", controller(i));
+                write(out, "mapper/BenchMapper" + i + ".xml", mapperXml(i));
+            }
+        }
+        return jar;
+    }
+
+    private static void write(JarOutputStream out, String name, byte[] bytes) throws IOException {
+        out.putNextEntry(new JarEntry(name));
+        out.write(bytes);
+        out.closeEntry();
+    }
+
+    private static String mapperName(int i) {
+        return PACKAGE + "mapper/BenchMapper" + i;
+    }
+
+    private static String serviceName(int i) {
+        return PACKAGE + "service/BenchService" + i;
+    }
+
+    /**
+     * @Mapper public interface BenchMapperN { Map get(Long id); }
+     */
+    private static byte[] mapper(int i) {
+        ClassWriter cw = new ClassWriter(0);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_ABSTRACT | Opcodes.ACC_INTERFACE, mapperName(i), null, OBJECT, null);
+        cw.visitAnnotation("Lorg/apache/ibatis/annotations/Mapper;", true).visitEnd();
+        cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_ABSTRACT, "get", GET_DESCRIPTOR, null, null).visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    /**
+     * @Service public class BenchServiceN { @Autowired BenchMapperN target; public Map get(Long id) { return target.get(id); } }
+     */
+    private static byte[] service(int i) {
+        return delegate(serviceName(i), mapperName(i), Opcodes.INVOKEINTERFACE, true,
+                "Lorg/springframework/stereotype/Service;", null);
+    }
+
+    /**
+     * @RestController @RequestMapping("/bench/N") public class BenchControllerN { @Autowired BenchServiceN target;
+     * @GetMapping("/get") public Map get(@RequestParam("id") Long id) { return target.get(id); } }
+     */
+    private static byte[] controller(int i) {
+        return delegate(PACKAGE + "controller/BenchController" + i, serviceName(i), Opcodes.INVOKEVIRTUAL, false,
+                "Lorg/springframework/web/bind/annotation/RestController;", "/bench/" + i);
+    }
+
+    /**
+     * 生成一个注入了target、get方法直接委托给target的bean
+     * @param path 为空表示不是controller
+     */
+    private static byte[] delegate(String name, String target, int invokeOpcode, boolean targetIsInterface,
+                                   String stereotype, String path) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null, OBJECT, null);
+        cw.visitAnnotation(stereotype, true).visitEnd();
+        if (path != null) {
+            AnnotationVisitor mapping = cw.visitAnnotation("Lorg/springframework/web/bind/annotation/RequestMapping;", true);
+            AnnotationVisitor value = mapping.visitArray("value");
+            value.visit(null, path);
+            value.visitEnd();
+            mapping.visitEnd();
+        }
+
+        FieldVisitor fv = cw.visitField(Opcodes.ACC_PRIVATE, "target", "L" + target + ";", null, null);
+        fv.visitAnnotation("Lorg/springframework/beans/factory/annotation/Autowired;", true).visitEnd();
+        fv.visitEnd();
+
+        MethodVisitor init = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        init.visitCode();
+        init.visitVarInsn(Opcodes.ALOAD, 0);
+        init.visitMethodInsn(Opcodes.INVOKESPECIAL, OBJECT, "<init>", "()V", false);
+        init.visitInsn(Opcodes.RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+
+        MethodVisitor get = cw.visitMethod(Opcodes.ACC_PUBLIC, "get", GET_DESCRIPTOR, null, null);
+        if (path != null) {
+            AnnotationVisitor getMapping = get.visitAnnotation("Lorg/springframework/web/bind/annotation/GetMapping;", true);
+            AnnotationVisitor value = getMapping.visitArray("value");
+            value.visit(null, "/get");
+            value.visitEnd();
+            getMapping.visitEnd();
+            get.visitAnnotableParameterCount(1, true);
+            get.visitParameterAnnotation(0, "Lorg/springframework/web/bind/annotation/RequestParam;", true).visit("value", "id");
+        }
+        get.visitCode();
+        get.visitVarInsn(Opcodes.ALOAD, 0);
+        get.visitFieldInsn(Opcodes.GETFIELD, name, "target", "L" + target + ";");
+        get.visitVarInsn(Opcodes.ALOAD, 1);
+        get.visitMethodInsn(invokeOpcode, target, "get", GET_DESCRIPTOR, targetIsInterface);
+        get.visitInsn(Opcodes.ARETURN);
+        get.visitMaxs(0, 0);
+        get.visitEnd();
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static byte[] mapperXml(int i) {
+        String namespace = mapperName(i).replace('/', '.');
+        return ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<!DOCTYPE mapper PUBLIC \"-//mybatis.org//DTD Mapper 3.0//EN\" \"http://mybatis.org/dtd/mybatis-3-mapper.dtd\">\n"
+                + "<mapper namespace=\"" + namespace + "\">\n"
+                + "    <resultMap id=\"benchMap\" type=\"java.util.HashMap\">\n"
+                + "        <id property=\"id\" column=\"id\"/>\n"
+                + "        <result property=\"name\" column=\"name\"/>\n"
+                + "    </resultMap>\n"
+                + "    <sql id=\"columns\">id, name</sql>\n"
+                + "    <select id=\"get\" resultMap=\"benchMap\">\n"
+                + "        select <include refid=\"columns\"/> from bench where id = #{id}\n"
+                + "    </select>\n"
+                + "</mapper>\n").getBytes(StandardCharsets.UTF_8);
+    }
+}
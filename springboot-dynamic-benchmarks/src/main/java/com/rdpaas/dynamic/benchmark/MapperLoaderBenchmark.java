@@ -0,0 +1,101 @@
+package com.rdpaas.dynamic.benchmark;
+
+import com.rdpaas.dynamic.core.MapperLoader;
+import com.rdpaas.dynamic.core.ModuleClassLoader;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.sql.DataSource;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 把扩展包的mapper.xml注册到mybatis的耗时，cold是注册到全新的Configuration，unchanged是xml没变化时的重复刷新
+ * @author rongdi
+ * @date 2021-05-01
+ * @blog https://www.cnblogs.com/rongdi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MapperLoaderBenchmark {
+
+    /**
+     * 每组一个mapper.xml，10000个类大约3333个xml
+     */
+    @Param({"10", "100", "1000", "10000"})
+    private int classes;
+
+    @Param({"false", "true"})
+    private boolean parallel;
+
+    private ModuleClassLoader classLoader;
+
+    private Map<String, byte[]> xmlBytesMap;
+
+    private DataSource dataSource;
+
+    /**
+     * 每次调用都用新的Configuration和MapperLoader
+     */
+    private SqlSessionFactory coldSqlSessionFactory;
+
+    private MapperLoader coldMapperLoader;
+
+    /**
+     * 已经注册过同样xml的Configuration和MapperLoader
+     */
+    private SqlSessionFactory warmSqlSessionFactory;
+
+    private MapperLoader warmMapperLoader;
+
+    @Setup
+    public void setup() throws Exception {
+        classLoader = BenchmarkSupport.newClassLoader(BenchmarkSupport.generateJar(classes), false);
+        classLoader.load();
+        xmlBytesMap = new HashMap<>(classLoader.getXmlBytesMap());
+        dataSource = BenchmarkSupport.newDataSource();
+        warmSqlSessionFactory = BenchmarkSupport.newSqlSessionFactory(dataSource);
+        warmMapperLoader = new MapperLoader();
+        warmMapperLoader.setParallel(parallel);
+        warmMapperLoader.refresh(warmSqlSessionFactory, xmlBytesMap, classLoader);
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() {
+        coldSqlSessionFactory = BenchmarkSupport.newSqlSessionFactory(dataSource);
+        coldMapperLoader = new MapperLoader();
+        coldMapperLoader.setParallel(parallel);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        classLoader.close();
+    }
+
+    @Benchmark
+    public Map<String, Object> refreshCold() {
+        return coldMapperLoader.refresh(coldSqlSessionFactory, xmlBytesMap, classLoader);
+    }
+
+    @Benchmark
+    public Map<String, Object> refreshUnchanged() {
+        return warmMapperLoader.refresh(warmSqlSessionFactory, xmlBytesMap, classLoader);
+    }
+}
@@ -0,0 +1,56 @@
+package com.rdpaas.dynamic.benchmark;
+
+import com.rdpaas.dynamic.core.ModuleClassLoader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 读取扩展jar包并装载全部类的耗时
+ * @author rongdi
+ * @date 2021-05-01
+ * @blog https://www.cnblogs.com/rongdi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ModuleClassLoaderBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    private int classes;
+
+    @Param({"false", "true"})
+    private boolean parallel;
+
+    private Path jar;
+
+    @Setup
+    public void setup() throws Exception {
+        jar = BenchmarkSupport.generateJar(classes);
+    }
+
+    @Benchmark
+    public Map<String, Class> load() throws Exception {
+        ModuleClassLoader classLoader = BenchmarkSupport.newClassLoader(jar, parallel);
+        try {
+            return classLoader.load();
+        } finally {
+            classLoader.close();
+        }
+    }
+}
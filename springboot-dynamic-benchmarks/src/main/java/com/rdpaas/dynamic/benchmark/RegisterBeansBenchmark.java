@@ -0,0 +1,89 @@
+package com.rdpaas.dynamic.benchmark;
+
+import com.rdpaas.dynamic.core.MapperLoader;
+import com.rdpaas.dynamic.core.Module;
+import com.rdpaas.dynamic.core.ModuleApplication;
+import com.rdpaas.dynamic.core.ModuleClassLoader;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 把扩展包的bean注册到spring并创建出来的耗时，refreshMvc=true时包括注册springmvc接口，两者相减就是refreshMVC的耗时
+ * @author rongdi
+ * @date 2021-05-01
+ * @blog https://www.cnblogs.com/rongdi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RegisterBeansBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    private int classes;
+
+    @Param({"false", "true"})
+    private boolean refreshMvc;
+
+    private AnnotationConfigApplicationContext applicationContext;
+
+    private ModuleClassLoader classLoader;
+
+    private ModuleApplication moduleApplication;
+
+    private Module module;
+
+    private Map<String, Class> classMap;
+
+    private Map<String, Object> extObjMap;
+
+    @Setup
+    public void setup() throws Exception {
+        Path jar = BenchmarkSupport.generateJar(classes);
+        applicationContext = BenchmarkSupport.newApplicationContext();
+        classLoader = BenchmarkSupport.newClassLoader(jar, false);
+        classMap = classLoader.load();
+        SqlSessionFactory sqlSessionFactory = BenchmarkSupport.newSqlSessionFactory(BenchmarkSupport.newDataSource());
+        extObjMap = new MapperLoader().refresh(sqlSessionFactory, classLoader.getXmlBytesMap(), classLoader);
+
+        moduleApplication = new ModuleApplication(1);
+        moduleApplication.setIsolated(true);
+        /**
+         * 同一个Module反复注册，每次都会先注销上一次注册的bean和接口，和刷新扩展包时一样
+         */
+        module = new Module("bench-" + classes, 1, jar.toUri().toURL());
+        module.setClassLoader(classLoader);
+        module.setClassMap(classMap);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        moduleApplication.destroy();
+        applicationContext.close();
+        classLoader.close();
+    }
+
+    @Benchmark
+    public Module registerBeans() throws Exception {
+        moduleApplication.registerBeans(module, applicationContext, classMap, extObjMap, refreshMvc);
+        return module;
+    }
+}
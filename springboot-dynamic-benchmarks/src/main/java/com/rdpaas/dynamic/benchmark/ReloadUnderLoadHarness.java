@@ -0,0 +1,277 @@
+package com.rdpaas.dynamic.benchmark;
+
+import com.rdpaas.dynamic.core.ModuleApplication;
+import com.rdpaas.dynamic.core.ModuleMetrics;
+import com.rdpaas.dynamic.core.ModuleRegistry;
+import com.rdpass.dynamic.demo.RunApplication;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 在h2上启动示例项目，用几个线程持续请求宿主接口和扩展包接口，同时反复刷新扩展包，统计刷新期间和平时请求的
+ * p50/p99/max延迟、错误数以及每次刷新的耗时，改动ModuleApplication刷新流程以后用它验收：刷新期间不能有错误请求，
+ * 延迟也不能明显变差。有错误请求或者刷新失败时退出码为1。不看延迟的简化版是springboot-dynamic-core里的ReloadUnderLoadTest，
+ * 每次构建都会跑
+ *
+ * 运行：mvn -Pbenchmarks package以后在项目根目录执行
+ * java -cp springboot-dynamic-benchmarks/target/benchmarks.jar com.rdpaas.dynamic.benchmark.ReloadUnderLoadHarness，
+ * jdk9以上还要加--add-opens java.base/java.lang=ALL-UNNAMED --add-opens java.base/java.util=ALL-UNNAMED，
+ * 可以用-Dharness.threads、-Dharness.reloads、-Dharness.interval、-Dharness.warmup、-Dharness.jar调整压测参数，
+ * 命令行的--key=value会传给示例项目，比如--dynamic.load.isolated=true --dynamic.reload.blue-green=true
+ * @author rongdi
+ * @date 2021-05-01
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class ReloadUnderLoadHarness {
+
+    private final static String DEFAULT_JAR = "springboot-dynamic-demo-ext/target/springboot-dynamic-demo-ext-1.0.0-BASE-SNAPSHOT.jar";
+
+    /**
+     * 延迟直方图的有效位数
+     */
+    private final static int SIGNIFICANT_DIGITS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int threads = Integer.getInteger("harness.threads", 4);
+        int reloads = Integer.getInteger("harness.reloads", 20);
+        long interval = Long.getLong("harness.interval", 500);
+        long warmup = Long.getLong("harness.warmup", 3000);
+        Path jar = Paths.get(System.getProperty("harness.jar", DEFAULT_JAR)).toAbsolutePath();
+        if (!Files.isRegularFile(jar)) {
+            throw new IllegalArgumentException("extension jar '" + jar + "' not found, build it first or set -Dharness.jar");
+        }
+        URL url = jar.toUri().toURL();
+        String moduleId = ModuleRegistry.resolveModuleId(url);
+
+        ConfigurableApplicationContext applicationContext = SpringApplication.run(RunApplication.class, applicationArgs(url, args));
+        int exitCode;
+        try {
+            int port = ((WebServerApplicationContext) applicationContext).getWebServer().getPort();
+            ModuleApplication moduleApplication = applicationContext.getBean(ModuleApplication.class);
+            SqlSessionFactory sqlSessionFactory = applicationContext.getBean(SqlSessionFactory.class);
+            List<Endpoint> endpoints = Arrays.asList(
+                new Endpoint("host", new URL("http://127.0.0.1:" + port + "/user/get?id=1")),
+                new Endpoint("module", new URL("http://127.0.0.1:" + port + "/user1/get?id=1")));
+
+            List<Thread> workers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                Thread worker = new Thread(() -> drive(endpoints), "harness-load-" + i);
+                worker.setDaemon(true);
+                worker.start();
+                workers.add(worker);
+            }
+
+            Thread.sleep(warmup);
+            endpoints.forEach(Endpoint::resetWarmup);
+            System.out.printf("load: %d threads, %d reloads every %d ms, module '%s'%n", threads, reloads, interval, moduleId);
+            System.out.printf("%-6s %10s %10s %-8s %8s %10s %10s %8s%n",
+                "reload", "tookMs", "pauseMs", "endpoint", "count", "p99Ms", "maxMs", "errors");
+
+            Histogram reloadCosts = new Histogram(SIGNIFICANT_DIGITS);
+            int reloadFailures = 0;
+            for (int i = 1; i <= reloads; i++) {
+                Thread.sleep(interval);
+                endpoints.forEach(Endpoint::endSteady);
+                long start = System.nanoTime();
+                try {
+                    moduleApplication.reloadJars(Collections.singletonList(url), applicationContext, sqlSessionFactory);
+                } catch (Exception e) {
+                    reloadFailures++;
+                    System.out.printf("reload %d failed: %s%n", i, e);
+                }
+                long took = System.nanoTime() - start;
+                reloadCosts.recordValue(TimeUnit.NANOSECONDS.toMicros(took));
+                double pause = lastMillis(moduleApplication.getMetrics(), moduleId, ModuleMetrics.MVC_REFRESH);
+                for (Endpoint endpoint : endpoints) {
+                    Window window = endpoint.endReload();
+                    System.out.printf("%-6d %10.2f %10.2f %-8s %8d %10.2f %10.2f %8d%n", i, millis(TimeUnit.NANOSECONDS.toMicros(took)),
+                        pause, endpoint.name, window.histogram.getTotalCount(), millis(window.histogram.getValueAtPercentile(99)),
+                        millis(window.histogram.getMaxValue()), window.errors);
+                }
+            }
+
+            workers.forEach(Thread::interrupt);
+            for (Thread worker : workers) {
+                worker.join(TimeUnit.SECONDS.toMillis(10));
+            }
+
+            System.out.println();
+            System.out.printf("%-8s %-7s %8s %10s %10s %10s %8s%n", "endpoint", "phase", "count", "p50Ms", "p99Ms", "maxMs", "errors");
+            long errors = 0;
+            for (Endpoint endpoint : endpoints) {
+                printSummary(endpoint.name, "steady", endpoint.steady, endpoint.steadyErrors);
+                printSummary(endpoint.name, "reload", endpoint.reload, endpoint.reloadErrors);
+                errors += endpoint.steadyErrors + endpoint.reloadErrors;
+            }
+            System.out.printf("reloads: %d, failed: %d, p50 %.2f ms, max %.2f ms%n", reloads, reloadFailures,
+                millis(reloadCosts.getValueAtPercentile(50)), millis(reloadCosts.getMaxValue()));
+            System.out.println("phases: " + moduleApplication.getMetrics().snapshot().get(moduleId));
+            exitCode = errors > 0 || reloadFailures > 0 ? 1 : 0;
+        } finally {
+            applicationContext.close();
+        }
+        System.exit(exitCode);
+    }
+
+    /**
+     * 示例项目的默认参数：随机端口、h2内存库、只加载要刷新的扩展包，命令行传入的同名参数覆盖默认值
+     */
+    private static String[] applicationArgs(URL url, String[] args) {
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("server.port", "0");
+        properties.put("spring.datasource.url", "jdbc:h2:mem:harness;DB_CLOSE_DELAY=-1");
+        properties.put("spring.datasource.driver-class-name", "org.h2.Driver");
+        properties.put("spring.datasource.username", "sa");
+        properties.put("spring.datasource.schema", "classpath:reload-harness.sql");
+        properties.put("spring.datasource.initialization-mode", "always");
+        properties.put("dynamic.jar", url.toString());
+        properties.put("logging.level.com.rdpaas.dynamic", "warn");
+        List<String> others = new ArrayList<>();
+        for (String arg : args) {
+            int index = arg.indexOf('=');
+            if (arg.startsWith("--") && index > 2) {
+                properties.put(arg.substring(2, index), arg.substring(index + 1));
+            } else {
+                others.add(arg);
+            }
+        }
+        properties.forEach((key, value) -> others.add("--" + key + "=" + value));
+        return others.toArray(new String[0]);
+    }
+
+    /**
+     * 压测线程轮流请求每个接口，直到被中断
+     */
+    private static void drive(List<Endpoint> endpoints) {
+        while (!Thread.currentThread().isInterrupted()) {
+            for (Endpoint endpoint : endpoints) {
+                endpoint.call();
+            }
+        }
+    }
+
+    private static void printSummary(String name, String phase, Histogram histogram, long errors) {
+        System.out.printf("%-8s %-7s %8d %10.2f %10.2f %10.2f %8d%n", name, phase, histogram.getTotalCount(),
+            millis(histogram.getValueAtPercentile(50)), millis(histogram.getValueAtPercentile(99)),
+            millis(histogram.getMaxValue()), errors);
+    }
+
+    /**
+     * 从刷新统计里取某个阶段最近一次的耗时，蓝绿刷新时mvc.refresh就是切换接口时持有写锁的时间
+     */
+    private static double lastMillis(ModuleMetrics metrics, String moduleId, String phase) {
+        Map<String, Object> module = (Map<String, Object>) metrics.snapshot().get(moduleId);
+        Map<String, Object> timers = module == null ? null : (Map<String, Object>) module.get("timers");
+        Map<String, Object> timer = timers == null ? null : (Map<String, Object>) timers.get(phase);
+        return timer == null ? 0 : (Double) timer.get("lastMs");
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+
+    /**
+     * 一个被压测的接口，Recorder按区间取出延迟，刷新之间的区间算平时，刷新期间的区间单独统计
+     */
+    private static class Endpoint {
+
+        private final String name;
+
+        private final URL url;
+
+        private final Recorder recorder = new Recorder(SIGNIFICANT_DIGITS);
+
+        private final AtomicLong errors = new AtomicLong();
+
+        private final Histogram steady = new Histogram(SIGNIFICANT_DIGITS);
+
+        private final Histogram reload = new Histogram(SIGNIFICANT_DIGITS);
+
+        private long steadyErrors;
+
+        private long reloadErrors;
+
+        Endpoint(String name, URL url) {
+            this.name = name;
+            this.url = url;
+        }
+
+        void call() {
+            long start = System.nanoTime();
+            try {
+                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                connection.setConnectTimeout(1000);
+                connection.setReadTimeout(10000);
+                int status = connection.getResponseCode();
+                InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+                if (in != null) {
+                    try (InputStream body = in) {
+                        byte[] buffer = new byte[1024];
+                        while (body.read(buffer) >= 0) {
+                            // 读完响应才能复用连接
+                        }
+                    }
+                }
+                if (status != HttpURLConnection.HTTP_OK) {
+                    errors.incrementAndGet();
+                    return;
+                }
+                recorder.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            } catch (IOException e) {
+                errors.incrementAndGet();
+            }
+        }
+
+        /**
+         * 丢掉预热期间的数据
+         */
+        void resetWarmup() {
+            recorder.getIntervalHistogram();
+            errors.set(0);
+        }
+
+        void endSteady() {
+            steady.add(recorder.getIntervalHistogram());
+            steadyErrors += errors.getAndSet(0);
+        }
+
+        Window endReload() {
+            Window window = new Window(recorder.getIntervalHistogram(), errors.getAndSet(0));
+            reload.add(window.histogram);
+            reloadErrors += window.errors;
+            return window;
+        }
+    }
+
+    private static class Window {
+
+        private final Histogram histogram;
+
+        private final long errors;
+
+        Window(Histogram histogram, long errors) {
+            this.histogram = histogram;
+            this.errors = errors;
+        }
+    }
+}
@@ -0,0 +1,2 @@
+create table if not exists tab_user(id bigint primary key, name varchar(64));
+merge into tab_user key(id) values(1, 'rongdi');
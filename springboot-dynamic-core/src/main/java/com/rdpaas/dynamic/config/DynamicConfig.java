@@ -1,21 +1,39 @@
 package com.rdpaas.dynamic.config;
 
 import com.rdpaas.dynamic.core.ModuleApplication;
+import com.rdpaas.dynamic.core.ModuleClassBytes;
+import com.rdpaas.dynamic.core.ModuleEndpoint;
+import com.rdpaas.dynamic.core.ModuleInFlightInterceptor;
+import com.rdpaas.dynamic.core.ModuleMeterBinder;
+import com.rdpaas.dynamic.core.ModuleReadinessFilter;
+import com.rdpaas.dynamic.core.ModuleSource;
+import com.rdpaas.dynamic.core.ModuleWatcher;
+import com.rdpaas.dynamic.utils.Accessors;
 import org.apache.ibatis.session.SqlSessionFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
 import org.springframework.context.ApplicationListener;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+import org.springframework.util.StringUtils;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * 一切配置的入口
@@ -31,14 +49,213 @@ public class DynamicConfig implements ApplicationContextAware {
     @Autowired
     private SqlSessionFactory sqlSessionFactory;
 
+    /**
+     * 自定义的扩展包来源
+     */
+    @Autowired(required = false)
+    private List<ModuleSource> moduleSources;
+
     private ApplicationContext applicationContext;
 
+    /**
+     * 扩展包的地址，多个扩展包用英文逗号隔开
+     */
     @Value("${dynamic.jar:/}")
     private String dynamicJar;
 
+    /**
+     * 并行加载扩展包的线程数，默认取cpu核数
+     */
+    @Value("${dynamic.load.threads:0}")
+    private int loadThreads;
+
+    /**
+     * 是否并行读取扩展jar包里的class和mapper xml
+     */
+    @Value("${dynamic.load.parallel:false}")
+    private boolean parallelLoad;
+
+    /**
+     * 是否懒加载扩展包里的类，只提前装载spring bean和mapper接口
+     */
+    @Value("${dynamic.load.lazy:false}")
+    private boolean lazyLoad;
+
+    /**
+     * 是否在容器初始化的同时后台预加载扩展包，容器启动后再注册
+     */
+    @Value("${dynamic.load.background:false}")
+    private boolean backgroundLoad;
+
+    /**
+     * 是否按内容摘要做差量刷新
+     */
+    @Value("${dynamic.reload.incremental:false}")
+    private boolean incremental;
+
+    /**
+     * 是否用独立的类加载器装载扩展包，开启后扩展包可以卸载，旧版本的类能被回收
+     */
+    @Value("${dynamic.load.isolated:false}")
+    private boolean isolated;
+
+    /**
+     * 类定义完以后字节码的保留策略，keep、compress或者off-heap
+     */
+    @Value("${dynamic.load.class-bytes:keep}")
+    private String classBytesRetention;
+
+    /**
+     * 是否只为扩展包的controller注册springmvc接口，关闭则退回到重新扫描整个容器的方式
+     */
+    @Value("${dynamic.mvc.targeted:true}")
+    private boolean targetedMvc;
+
+    /**
+     * 是否在后台线程重新生成扩展包的swagger文档
+     */
+    @Value("${dynamic.swagger.async:false}")
+    private boolean swaggerAsync;
+
+    /**
+     * 是否并行解析扩展包里的mapper.xml
+     */
+    @Value("${dynamic.mapper.parallel:false}")
+    private boolean mapperParallel;
+
+    /**
+     * 是否蓝绿刷新扩展包，新版本全部准备好以后再一次性切换，需要同时开启dynamic.load.isolated
+     */
+    @Value("${dynamic.reload.blue-green:false}")
+    private boolean blueGreen;
+
+    /**
+     * 释放旧版本前最多等多久让它处理完手上的请求，单位毫秒
+     */
+    @Value("${dynamic.reload.drain-timeout:30000}")
+    private long drainTimeout;
+
+    /**
+     * jar包最后一次写事件之后要安静多久才检查，单位毫秒
+     */
+    @Value("${dynamic.watch.debounce:200}")
+    private long watchDebounce;
+
+    /**
+     * 没有打包索引的扩展包运行时生成的索引缓存到哪个目录，配置成空不缓存
+     */
+    @Value("${dynamic.index.cache-dir:${java.io.tmpdir}/springboot-dynamic/index}")
+    private String indexCacheDir;
+
+    /**
+     * http地址的扩展包下载到哪个目录，按内容摘要存放，配置成空不支持http地址
+     */
+    @Value("${dynamic.source.cache-dir:${java.io.tmpdir}/springboot-dynamic/jars}")
+    private String jarCacheDir;
+
+    /**
+     * 下载扩展包的连接超时，单位毫秒
+     */
+    @Value("${dynamic.source.connect-timeout:5000}")
+    private int sourceConnectTimeout;
+
+    /**
+     * 下载扩展包的读取超时，单位毫秒
+     */
+    @Value("${dynamic.source.read-timeout:60000}")
+    private int sourceReadTimeout;
+
+    /**
+     * 扩展包地址对应的jar包内容没变时是否跳过刷新
+     */
+    @Value("${dynamic.reload.skip-unchanged:false}")
+    private boolean skipUnchanged;
+
+    /**
+     * 扩展包生效前返回503、生效后返回200的探针地址
+     */
+    @Value("${dynamic.probe.path:/dynamic/health}")
+    private String probePath;
+
+    /**
+     * 扩展包生效前直接返回503的地址，多个用英文逗号隔开
+     */
+    @Value("${dynamic.probe.gated-paths:/actuator/health/**}")
+    private String probeGatedPaths;
+
+    /**
+     * 扩展包swagger接口扫描包，配置了才刷新swagger文档
+     */
+    @Value("${dynamic.swagger.doc.package:}")
+    private String swaggerDocPackage;
+
     @Bean
     public ModuleApplication moduleApplication() throws Exception {
-        return new ModuleApplication();
+        /**
+         * 启动时就把要用到的spring、mybatis、springfox内部属性和方法全部解析一遍，版本不兼容直接启动失败
+         */
+        Accessors.verify(!isolated, StringUtils.hasText(swaggerDocPackage));
+        /**
+         * 非隔离模式下新旧版本共用宿主的类加载器，没法同时存在，开了蓝绿刷新也做不到，配错了直接启动失败
+         */
+        if (blueGreen && !isolated) {
+            throw new IllegalStateException("dynamic.reload.blue-green=true requires dynamic.load.isolated=true");
+        }
+        ModuleApplication moduleApplication = loadThreads > 0 ? new ModuleApplication(loadThreads) : new ModuleApplication();
+        moduleApplication.setParallelLoad(parallelLoad);
+        moduleApplication.setLazyLoad(lazyLoad);
+        moduleApplication.setIncremental(incremental);
+        moduleApplication.setIsolated(isolated);
+        moduleApplication.setClassBytesRetention(ModuleClassBytes.Retention.of(classBytesRetention));
+        moduleApplication.setTargetedMvc(targetedMvc);
+        moduleApplication.setSwaggerAsync(swaggerAsync);
+        moduleApplication.setMapperParallel(mapperParallel);
+        moduleApplication.setBlueGreen(blueGreen);
+        moduleApplication.setDrainTimeout(drainTimeout);
+        moduleApplication.setIndexCacheDir(indexCacheDir);
+        moduleApplication.setJarCacheDir(jarCacheDir, sourceConnectTimeout, sourceReadTimeout);
+        moduleApplication.setSkipUnchanged(skipUnchanged);
+        if (moduleSources != null) {
+            moduleSources.forEach(moduleApplication::addModuleSource);
+        }
+        if (applicationContext.getEnvironment().containsProperty("dynamic.jar")) {
+            if (backgroundLoad) {
+                /**
+                 * 读取jar包、装载类、解析mapper.xml都不依赖容器里的其它bean，趁容器还在初始化先在后台做
+                 */
+                moduleApplication.preloadJars(getDynamicJarUrls(dynamicJar), applicationContext.getClassLoader(), sqlSessionFactory);
+            } else {
+                moduleApplication.markStarting();
+            }
+        }
+        return moduleApplication;
+    }
+
+    /**
+     * 后台加载启动时的扩展包时，扩展包加载完之前让探针拿到503，不在后台加载时服务启动完扩展包就已经加载完了，用不着
+     */
+    @Bean
+    @ConditionalOnProperty(prefix = "dynamic.load", name = "background", havingValue = "true")
+    public FilterRegistrationBean<ModuleReadinessFilter> moduleReadinessFilter() throws Exception {
+        ModuleReadinessFilter filter = new ModuleReadinessFilter(moduleApplication(), probePath,
+                Arrays.asList(StringUtils.tokenizeToStringArray(probeGatedPaths, ",")));
+        FilterRegistrationBean<ModuleReadinessFilter> registration = new FilterRegistrationBean<>(filter);
+        registration.setOrder(Ordered.HIGHEST_PRECEDENCE);
+        return registration;
+    }
+
+    /**
+     * 统计每个扩展包版本正在处理的请求数
+     */
+    @Bean
+    public WebMvcConfigurer moduleInFlightConfigurer() throws Exception {
+        ModuleInFlightInterceptor interceptor = new ModuleInFlightInterceptor(moduleApplication().getModuleRegistry());
+        return new WebMvcConfigurer() {
+            @Override
+            public void addInterceptors(InterceptorRegistry registry) {
+                registry.addInterceptor(interceptor);
+            }
+        };
     }
 
     @Override
@@ -55,17 +272,75 @@ public class DynamicConfig implements ApplicationContextAware {
     @ConditionalOnProperty(prefix = "dynamic",name = "jar")
     public ApplicationListener applicationListener1() {
         return (ApplicationListener<ApplicationStartedEvent>) event -> {
-            try {
-                /**
-                 * 加载外部扩展jar
-                 */
-                moduleApplication().reloadJar(new URL(dynamicJar),applicationContext,sqlSessionFactory);
-            } catch (Exception e) {
-                logger.error("",e);
+            /**
+             * 加载外部扩展jar，多个扩展包并行加载。后台加载时注册也放到后台，不拖慢启动，生效前探针返回503
+             */
+            Runnable start = () -> {
+                try {
+                    moduleApplication().startJars(getDynamicJarUrls(dynamicJar), applicationContext, sqlSessionFactory);
+                } catch (Exception e) {
+                    logger.error("",e);
+                }
+            };
+            if (backgroundLoad) {
+                Thread thread = new Thread(start, "dynamic-start");
+                thread.setDaemon(true);
+                thread.start();
+            } else {
+                start.run();
             }
 
         };
     }
 
+    /**
+     * 监听扩展jar包，被覆盖后自动刷新
+     */
+    @Bean
+    @ConditionalOnProperty(prefix = "dynamic.watch", name = "enabled", havingValue = "true")
+    public ModuleWatcher moduleWatcher() throws Exception {
+        return new ModuleWatcher(moduleApplication(), applicationContext, sqlSessionFactory, getDynamicJarUrls(dynamicJar), watchDebounce);
+    }
+
+    /**
+     * 引入了micrometer时把刷新耗时和数量注册成指标
+     */
+    @Configuration
+    @ConditionalOnClass(name = "io.micrometer.core.instrument.binder.MeterBinder")
+    static class ModuleMetricsConfig {
+
+        @Bean
+        public ModuleMeterBinder moduleMeterBinder(ModuleApplication moduleApplication) {
+            return new ModuleMeterBinder(moduleApplication.getMetrics());
+        }
+    }
+
+    /**
+     * 引入了actuator时提供modules端点
+     */
+    @Configuration
+    @ConditionalOnClass(name = "org.springframework.boot.actuate.endpoint.annotation.Endpoint")
+    static class ModuleEndpointConfig {
+
+        @Bean
+        public ModuleEndpoint moduleEndpoint(ModuleApplication moduleApplication) {
+            return new ModuleEndpoint(moduleApplication);
+        }
+    }
+
+    /**
+     * 把逗号隔开的扩展包地址转换成URL
+     * @param dynamicJar
+     * @return
+     */
+    public static List<URL> getDynamicJarUrls(String dynamicJar) throws MalformedURLException {
+        List<URL> urls = new ArrayList<>();
+        for (String jar : StringUtils.commaDelimitedListToStringArray(dynamicJar)) {
+            if (StringUtils.hasText(jar)) {
+                urls.add(new URL(jar.trim()));
+            }
+        }
+        return urls;
+    }
 
 }
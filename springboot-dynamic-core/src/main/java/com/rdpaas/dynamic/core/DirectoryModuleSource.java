@@ -0,0 +1,105 @@
+package com.rdpaas.dynamic.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Comparator;
+import java.util.regex.Matcher;
+
+/**
+ * file:开头的目录，目录里放着同一个扩展包的多个版本，如ext-1.0.0.jar、ext-1.0.1.jar，每次取版本号最大的那个，
+ * 版本号一样时取最后修改的。发布新版本只要把jar包拷进目录再刷新，回滚删掉新版本再刷新即可，扩展包id取目录名
+ * @author rongdi
+ * @date 2021-05-08
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class DirectoryModuleSource implements ModuleSource {
+
+    private final static Logger logger = LoggerFactory.getLogger(DirectoryModuleSource.class);
+
+    /**
+     * 先比版本号再比最后修改时间
+     */
+    private final static Comparator<File> NEWEST = Comparator.<File, String>comparing(DirectoryModuleSource::getVersion,
+            DirectoryModuleSource::compareVersion).thenComparingLong(File::lastModified);
+
+    @Override
+    public boolean supports(URL url) {
+        return "file".equals(url.getProtocol()) && FileModuleSource.toFile(url).isDirectory();
+    }
+
+    @Override
+    public ModuleJar resolve(URL url) throws IOException {
+        File dir = FileModuleSource.toFile(url);
+        File[] jars = dir.listFiles(file -> file.isFile() && file.getName().endsWith(".jar"));
+        if (jars == null || jars.length == 0) {
+            throw new FileNotFoundException("no module jar in '" + url + "'");
+        }
+        File newest = jars[0];
+        for (File jar : jars) {
+            if (NEWEST.compare(jar, newest) > 0) {
+                newest = jar;
+            }
+        }
+        logger.debug("resolve '{}' to '{}' from {} jars", url, newest.getName(), jars.length);
+        return ModuleJar.of(url, newest);
+    }
+
+    /**
+     * 文件名里的版本号，如ext-1.0.0-SNAPSHOT.jar得到1.0.0-SNAPSHOT，没有版本号时为空字符串
+     */
+    static String getVersion(File jar) {
+        Matcher matcher = ModuleRegistry.JAR_NAME.matcher(jar.getName());
+        if (!matcher.matches() || matcher.group(2) == null) {
+            return "";
+        }
+        return matcher.group(2).substring(1);
+    }
+
+    /**
+     * 按.和-分段比较，两边都是数字时按数字比，数字比文字新；一边多出来的部分是数字时多的新，是SNAPSHOT这种后缀时多的旧
+     */
+    static int compareVersion(String left, String right) {
+        String[] lefts = left.isEmpty() ? new String[0] : left.split("[.-]");
+        String[] rights = right.isEmpty() ? new String[0] : right.split("[.-]");
+        int length = Math.min(lefts.length, rights.length);
+        for (int i = 0; i < length; i++) {
+            boolean leftNumber = isNumber(lefts[i]);
+            boolean rightNumber = isNumber(rights[i]);
+            int result;
+            if (leftNumber && rightNumber) {
+                result = Long.compare(Long.parseLong(lefts[i]), Long.parseLong(rights[i]));
+            } else if (leftNumber != rightNumber) {
+                result = leftNumber ? 1 : -1;
+            } else {
+                result = lefts[i].compareToIgnoreCase(rights[i]);
+            }
+            if (result != 0) {
+                return result;
+            }
+        }
+        if (lefts.length == rights.length) {
+            return 0;
+        }
+        if (lefts.length > rights.length) {
+            return isNumber(lefts[length]) ? 1 : -1;
+        }
+        return isNumber(rights[length]) ? -1 : 1;
+    }
+
+    private static boolean isNumber(String part) {
+        if (part.isEmpty() || part.length() > 18) {
+            return false;
+        }
+        for (int i = 0; i < part.length(); i++) {
+            if (!Character.isDigit(part.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
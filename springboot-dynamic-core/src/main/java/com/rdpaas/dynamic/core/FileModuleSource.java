@@ -0,0 +1,36 @@
+package com.rdpaas.dynamic.core;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * file:开头的本地jar包，直接使用原文件
+ * @author rongdi
+ * @date 2021-05-08
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class FileModuleSource implements ModuleSource {
+
+    @Override
+    public boolean supports(URL url) {
+        return "file".equals(url.getProtocol()) && !toFile(url).isDirectory();
+    }
+
+    @Override
+    public ModuleJar resolve(URL url) throws IOException {
+        File file = toFile(url);
+        if (!file.isFile()) {
+            throw new FileNotFoundException("module jar '" + url + "' not found");
+        }
+        return ModuleJar.of(url, file);
+    }
+
+    /**
+     * 和以前直接new JarFile(url.getPath())保持一致，windows下file:D:\\xxx.jar这种写法也能用
+     */
+    static File toFile(URL url) {
+        return new File(url.getPath());
+    }
+}
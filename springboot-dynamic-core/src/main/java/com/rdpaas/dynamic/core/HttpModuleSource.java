@@ -0,0 +1,193 @@
+package com.rdpaas.dynamic.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * http和https上的扩展包，下载到ModuleJarCache里。刷新时带着上次的ETag和Last-Modified条件下载，服务端返回304就直接用缓存；
+ * 服务端在X-Checksum-Md5、Content-MD5或者ETag里给出了内容的md5，而缓存里已经有这个内容时也不下载。这样同一个版本在一台机器上
+ * 最多下载一次，多台机器共用缓存目录时一般一次都不用下载。下载失败时有缓存就先用缓存
+ * @author rongdi
+ * @date 2021-05-08
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class HttpModuleSource implements ModuleSource {
+
+    private final static Logger logger = LoggerFactory.getLogger(HttpModuleSource.class);
+
+    /**
+     * 内容md5形式的ETag，像nginx那种长度加修改时间的ETag只能用来做条件下载
+     */
+    private final static Pattern MD5_ETAG = Pattern.compile("^\"?([0-9a-fA-F]{32})\"?$");
+
+    private final ModuleJarCache cache;
+
+    private int connectTimeout = 5000;
+
+    private int readTimeout = 60000;
+
+    public HttpModuleSource(ModuleJarCache cache) {
+        this.cache = cache;
+    }
+
+    @Override
+    public boolean supports(URL url) {
+        return "http".equals(url.getProtocol()) || "https".equals(url.getProtocol());
+    }
+
+    @Override
+    public ModuleJar resolve(URL url) throws IOException {
+        ModuleJarCache.Entry entry = cache.getEntry(url);
+        File cached = entry == null ? null : cache.get(entry.getHash());
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setConnectTimeout(connectTimeout);
+            connection.setReadTimeout(readTimeout);
+            connection.setUseCaches(false);
+            if (cached != null) {
+                if (entry.getEtag() != null) {
+                    connection.setRequestProperty("If-None-Match", entry.getEtag());
+                }
+                if (entry.getLastModified() != null) {
+                    connection.setRequestProperty("If-Modified-Since", entry.getLastModified());
+                }
+            }
+            int status;
+            try {
+                status = connection.getResponseCode();
+            } catch (IOException e) {
+                if (cached == null) {
+                    throw e;
+                }
+                logger.warn("fetch module jar '{}' failed, use cached {}: {}", url, entry.getHash(), e.toString());
+                return new ModuleJar(url, cached, entry.getHash());
+            }
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                logger.info("module jar '{}' not modified, use cached {}", url, entry.getHash());
+                return new ModuleJar(url, cached, entry.getHash());
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                if (cached == null) {
+                    throw new IOException("fetch module jar '" + url + "' failed: HTTP " + status);
+                }
+                logger.warn("fetch module jar '{}' failed: HTTP {}, use cached {}", url, status, entry.getHash());
+                return new ModuleJar(url, cached, entry.getHash());
+            }
+
+            String checksum = getChecksum(connection);
+            String hash = checksum != null ? checksum : getEtagHash(connection);
+            File file = cache.get(hash);
+            if (file != null) {
+                logger.info("module jar '{}' already cached as {}, skip download", url, hash);
+            } else {
+                long start = System.currentTimeMillis();
+                hash = download(url, connection, checksum);
+                file = cache.get(hash);
+                logger.info("download module jar '{}' as {}, {} bytes cost {} ms", url, hash, file.length(),
+                        System.currentTimeMillis() - start);
+            }
+            ModuleJarCache.Entry fetched = new ModuleJarCache.Entry();
+            fetched.setUrl(url.toString());
+            fetched.setEtag(connection.getHeaderField("ETag"));
+            fetched.setLastModified(connection.getHeaderField("Last-Modified"));
+            fetched.setHash(hash);
+            cache.putEntry(fetched);
+            return new ModuleJar(url, file, hash);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * 边下载边算md5，下载完按md5放进缓存，服务端给了md5的要核对
+     * @return 下载内容的md5
+     */
+    private String download(URL url, HttpURLConnection connection, String expectedHash) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        Path tmp = cache.newTempFile();
+        try {
+            try (InputStream input = new DigestInputStream(connection.getInputStream(), digest)) {
+                Files.copy(input, tmp, StandardCopyOption.REPLACE_EXISTING);
+            }
+            String hash = String.format("%032x", new BigInteger(1, digest.digest()));
+            if (expectedHash != null && !expectedHash.equals(hash)) {
+                throw new IOException("module jar '" + url + "' is corrupted, expected md5 " + expectedHash + " but got " + hash);
+            }
+            cache.put(tmp, hash);
+            return hash;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * 服务端明确给出的内容md5，依次看maven仓库常用的X-Checksum-Md5和标准的Content-MD5，下载完要核对
+     * @return 没有时返回null
+     */
+    private String getChecksum(HttpURLConnection connection) {
+        String checksum = connection.getHeaderField("X-Checksum-Md5");
+        if (checksum != null && checksum.trim().matches("[0-9a-fA-F]{32}")) {
+            return checksum.trim().toLowerCase();
+        }
+        String contentMd5 = connection.getHeaderField("Content-MD5");
+        if (contentMd5 != null) {
+            try {
+                byte[] bytes = Base64.getDecoder().decode(contentMd5.trim());
+                if (bytes.length == 16) {
+                    return String.format("%032x", new BigInteger(1, bytes));
+                }
+            } catch (IllegalArgumentException e) {
+                // 格式不对就不用
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 对象存储常用内容的md5做ETag，只用来在缓存里找，不拿来核对下载的内容
+     * @return ETag不是md5的形式时返回null
+     */
+    private String getEtagHash(HttpURLConnection connection) {
+        String etag = connection.getHeaderField("ETag");
+        if (etag != null) {
+            Matcher matcher = MD5_ETAG.matcher(etag.trim());
+            if (matcher.matches()) {
+                return matcher.group(1).toLowerCase();
+            }
+        }
+        return null;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    public ModuleJarCache getCache() {
+        return cache;
+    }
+}
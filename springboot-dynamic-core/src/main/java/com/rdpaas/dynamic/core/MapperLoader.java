@@ -1,11 +1,11 @@
 package com.rdpaas.dynamic.core;
 
+import com.rdpaas.dynamic.utils.Accessors;
 import org.apache.ibatis.builder.xml.XMLMapperBuilder;
 import org.apache.ibatis.builder.xml.XMLMapperEntityResolver;
 import org.apache.ibatis.executor.ErrorContext;
 import org.apache.ibatis.executor.keygen.SelectKeyGenerator;
 import org.apache.ibatis.io.Resources;
-import org.apache.ibatis.mapping.MappedStatement;
 import org.apache.ibatis.parsing.XNode;
 import org.apache.ibatis.parsing.XPathParser;
 import org.apache.ibatis.session.Configuration;
@@ -13,9 +13,13 @@ import org.apache.ibatis.session.SqlSessionFactory;
 import org.mybatis.spring.mapper.MapperFactoryBean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.util.DigestUtils;
 import java.io.ByteArrayInputStream;
-import java.lang.reflect.Field;
+import java.lang.ref.WeakReference;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 /**
  * mybatis的mapper.xml和@Mapper加载类
@@ -29,6 +33,42 @@ public class MapperLoader {
 
     private Configuration configuration;
 
+    private Set<String> loadedResources;
+
+    private Map mappedStatements;
+
+    private Map resultMaps;
+
+    private Map parameterMaps;
+
+    private Map keyGenerators;
+
+    private Map caches;
+
+    private Map<String, String> cacheRefMap;
+
+    private Map<Class<?>, Object> knownMappers;
+
+    /**
+     * 每个namespace上次注册到configuration里的id，ModuleApplication只用一个MapperLoader，刷新之间一直保留
+     */
+    private final Map<String, NamespaceIndex> namespaceIndexes = new ConcurrentHashMap<>();
+
+    /**
+     * xml内容的摘要到namespace，没变化的xml靠它跳过解析
+     */
+    private final Map<String, String> namespacesByHash = new ConcurrentHashMap<>();
+
+    /**
+     * 是否并行解析一个扩展包里的多个mapper.xml
+     */
+    private boolean parallel;
+
+    /**
+     * 最近一次refresh重新注册的语句数，没变化被跳过的xml不算
+     */
+    private volatile int lastStatementCount;
+
     /**
      * 刷新外部mapper，包括文件和@Mapper修饰的接口
      * @param sqlSessionFactory
@@ -36,183 +76,604 @@ public class MapperLoader {
      * @return
      */
     public Map<String,Object> refresh(SqlSessionFactory sqlSessionFactory, Map<String, byte[]> xmlBytesMap) {
-        Configuration configuration = sqlSessionFactory.getConfiguration();
-        this.configuration = configuration;
+        return refresh(sqlSessionFactory, xmlBytesMap, null);
+    }
 
-        /**
-         * 这里用来区分mybatis-plus和mybatis，mybatis-plus的Configuration是继承自mybatis的子类
-         */
-        boolean isSupper = configuration.getClass().getSuperclass() == Configuration.class;
+    /**
+     * 刷新外部mapper，解析期间把扩展包的类加载器设置为线程上下文类加载器，这样mybatis通过Resources.classForName
+     * 查找namespace、resultType之类的扩展包类时会走到扩展包的类加载器，还没装载的类这时才装载
+     * @param sqlSessionFactory
+     * @param xmlBytesMap
+     * @param classLoader 扩展包的类加载器，为空则不切换
+     * @return
+     */
+    public Map<String,Object> refresh(SqlSessionFactory sqlSessionFactory, Map<String, byte[]> xmlBytesMap, ClassLoader classLoader) {
+        return refresh(sqlSessionFactory, xmlBytesMap, classLoader, null);
+    }
+
+    /**
+     * @param preparedParsers prepare()提前解析好的xml，内容摘要对得上的直接拿来用，用过的会从里面删掉，可以为空
+     */
+    public Map<String,Object> refresh(SqlSessionFactory sqlSessionFactory, Map<String, byte[]> xmlBytesMap, ClassLoader classLoader,
+                                      Map<String, XPathParser> preparedParsers) {
+        return withContextClassLoader(classLoader, () -> doRefresh(sqlSessionFactory, xmlBytesMap, preparedParsers));
+    }
+
+    /**
+     * 提前解析xml，只解析成文档，不碰configuration里的注册表，可以在注册之前放到别的线程里做
+     * @param configuration 取里面的变量替换xml里的占位符，和注册时一样
+     * @param xmlBytesMap xml字节码
+     * @return xml内容的摘要 -> 解析结果，解析失败的不放进去，注册时再解析一遍报错
+     */
+    public Map<String, XPathParser> prepare(Configuration configuration, Map<String, byte[]> xmlBytesMap) {
+        Map<String, XPathParser> parsers = new HashMap<>();
+        for (byte[] bytes : xmlBytesMap.values()) {
+            try {
+                parsers.put(DigestUtils.md5DigestAsHex(bytes), newParser(configuration, bytes));
+            } catch (RuntimeException e) {
+                logger.debug("prepare mapper xml error", e);
+            }
+        }
+        return parsers;
+    }
+
+    /**
+     * 删除外部mapper，扩展包里已经去掉的mapper.xml需要把之前注册到mybatis里的各种东西清理掉
+     * @param sqlSessionFactory
+     * @param xmlBytesMap 之前加载过的xml字节码
+     * @param classLoader 扩展包的类加载器，为空则不切换
+     * @return 被删除的namespace
+     */
+    public Set<String> remove(SqlSessionFactory sqlSessionFactory, Map<String, byte[]> xmlBytesMap, ClassLoader classLoader) {
+        return withContextClassLoader(classLoader, () -> doRemove(sqlSessionFactory, xmlBytesMap));
+    }
+
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    public int getLastStatementCount() {
+        return lastStatementCount;
+    }
+
+    private <T> T withContextClassLoader(ClassLoader classLoader, Supplier<T> supplier) {
+        if (classLoader == null) {
+            return supplier.get();
+        }
+        Thread currentThread = Thread.currentThread();
+        ClassLoader contextClassLoader = currentThread.getContextClassLoader();
+        currentThread.setContextClassLoader(classLoader);
+        try {
+            return supplier.get();
+        } finally {
+            currentThread.setContextClassLoader(contextClassLoader);
+        }
+    }
+
+    private Map<String,Object> doRefresh(SqlSessionFactory sqlSessionFactory, Map<String, byte[]> xmlBytesMap,
+                                         Map<String, XPathParser> preparedParsers) {
         Map<String,Object> mapperMap = new HashMap<>();
+        lastStatementCount = 0;
         try {
+            resolveRegistries(sqlSessionFactory.getConfiguration());
             /**
-             * 遍历外部传入的xml字节码map
+             * 先把外部传入的xml都解析好，这一步只和xml本身有关，并行模式下多个xml同时解析
              */
-            for(Map.Entry<String,byte[]> entry:xmlBytesMap.entrySet()) {
-                String resource = entry.getKey();
-                byte[] bytes = entry.getValue();
-                /**
-                 * 使用反射强行拿出configuration中的loadedResources属性
-                 */
-                Field loadedResourcesField = isSupper
-                        ? configuration.getClass().getSuperclass().getDeclaredField("loadedResources")
-                        : configuration.getClass().getDeclaredField("loadedResources");
-                loadedResourcesField.setAccessible(true);
-                Set loadedResourcesSet = ((Set) loadedResourcesField.get(configuration));
-                /**
-                 * 加载mybatis中的xml
-                 */
-                XPathParser xPathParser = new XPathParser(new ByteArrayInputStream(bytes), true, configuration.getVariables(),
-                        new XMLMapperEntityResolver());
-                /**
-                 * 解析mybatis的xml的根节点，
-                 */
-                XNode context = xPathParser.evalNode("/mapper");
-                /**
-                 * 拿到namespace，namespace就是指Mapper接口的全限定名
-                 */
-                String namespace = context.getStringAttribute("namespace");
-                Field field = configuration.getMapperRegistry().getClass().getDeclaredField("knownMappers");
-                field.setAccessible(true);
+            List<ParsedMapper> parsedMappers = parse(xmlBytesMap, preparedParsers);
+            /**
+             * 变化了的xml先构建到一个暂存的ModuleConfiguration里，不占configuration的锁，引用宿主里的东西照样找得到。
+             * 合并进宿主的语句还绑定在暂存区上，用的是这次刷新时宿主settings的快照，见ModuleConfiguration
+             */
+            ModuleConfiguration staging = build(parsedMappers);
+            /**
+             * 再一次性合并到configuration，configuration里的注册表不是线程安全的，锁里只做合并
+             */
+            synchronized (configuration) {
+                commit(parsedMappers, staging, sqlSessionFactory, mapperMap);
+            }
+            staging.clearRegistries();
+            return mapperMap;
+        } catch (Exception e) {
+            logger.error("refresh error",e);
+        } finally {
+            ErrorContext.instance().reset();
+        }
+        return null;
+    }
 
-                /**
-                 * 拿到存放Mapper接口和对应代理子类的映射map，
-                 */
-                Map mapConfig = (Map) field.get(configuration.getMapperRegistry());
-                /**
-                 * 拿到Mapper接口对应的class对象
-                 */
-                Class nsClass = Resources.classForName(namespace);
+    /**
+     * 解析xml，得到namespace和mapper根节点，内容和上次注册时一样的xml不解析
+     */
+    private List<ParsedMapper> parse(Map<String, byte[]> xmlBytesMap, Map<String, XPathParser> preparedParsers) {
+        long start = System.currentTimeMillis();
+        List<ParsedMapper> parsedMappers;
+        if (parallel && xmlBytesMap.size() > 1) {
+            parsedMappers = xmlBytesMap.entrySet().parallelStream().map(entry -> parse(entry, preparedParsers))
+                    .collect(Collectors.toList());
+        } else {
+            parsedMappers = new ArrayList<>();
+            for (Map.Entry<String, byte[]> entry : xmlBytesMap.entrySet()) {
+                parsedMappers.add(parse(entry, preparedParsers));
+            }
+        }
+        logger.debug("parse {} mapper xmls cost {} ms, parallel: {}", xmlBytesMap.size(), System.currentTimeMillis() - start, parallel);
+        return parsedMappers;
+    }
 
-                /**
-                 * 先删除各种
-                 */
-                mapConfig.remove(nsClass);
-                loadedResourcesSet.remove(resource);
-                configuration.getCacheNames().remove(namespace);
+    private ParsedMapper parse(Map.Entry<String, byte[]> entry, Map<String, XPathParser> preparedParsers) {
+        ParsedMapper parsedMapper = new ParsedMapper(entry.getKey(), entry.getValue());
+        String namespace = namespacesByHash.get(parsedMapper.hash);
+        NamespaceIndex cached = namespace == null ? null : namespaceIndexes.get(namespace);
+        if (cached != null && cached.matches(parsedMapper.hash, parsedMapper.resource)) {
+            parsedMapper.namespace = namespace;
+            parsedMapper.cached = cached;
+            return parsedMapper;
+        }
+        /**
+         * 解析mybatis的xml的根节点，同一个解析结果后面直接交给XMLMapperBuilder，不再解析第二遍
+         */
+        XPathParser preparedParser = preparedParsers == null ? null : preparedParsers.remove(parsedMapper.hash);
+        parsedMapper.parser = preparedParser != null ? preparedParser : newParser(configuration, parsedMapper.bytes);
+        parsedMapper.context = parsedMapper.parser.evalNode("/mapper");
+        /**
+         * 拿到namespace，namespace就是指Mapper接口的全限定名
+         */
+        parsedMapper.namespace = parsedMapper.context.getStringAttribute("namespace");
+        return parsedMapper;
+    }
 
-                /**
-                 * 清掉namespace下各种缓存
-                 */
-                cleanParameterMap(context.evalNodes("/mapper/parameterMap"), namespace);
-                cleanResultMap(context.evalNodes("/mapper/resultMap"), namespace);
-                cleanKeyGenerators(context.evalNodes("insert|update|select|delete"), namespace);
-                cleanSqlElement(context.evalNodes("/mapper/sql"), namespace);
+    /**
+     * 用XMLMapperBuilder把内容变了的xml构建到暂存区，构建失败时宿主的configuration还一点没动过
+     */
+    private ModuleConfiguration build(List<ParsedMapper> parsedMappers) throws Exception {
+        long start = System.currentTimeMillis();
+        ModuleConfiguration staging = new ModuleConfiguration(configuration);
+        for (ParsedMapper parsedMapper : parsedMappers) {
+            /**
+             * 拿到Mapper接口对应的class对象
+             */
+            parsedMapper.mapperClass = Resources.classForName(parsedMapper.namespace);
+            if (parsedMapper.isUnchanged()) {
+                continue;
+            }
+            if (parsedMapper.context == null) {
+                parsedMapper.parser = newParser(configuration, parsedMapper.bytes);
+                parsedMapper.context = parsedMapper.parser.evalNode("/mapper");
+            }
+            newMapperBuilder(parsedMapper.parser, parsedMapper.bytes, parsedMapper.resource, staging).parse();
+        }
+        /**
+         * 暂存区里没解决的引用合并以后就没人再去解决了，只能在这里报错
+         */
+        int incomplete = staging.getIncompleteStatements().size() + staging.getIncompleteResultMaps().size()
+                + staging.getIncompleteCacheRefs().size() + staging.getIncompleteMethods().size();
+        if (incomplete > 0) {
+            throw new IllegalStateException(incomplete + " mapper elements reference result maps, caches or statements that do not exist");
+        }
+        logger.debug("build {} mapper xmls cost {} ms", parsedMappers.size(), System.currentTimeMillis() - start);
+        return staging;
+    }
 
+    /**
+     * 把暂存区构建好的东西合并到configuration，中途失败则回滚到这一批提交之前的状态，不留下一半新一半旧的状态
+     */
+    private void commit(List<ParsedMapper> parsedMappers, ModuleConfiguration staging, SqlSessionFactory sqlSessionFactory,
+                        Map<String, Object> mapperMap) {
+        Map<Class<?>, Object> stagedMappers = (Map<Class<?>, Object>) Accessors.KNOWN_MAPPERS.get(staging.getMapperRegistry());
+        Map stagedCaches = (Map) Accessors.CACHES.get(staging);
+        Map<String, String> stagedCacheRefMap = (Map<String, String>) Accessors.CACHE_REF_MAP.get(staging);
+        Map<String, NamespaceIndex> indexes = new HashMap<>();
+        Deque<Runnable> undo = new ArrayDeque<>();
+        try {
+            for (ParsedMapper parsedMapper : parsedMappers) {
+                if (parsedMapper.isUnchanged()) {
+                    continue;
+                }
+                String resource = parsedMapper.resource;
+                String namespace = parsedMapper.namespace;
+                Class<?> mapperClass = parsedMapper.mapperClass;
                 /**
-                 * 加载并解析对应xml
+                 * 先删除旧版本注册的各种
                  */
-                XMLMapperBuilder xmlMapperBuilder = new XMLMapperBuilder(new ByteArrayInputStream(bytes),
-                        sqlSessionFactory.getConfiguration(), resource,
-                        sqlSessionFactory.getConfiguration().getSqlFragments());
-                xmlMapperBuilder.parse();
+                clean(resource, parsedMapper.context, namespace, mapperClass, undo);
 
                 /**
-                 * 构造MapperFactoryBean，注意这里一定要传入sqlSessionFactory,
-                 * 这块逻辑通过debug源码试验了很久
+                 * 再放入暂存区里这个namespace的各种
                  */
-                MapperFactoryBean mapperFactoryBean = new MapperFactoryBean(nsClass);
-                mapperFactoryBean.setSqlSessionFactory(sqlSessionFactory);
+                NamespaceIndex index = indexOf(staging, namespace);
+                merge((Map) Accessors.MAPPED_STATEMENTS.get(staging), mappedStatements, index.statements, undo);
+                merge((Map) Accessors.RESULT_MAPS.get(staging), resultMaps, index.resultMaps, undo);
+                merge((Map) Accessors.PARAMETER_MAPS.get(staging), parameterMaps, index.parameterMaps, undo);
+                merge((Map) Accessors.KEY_GENERATORS.get(staging), keyGenerators, index.keyGenerators, undo);
+                merge(staging.getSqlFragments(), configuration.getSqlFragments(), index.sqlFragments, undo);
+                if (stagedCaches.containsKey(namespace)) {
+                    caches.put(namespace, stagedCaches.get(namespace));
+                    record(undo, () -> removeAll(caches, Collections.singleton(namespace), null));
+                }
+                String cacheRef = stagedCacheRefMap.get(namespace);
+                if (cacheRef != null) {
+                    cacheRefMap.put(namespace, cacheRef);
+                    record(undo, () -> cacheRefMap.remove(namespace));
+                }
+                Object mapperProxyFactory = stagedMappers.get(mapperClass);
+                if (mapperProxyFactory != null) {
+                    knownMappers.put(mapperClass, mapperProxyFactory);
+                    record(undo, () -> knownMappers.remove(mapperClass));
+                }
+                index.hash = parsedMapper.hash;
+                index.resource = resource;
+                index.mapperClass = new WeakReference<>(mapperClass);
+                indexes.put(namespace, index);
+            }
+            for (String resource : (Set<String>) Accessors.LOADED_RESOURCES.get(staging)) {
+                if (loadedResources.add(resource)) {
+                    record(undo, () -> loadedResources.remove(resource));
+                }
+            }
+            /**
+             * 放入map，返回出去给ModuleApplication去加载
+             */
+            for (ParsedMapper parsedMapper : parsedMappers) {
+                mapperMap.put(parsedMapper.namespace, newMapperFactoryBean(parsedMapper.mapperClass, sqlSessionFactory));
+            }
+        } catch (RuntimeException e) {
+            /**
+             * 倒着执行，先清掉这一批新合并的，再把被替换掉的旧版本放回去
+             */
+            mapperMap.clear();
+            while (!undo.isEmpty()) {
+                undo.pop().run();
+            }
+            throw e;
+        }
+        for (ParsedMapper parsedMapper : parsedMappers) {
+            String namespace = parsedMapper.namespace;
+            NamespaceIndex index = indexes.get(namespace);
+            if (index == null) {
+                logger.info("refresh: '" + parsedMapper.resource + "', unchanged, skipped!");
+            } else {
+                namespaceIndexes.put(namespace, index);
+                namespacesByHash.put(index.hash, namespace);
+                lastStatementCount += index.statements.size();
+                logger.info("refresh: '" + parsedMapper.resource + "', success!");
+            }
+        }
+    }
+
+    private Set<String> doRemove(SqlSessionFactory sqlSessionFactory, Map<String, byte[]> xmlBytesMap) {
+        Set<String> namespaces = new HashSet<>();
+        try {
+            resolveRegistries(sqlSessionFactory.getConfiguration());
+            for(Map.Entry<String,byte[]> entry:xmlBytesMap.entrySet()) {
+                String resource = entry.getKey();
                 /**
-                 * 放入map，返回出去给ModuleApplication去加载
+                 * 注册过的xml直接从索引拿namespace，不用解析
                  */
-                mapperMap.put(namespace,mapperFactoryBean);
-                logger.info("refresh: '" + resource + "', success!");
-
+                String cachedNamespace = namespacesByHash.get(DigestUtils.md5DigestAsHex(entry.getValue()));
+                NamespaceIndex cached = cachedNamespace == null ? null : namespaceIndexes.get(cachedNamespace);
+                XNode context = cached == null ? newParser(configuration, entry.getValue()).evalNode("/mapper") : null;
+                String namespace = cached == null ? context.getStringAttribute("namespace") : cached.namespace;
+                clean(resource, context, namespace, cached == null ? classForName(namespace) : null);
+                namespaces.add(namespace);
+                logger.info("remove: '" + resource + "', success!");
             }
-            return mapperMap;
         } catch (Exception e) {
-            logger.error("refresh error",e.getMessage());
+            logger.error("remove error",e);
         } finally {
             ErrorContext.instance().reset();
         }
-        return null;
+        return namespaces;
     }
 
     /**
-     * 清理parameterMap
-     *
-     * @param list
-     * @param namespace
+     * 没有索引的namespace按当前的上下文类加载器找Mapper接口，找不到说明也没有注册过
      */
-    private void cleanParameterMap(List<XNode> list, String namespace) {
-        for (XNode parameterMapNode : list) {
-            String id = parameterMapNode.getStringAttribute("id");
-            configuration.getParameterMaps().remove(namespace + "." + id);
+    private Class<?> classForName(String namespace) {
+        try {
+            return Resources.classForName(namespace);
+        } catch (ClassNotFoundException e) {
+            return null;
         }
     }
 
     /**
-     * 清理resultMap
-     *
-     * @param list
+     * 解析mybatis中的xml，校验方式和XMLMapperBuilder自己解析时一样
+     */
+    private static XPathParser newParser(Configuration configuration, byte[] bytes) {
+        return new XPathParser(new ByteArrayInputStream(bytes), true, configuration.getVariables(),
+                new XMLMapperEntityResolver());
+    }
+
+    /**
+     * XMLMapperBuilder接收XPathParser的构造方法是私有的，拿来复用已经解析好的文档，拿不到就让它自己再解析一遍
+     */
+    private XMLMapperBuilder newMapperBuilder(XPathParser parser, byte[] bytes, String resource, Configuration configuration) throws Exception {
+        if (Accessors.MAPPER_BUILDER.isAvailable()) {
+            return (XMLMapperBuilder) Accessors.MAPPER_BUILDER.newInstance(parser, configuration, resource, configuration.getSqlFragments());
+        }
+        return new XMLMapperBuilder(new ByteArrayInputStream(bytes), configuration, resource, configuration.getSqlFragments());
+    }
+
+    /**
+     * 构造MapperFactoryBean，注意这里一定要传入sqlSessionFactory,
+     * 这块逻辑通过debug源码试验了很久
+     */
+    private MapperFactoryBean newMapperFactoryBean(Class nsClass, SqlSessionFactory sqlSessionFactory) {
+        MapperFactoryBean mapperFactoryBean = new MapperFactoryBean(nsClass);
+        mapperFactoryBean.setSqlSessionFactory(sqlSessionFactory);
+        return mapperFactoryBean;
+    }
+
+    /**
+     * 清掉一个mapper.xml之前注册到configuration里的东西，优先按上次注册时记下的索引整批删除，只有第一次加载或者
+     * namespace不是本类注册的才按xml推算
+     * @param resource xml路径
+     * @param context mapper根节点
      * @param namespace
+     * @param mapperClass 这次解析到的Mapper接口，可以为空
+     */
+    private void clean(String resource, XNode context, String namespace, Class<?> mapperClass) {
+        clean(resource, context, namespace, mapperClass, null);
+    }
+
+    /**
+     * @param undo 不为空时记下被删掉的旧内容，提交失败时倒着执行就能放回去
+     */
+    private void clean(String resource, XNode context, String namespace, Class<?> mapperClass, Deque<Runnable> undo) {
+        NamespaceIndex index = namespaceIndexes.remove(namespace);
+        /**
+         * 扩展包使用独立类加载器时，新旧版本的Mapper接口是两个不同的class对象，旧的那个从索引里拿，按class直接删除。
+         * knownMappers强引用着旧的class，它还注册着的话弱引用就不会被清掉
+         */
+        if (index != null) {
+            removeMapper(index.mapperClass.get(), undo);
+        }
+        removeMapper(mapperClass, undo);
+        if (loadedResources.remove(resource)) {
+            record(undo, () -> loadedResources.add(resource));
+        }
+        Object cache = caches.remove(namespace);
+        if (cache != null) {
+            record(undo, () -> caches.put(namespace, cache));
+        }
+        String cacheRef = cacheRefMap.remove(namespace);
+        if (cacheRef != null) {
+            record(undo, () -> cacheRefMap.put(namespace, cacheRef));
+        }
+
+        if (index == null) {
+            index = indexOf(context, namespace);
+        } else {
+            NamespaceIndex removedIndex = index;
+            namespacesByHash.remove(index.hash, namespace);
+            record(undo, () -> {
+                namespaceIndexes.put(namespace, removedIndex);
+                namespacesByHash.put(removedIndex.hash, namespace);
+            });
+        }
+        removeAll(mappedStatements, index.statements, undo);
+        removeAll(resultMaps, index.resultMaps, undo);
+        removeAll(parameterMaps, index.parameterMaps, undo);
+        removeAll(keyGenerators, index.keyGenerators, undo);
+        removeAll(configuration.getSqlFragments(), index.sqlFragments, undo);
+    }
+
+    private void removeMapper(Class<?> mapperClass, Deque<Runnable> undo) {
+        if (mapperClass == null) {
+            return;
+        }
+        Object mapperProxyFactory = knownMappers.remove(mapperClass);
+        if (mapperProxyFactory != null) {
+            record(undo, () -> knownMappers.put(mapperClass, mapperProxyFactory));
+        }
+    }
+
+    private void record(Deque<Runnable> undo, Runnable action) {
+        if (undo != null) {
+            undo.push(action);
+        }
+    }
+
+    /**
+     * 从暂存区里取出一个namespace实际注册的全限定id，注解方式注册的语句也在里面。下次刷新或删除时直接按这些id删除，
+     * 不用再扫描整个configuration
+     */
+    private NamespaceIndex indexOf(ModuleConfiguration staging, String namespace) {
+        NamespaceIndex index = new NamespaceIndex(namespace);
+        collect((Map) Accessors.MAPPED_STATEMENTS.get(staging), namespace, index.statements);
+        collect((Map) Accessors.RESULT_MAPS.get(staging), namespace, index.resultMaps);
+        collect((Map) Accessors.PARAMETER_MAPS.get(staging), namespace, index.parameterMaps);
+        collect((Map) Accessors.KEY_GENERATORS.get(staging), namespace, index.keyGenerators);
+        collect(staging.getSqlFragments(), namespace, index.sqlFragments);
+        return index;
+    }
+
+    /**
+     * 本地id里不允许有点，全限定id去掉namespace前缀后不再有点的才属于这个namespace，短id本身不带点，自然被排除
+     */
+    private void collect(Map<String, ?> map, String namespace, Set<String> ids) {
+        String prefix = namespace + ".";
+        for (String id : map.keySet()) {
+            if (id.startsWith(prefix) && id.indexOf('.', prefix.length()) < 0) {
+                ids.add(id);
+            }
+        }
+    }
+
+    /**
+     * 把暂存区的全限定id放进configuration，StrictMap会照常生成短id，重复的id照常报错
+     */
+    private void merge(Map staged, Map target, Set<String> ids, Deque<Runnable> undo) {
+        for (String id : ids) {
+            target.put(id, staged.get(id));
+            record(undo, () -> removeAll(target, Collections.singleton(id), null));
+        }
+    }
+
+    /**
+     * 按mapper.xml推算这个namespace会注册的全限定id，规则和MapperBuilderAssistant.applyCurrentNamespace一致
      */
-    private void cleanResultMap(List<XNode> list, String namespace) {
-        for (XNode resultMapNode : list) {
-            String id = resultMapNode.getStringAttribute("id", resultMapNode.getValueBasedIdentifier());
-            configuration.getResultMapNames().remove(id);
-            configuration.getResultMapNames().remove(namespace + "." + id);
-            clearResultMap(resultMapNode, namespace);
+    private NamespaceIndex indexOf(XNode context, String namespace) {
+        NamespaceIndex index = new NamespaceIndex(namespace);
+        for (XNode node : context.evalNodes("/mapper/parameterMap")) {
+            index.parameterMaps.add(applyNamespace(namespace, node.getStringAttribute("id")));
+        }
+        for (XNode node : context.evalNodes("/mapper/resultMap")) {
+            index.resultMaps.add(applyNamespace(namespace, node.getStringAttribute("id", node.getValueBasedIdentifier())));
+            indexNestedResultMaps(node, namespace, index);
+        }
+        for (XNode node : context.evalNodes("/mapper/sql")) {
+            index.sqlFragments.add(applyNamespace(namespace, node.getStringAttribute("id")));
+        }
+        for (XNode node : context.evalNodes("select|insert|update|delete")) {
+            String id = applyNamespace(namespace, node.getStringAttribute("id"));
+            index.statements.add(id);
+            /**
+             * selectKey会单独注册一个MappedStatement和一个KeyGenerator
+             */
+            String selectKeyId = id + SelectKeyGenerator.SELECT_KEY_SUFFIX;
+            index.statements.add(selectKeyId);
+            index.keyGenerators.add(selectKeyId);
         }
+        return index;
     }
 
-    private void clearResultMap(XNode xNode, String namespace) {
+    /**
+     * association、collection和discriminator下的case没有指定select和resultMap时会生成一个内嵌的resultMap
+     */
+    private void indexNestedResultMaps(XNode xNode, String namespace, NamespaceIndex index) {
         for (XNode resultChild : xNode.getChildren()) {
-            if ("association".equals(resultChild.getName()) || "collection".equals(resultChild.getName())
-                    || "case".equals(resultChild.getName())) {
-                if (resultChild.getStringAttribute("select") == null) {
-                    configuration.getResultMapNames()
-                            .remove(resultChild.getStringAttribute("id", resultChild.getValueBasedIdentifier()));
-                    configuration.getResultMapNames().remove(namespace + "."
-                            + resultChild.getStringAttribute("id", resultChild.getValueBasedIdentifier()));
-                    if (resultChild.getChildren() != null && !resultChild.getChildren().isEmpty()) {
-                        clearResultMap(resultChild, namespace);
-                    }
-                }
+            String name = resultChild.getName();
+            if ("discriminator".equals(name)) {
+                indexNestedResultMaps(resultChild, namespace, index);
+            } else if (("association".equals(name) || "collection".equals(name) || "case".equals(name))
+                    && resultChild.getStringAttribute("select") == null) {
+                index.resultMaps.add(applyNamespace(namespace,
+                        resultChild.getStringAttribute("id", resultChild.getValueBasedIdentifier())));
+                indexNestedResultMaps(resultChild, namespace, index);
             }
         }
     }
 
+    private String applyNamespace(String namespace, String id) {
+        return id.startsWith(namespace + ".") ? id : namespace + "." + id;
+    }
+
     /**
-     * 清理selectKey
-     *
-     * @param list
-     * @param namespace
+     * 删除全限定id以及指向同一个对象的短id，短id如果已经是Ambiguity说明别的namespace也在用，保持原样
      */
-    private void cleanKeyGenerators(List<XNode> list, String namespace) {
-        for (XNode context : list) {
-            String id = context.getStringAttribute("id");
-            configuration.getKeyGeneratorNames().remove(id + SelectKeyGenerator.SELECT_KEY_SUFFIX);
-            configuration.getKeyGeneratorNames().remove(namespace + "." + id + SelectKeyGenerator.SELECT_KEY_SUFFIX);
-
-            Collection<MappedStatement> mappedStatements = configuration.getMappedStatements();
-            List<MappedStatement> objects = new ArrayList<>();
-            Iterator<MappedStatement> it = mappedStatements.iterator();
-            while (it.hasNext()) {
-                Object object = it.next();
-                if (object instanceof MappedStatement) {
-                    MappedStatement mappedStatement = (MappedStatement) object;
-                    if (mappedStatement.getId().equals(namespace + "." + id)) {
-                        objects.add(mappedStatement);
+    private void removeAll(Map map, Set<String> ids, Deque<Runnable> undo) {
+        for (String id : ids) {
+            if (!map.containsKey(id)) {
+                continue;
+            }
+            Object value = map.remove(id);
+            /**
+             * 放回去时StrictMap会按原来的规则重新生成短id
+             */
+            record(undo, () -> map.put(id, value));
+            String shortId = id.substring(id.lastIndexOf('.') + 1);
+            if (map.containsKey(shortId)) {
+                try {
+                    if (map.get(shortId) == value) {
+                        map.remove(shortId);
                     }
+                } catch (IllegalArgumentException e) {
+                    //StrictMap里的Ambiguity
                 }
             }
-            mappedStatements.removeAll(objects);
         }
     }
 
     /**
-     * 清理sql节点缓存
-     *
-     * @param list
-     * @param namespace
+     * 拿到configuration里的各个注册表，每次刷新只拿一次，不放在每个xml的循环里。mybatis-plus的Configuration是继承自mybatis
+     * 的子类，Accessors会按实际的类往父类找
      */
-    private void cleanSqlElement(List<XNode> list, String namespace) {
-        for (XNode context : list) {
-            String id = context.getStringAttribute("id");
-            configuration.getSqlFragments().remove(id);
-            configuration.getSqlFragments().remove(namespace + "." + id);
+    private void resolveRegistries(Configuration configuration) {
+        this.configuration = configuration;
+        this.loadedResources = (Set<String>) Accessors.LOADED_RESOURCES.get(configuration);
+        this.mappedStatements = (Map) Accessors.MAPPED_STATEMENTS.get(configuration);
+        this.resultMaps = (Map) Accessors.RESULT_MAPS.get(configuration);
+        this.parameterMaps = (Map) Accessors.PARAMETER_MAPS.get(configuration);
+        this.keyGenerators = (Map) Accessors.KEY_GENERATORS.get(configuration);
+        this.caches = (Map) Accessors.CACHES.get(configuration);
+        this.cacheRefMap = (Map<String, String>) Accessors.CACHE_REF_MAP.get(configuration);
+        this.knownMappers = (Map<Class<?>, Object>) Accessors.KNOWN_MAPPERS.get(configuration.getMapperRegistry());
+    }
+
+    /**
+     * 一个namespace注册到configuration里的全限定id
+     */
+    private static class NamespaceIndex {
+
+        private final String namespace;
+
+        /**
+         * 注册时xml内容的摘要
+         */
+        private String hash;
+
+        private String resource;
+
+        /**
+         * 注册时的Mapper接口，隔离模式下换了类加载器即使xml没变也要重新解析，弱引用避免拖住旧的类加载器
+         */
+        private WeakReference<Class<?>> mapperClass;
+
+        private final Set<String> statements = new HashSet<>();
+
+        private final Set<String> resultMaps = new HashSet<>();
+
+        private final Set<String> parameterMaps = new HashSet<>();
+
+        private final Set<String> keyGenerators = new HashSet<>();
+
+        private final Set<String> sqlFragments = new HashSet<>();
+
+        private NamespaceIndex(String namespace) {
+            this.namespace = namespace;
+        }
+
+        private boolean matches(String hash, String resource) {
+            return hash.equals(this.hash) && resource.equals(this.resource);
+        }
+    }
+
+    /**
+     * 解析好还没提交到configuration的一个mapper.xml
+     */
+    private static class ParsedMapper {
+
+        private final String resource;
+
+        private final byte[] bytes;
+
+        private final String hash;
+
+        private String namespace;
+
+        private XPathParser parser;
+
+        private XNode context;
+
+        private Class<?> mapperClass;
+
+        /**
+         * 内容和上次注册时一样时，上次注册的索引
+         */
+        private NamespaceIndex cached;
+
+        private ParsedMapper(String resource, byte[] bytes) {
+            this.resource = resource;
+            this.bytes = bytes;
+            this.hash = DigestUtils.md5DigestAsHex(bytes);
+        }
+
+        /**
+         * xml内容没变，Mapper接口也还是同一个class的话不用再构建，注册在configuration里的东西还是有效的
+         */
+        private boolean isUnchanged() {
+            return cached != null && cached.mapperClass.get() == mapperClass;
         }
     }
 
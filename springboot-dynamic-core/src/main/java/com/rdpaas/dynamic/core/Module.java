@@ -0,0 +1,269 @@
+package com.rdpaas.dynamic.core;
+
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.web.servlet.mvc.method.RequestMappingInfo;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一个扩展包的某一个版本，记录这个版本自己的类加载器、mapper、bean和springmvc接口，多个扩展包之间互不影响
+ * @author rongdi
+ * @date 2021-03-27
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class Module {
+
+    private final String id;
+
+    private final int version;
+
+    private final URL url;
+
+    private ModuleClassLoader classLoader;
+
+    /**
+     * 这个版本的jar包内容的摘要
+     */
+    private String jarHash;
+
+    /**
+     * 这个版本加载得到的类
+     */
+    private Map<String, Class> classMap = new HashMap<>();
+
+    /**
+     * 每个class的摘要
+     */
+    private Map<String, String> classHashes = new HashMap<>();
+
+    /**
+     * 每个mapper.xml的摘要
+     */
+    private Map<String, String> xmlHashes = new HashMap<>();
+
+    /**
+     * 加载过的mapper.xml，xml被删掉的时候要靠它清理mybatis
+     */
+    private Map<String, byte[]> xmlBytesMap = new HashMap<>();
+
+    /**
+     * 注册到mybatis的namespace
+     */
+    private final Set<String> mapperNamespaces = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 注册到spring容器的beanName
+     */
+    private final Set<String> beanNames = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 注册到springmvc的接口
+     */
+    private final Set<RequestMappingInfo> mappingInfos = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 蓝绿刷新或者隔离模式下替换旧版本时这个版本自己的mybatis session工厂，mapper.xml注册在它的ModuleConfiguration里，
+     * 为空表示直接注册在宿主里
+     */
+    private SqlSessionFactory sqlSessionFactory;
+
+    /**
+     * 往sqlSessionFactory里注册mapper.xml的MapperLoader，它按namespace记着注册过的内容，每个Configuration各用一个
+     */
+    private MapperLoader mapperLoader;
+
+    /**
+     * 蓝绿刷新时bean按版本注册，原来的beanName作为别名指向当前版本，key是别名，value是带版本的beanName
+     */
+    private final Map<String, String> aliases = new ConcurrentHashMap<>();
+
+    /**
+     * 被新版本同名bean顶掉的bean的销毁回调，按注册顺序，释放这个版本时倒着执行
+     */
+    private final Map<String, DisposableBean> detachedDisposables = new LinkedHashMap<>();
+
+    /**
+     * 正在这个版本的接口里执行的请求数
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * 已经等到这个版本空闲了，释放时不用再等
+     */
+    private volatile boolean drained;
+
+    /**
+     * 最近一次差量刷新的结果
+     */
+    private ModuleDiff lastDiff;
+
+    public Module(String id, int version, URL url) {
+        this.id = id;
+        this.version = version;
+        this.url = url;
+    }
+
+    /**
+     * 基于上一个版本创建下一个版本，沿用上一个版本的注册信息，差量刷新时靠它和新版本比较
+     * @param id 扩展包id
+     * @param previous 上一个版本，为空则从1开始
+     * @param url
+     * @return
+     */
+    public static Module next(String id, Module previous, URL url) {
+        if (previous == null) {
+            return new Module(id, 1, url);
+        }
+        Module module = new Module(id, previous.version + 1, url);
+        module.classMap = previous.classMap;
+        module.classHashes = previous.classHashes;
+        module.xmlHashes = previous.xmlHashes;
+        module.xmlBytesMap = previous.xmlBytesMap;
+        module.mapperNamespaces.addAll(previous.mapperNamespaces);
+        module.beanNames.addAll(previous.beanNames);
+        module.mappingInfos.addAll(previous.mappingInfos);
+        module.sqlSessionFactory = previous.sqlSessionFactory;
+        module.mapperLoader = previous.mapperLoader;
+        return module;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public URL getUrl() {
+        return url;
+    }
+
+    public ModuleClassLoader getClassLoader() {
+        return classLoader;
+    }
+
+    public void setClassLoader(ModuleClassLoader classLoader) {
+        this.classLoader = classLoader;
+    }
+
+    public String getJarHash() {
+        return jarHash;
+    }
+
+    public void setJarHash(String jarHash) {
+        this.jarHash = jarHash;
+    }
+
+    public Map<String, Class> getClassMap() {
+        return classMap;
+    }
+
+    public void setClassMap(Map<String, Class> classMap) {
+        this.classMap = classMap;
+    }
+
+    public Map<String, String> getClassHashes() {
+        return classHashes;
+    }
+
+    public void setClassHashes(Map<String, String> classHashes) {
+        this.classHashes = classHashes;
+    }
+
+    public Map<String, String> getXmlHashes() {
+        return xmlHashes;
+    }
+
+    public void setXmlHashes(Map<String, String> xmlHashes) {
+        this.xmlHashes = xmlHashes;
+    }
+
+    public Map<String, byte[]> getXmlBytesMap() {
+        return xmlBytesMap;
+    }
+
+    public void setXmlBytesMap(Map<String, byte[]> xmlBytesMap) {
+        this.xmlBytesMap = xmlBytesMap;
+    }
+
+    public Set<String> getMapperNamespaces() {
+        return mapperNamespaces;
+    }
+
+    public Set<String> getBeanNames() {
+        return beanNames;
+    }
+
+    public Set<RequestMappingInfo> getMappingInfos() {
+        return mappingInfos;
+    }
+
+    public SqlSessionFactory getSqlSessionFactory() {
+        return sqlSessionFactory;
+    }
+
+    public void setSqlSessionFactory(SqlSessionFactory sqlSessionFactory) {
+        this.sqlSessionFactory = sqlSessionFactory;
+    }
+
+    public MapperLoader getMapperLoader() {
+        return mapperLoader;
+    }
+
+    public void setMapperLoader(MapperLoader mapperLoader) {
+        this.mapperLoader = mapperLoader;
+    }
+
+    public Map<String, String> getAliases() {
+        return aliases;
+    }
+
+    public Map<String, DisposableBean> getDetachedDisposables() {
+        return detachedDisposables;
+    }
+
+    public void enter() {
+        inFlight.incrementAndGet();
+    }
+
+    public void exit() {
+        inFlight.decrementAndGet();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public boolean isDrained() {
+        return drained;
+    }
+
+    public void setDrained(boolean drained) {
+        this.drained = drained;
+    }
+
+    public ModuleDiff getLastDiff() {
+        return lastDiff;
+    }
+
+    public void setLastDiff(ModuleDiff lastDiff) {
+        this.lastDiff = lastDiff;
+    }
+
+    @Override
+    public String toString() {
+        return "Module{" +
+            "id='" + id + '\'' +
+            ", version=" + version +
+            ", url=" + url +
+            '}';
+    }
+}
@@ -1,14 +1,25 @@
 package com.rdpaas.dynamic.core;
 
-import com.rdpaas.dynamic.utils.ReflectUtil;
+import com.rdpaas.dynamic.utils.Accessors;
 import com.rdpaas.dynamic.utils.SpringUtil;
+import org.apache.ibatis.parsing.XPathParser;
 import org.apache.ibatis.session.SqlSessionFactory;
+import org.apache.ibatis.session.defaults.DefaultSqlSessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.aop.framework.ProxyProcessorSupport;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.config.BeanPostProcessor;
 import org.springframework.beans.factory.support.BeanDefinitionBuilder;
 import org.springframework.beans.factory.support.DefaultListableBeanFactory;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.MethodIntrospector;
 import org.springframework.plugin.core.PluginRegistry;
+import org.springframework.util.ClassUtils;
 import org.springframework.util.MultiValueMap;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.RequestMethod;
@@ -29,10 +40,23 @@ import springfox.documentation.spring.web.plugins.Docket;
 import springfox.documentation.spring.web.plugins.DocumentationPluginsBootstrapper;
 import springfox.documentation.spring.web.plugins.DocumentationPluginsManager;
 
-import java.lang.reflect.Field;
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Method;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.function.Function;
 
 /**
  * 基于spring的应用上下文提供一些工具方法
@@ -40,72 +64,1365 @@ import java.util.*;
  * @date 2021-03-06
  * @blog https://www.cnblogs.com/rongdi
  */
-public class ModuleApplication {
+public class ModuleApplication implements DisposableBean {
+
+    private Logger logger = LoggerFactory.getLogger(ModuleApplication.class);
 
     private final static String SINGLETON = "singleton";
 
-    private final static String DYNAMIC = "dynamic";
+    private final static String DYNAMIC = "dynamic";
+
+    private final static String DYNAMIC_DOC_PACKAGE = "dynamic.swagger.doc.package";
+
+    /**
+     * 等待旧版本空闲时检查请求数的间隔
+     */
+    private final static long DRAIN_POLL_INTERVAL = 10;
+
+    /**
+     * 最多保留多少个刷新任务的状态
+     */
+    private final static int MAX_JOBS = 100;
+
+    private ApplicationContext applicationContext;
+
+    /**
+     * 是否并行读取扩展jar包
+     */
+    private boolean parallelLoad;
+
+    /**
+     * 是否只提前装载bean和mapper接口
+     */
+    private boolean lazyLoad;
+
+    /**
+     * 是否按内容摘要做差量刷新，只处理有变化的bean、mapper和接口
+     */
+    private boolean incremental;
+
+    /**
+     * 是否使用独立的类加载器装载扩展包，开启后扩展包可以卸载，重新加载时旧版本的类会被回收
+     */
+    private boolean isolated;
+
+    /**
+     * 类定义完以后字节码的保留策略，默认原样保留到扩展包卸载
+     */
+    private ModuleClassBytes.Retention classBytesRetention = ModuleClassBytes.Retention.KEEP;
+
+    /**
+     * 是否只为扩展包的controller注册springmvc接口，不重新扫描整个容器
+     */
+    private boolean targetedMvc = true;
+
+    /**
+     * 是否蓝绿刷新，新版本的类、mapper、bean和接口全部在旁边准备好，再一次性把流量切过去，需要同时开启isolated
+     */
+    private boolean blueGreen;
+
+    /**
+     * 是否并行解析一个扩展包里的多个mapper.xml
+     */
+    private boolean mapperParallel;
+
+    /**
+     * 释放旧版本前最多等多久让它处理完手上的请求，单位毫秒，小于等于0不等待
+     */
+    private long drainTimeout = 30000;
+
+    /**
+     * 没有打包索引的扩展包运行时生成的索引的磁盘缓存
+     */
+    private ModuleIndexCache indexCache;
+
+    /**
+     * 扩展包地址对应的jar包没变时是否跳过刷新
+     */
+    private boolean skipUnchanged;
+
+    /**
+     * 通过addModuleSource加进来的扩展包来源，排在内置的前面
+     */
+    private final List<ModuleSource> moduleSources = new CopyOnWriteArrayList<>();
+
+    private final ModuleSource directoryModuleSource = new DirectoryModuleSource();
+
+    private final ModuleSource fileModuleSource = new FileModuleSource();
+
+    /**
+     * 配置了下载缓存目录才支持http地址
+     */
+    private HttpModuleSource httpModuleSource;
+
+    /**
+     * 启动时的扩展包加载到哪一步了，开始加载前置为STARTING
+     */
+    private volatile StartupState startupState = StartupState.UP;
+
+    /**
+     * 启动时加载失败的扩展包，扩展包id -> 失败原因，之后刷新成功了就移除
+     */
+    private final Map<String, Throwable> failedModules = new ConcurrentHashMap<>();
+
+    /**
+     * 启动时后台预加载的扩展包，jar包地址 -> 预加载任务
+     */
+    private final Map<String, Future<Preload>> preloads = new ConcurrentHashMap<>();
+
+    /**
+     * 预加载时提前解析好的mapper.xml，xml内容的摘要 -> 解析结果，注册时用掉一个删一个
+     */
+    private final Map<String, XPathParser> preparedParsers = new ConcurrentHashMap<>();
+
+    /**
+     * 蓝绿刷新后在后台释放旧版本
+     */
+    private ExecutorService retireExecutor;
+
+    /**
+     * 所有扩展包当前生效的版本
+     */
+    private final ModuleRegistry moduleRegistry;
+
+    /**
+     * mybatis的Configuration、spring容器和springmvc的注册表都是共享的，多个扩展包可以并行读取jar包和装载类，
+     * 但是往这些地方注册时要一个一个来
+     */
+    private final Object registerLock = new Object();
+
+    private final SwaggerRefresher swaggerRefresher = new SwaggerRefresher();
+
+    /**
+     * 记录着每个namespace注册过哪些东西，所有扩展包共用一个，只在registerLock里使用
+     */
+    private final MapperLoader mapperLoader = new MapperLoader();
+
+    /**
+     * 每个扩展包排队中还没开始执行的刷新任务，同一个扩展包再来刷新请求直接合并到它上面
+     */
+    private final Map<String, ReloadJob> queuedJobs = new HashMap<>();
+
+    /**
+     * 每个扩展包最后提交的刷新任务，新任务接在它后面执行，同一个扩展包同时只有一个线程在刷新
+     */
+    private final Map<String, CompletableFuture<Void>> jobTails = new ConcurrentHashMap<>();
+
+    /**
+     * 刷新每个阶段的耗时和数量
+     */
+    private final ModuleMetrics metrics = new ModuleMetrics();
+
+    /**
+     * 最近的刷新任务，按任务id查询状态
+     */
+    private final Map<String, ReloadJob> jobs = Collections.synchronizedMap(new LinkedHashMap<String, ReloadJob>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ReloadJob> eldest) {
+            return size() > MAX_JOBS;
+        }
+    });
+
+    public ModuleApplication() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param loadThreads 并行加载扩展包的线程数
+     */
+    public ModuleApplication(int loadThreads) {
+        this.moduleRegistry = new ModuleRegistry(loadThreads);
+    }
+
+    /**
+     * 使用spring上下文拿到指定beanName的对象
+     */
+    public <T> T getBean(String beanName) {
+        return (T) ((ConfigurableApplicationContext) applicationContext).getBeanFactory().getBean(beanName);
+    }
+
+    /**
+     * 使用spring上下文拿到指定类型的对象
+     */
+    public <T> T getBean(Class<T> clazz) {
+        return (T) ((ConfigurableApplicationContext) applicationContext).getBeanFactory().getBean(clazz);
+    }
+
+    /**
+     * 并行加载多个外部扩展jar，每个jar是一个独立的扩展包，读取jar包和装载类在线程池里并行执行，注册到spring和mybatis时
+     * 按完成的先后顺序一个一个来。每个扩展包都接在自己的任务链后面，和异步刷新、卸载不会同时进行
+     * @param urls jar url
+     * @param applicationContext spring context
+     * @param sqlSessionFactory mybatis的session工厂
+     */
+    public void reloadJars(List<URL> urls, ApplicationContext applicationContext, SqlSessionFactory sqlSessionFactory) throws Exception {
+        Map<String, Throwable> failures = reloadAll(urls, applicationContext, sqlSessionFactory);
+        if (!failures.isEmpty()) {
+            Throwable failure = failures.values().iterator().next();
+            throw failure instanceof Exception ? (Exception) failure : new ExecutionException(failure);
+        }
+    }
+
+    /**
+     * 并行加载多个扩展包，等全部加载完，一个扩展包失败不影响其它扩展包
+     * @return 加载失败的扩展包id -> 失败原因，按地址的顺序
+     */
+    private Map<String, Throwable> reloadAll(List<URL> urls, ApplicationContext applicationContext,
+                                             SqlSessionFactory sqlSessionFactory) throws InterruptedException {
+        Map<String, Future<?>> futures = new LinkedHashMap<>();
+        for (URL url : urls) {
+            String moduleId = ModuleRegistry.resolveModuleId(url);
+            futures.put(moduleId, enqueue(moduleId, () -> reloadJar(moduleId, url, applicationContext, sqlSessionFactory, null)));
+        }
+        Map<String, Throwable> failures = new LinkedHashMap<>();
+        for (Map.Entry<String, Future<?>> entry : futures.entrySet()) {
+            try {
+                entry.getValue().get();
+            } catch (ExecutionException e) {
+                logger.error("load module '" + entry.getKey() + "' failed", e.getCause());
+                failures.put(entry.getKey(), e.getCause());
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * 启动时在后台预加载扩展包：读取jar包、生成索引、装载类、解析mapper.xml，这些都不依赖spring容器，可以和容器初始化
+     * 同时进行。预加载期间isReady()返回false，之后startJars()注册时直接用预加载的结果
+     * @param urls jar url
+     * @param classLoader 宿主的类加载器
+     * @param sqlSessionFactory 取mybatis的变量解析mapper.xml
+     */
+    public void preloadJars(List<URL> urls, ClassLoader classLoader, SqlSessionFactory sqlSessionFactory) {
+        markStarting();
+        for (URL url : urls) {
+            String moduleId = ModuleRegistry.resolveModuleId(url);
+            preloads.put(url.toString(), moduleRegistry.getExecutor().submit(() -> {
+                Preload preload = load(moduleId, classLoader, fetch(moduleId, url));
+                long start = System.nanoTime();
+                preparedParsers.putAll(mapperLoader.prepare(sqlSessionFactory.getConfiguration(),
+                        preload.classLoader.getXmlBytesMap()));
+                logger.info("preload module '{}' from '{}', mapper xmls parsed in {} ms", moduleId, url,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                return preload;
+            }));
+        }
+    }
+
+    /**
+     * 启动时加载扩展包，有预加载的直接注册预加载的结果。全部加载完之前isReady()返回false，加载完以后不管成功失败
+     * 都返回true，有扩展包失败时状态是DEGRADED，失败的扩展包由getFailedModules()列出，其它扩展包照常生效，
+     * 失败的扩展包之后刷新成功了状态回到UP。有扩展包失败时抛出第一个失败的原因
+     * @param urls jar url
+     * @param applicationContext spring context
+     * @param sqlSessionFactory mybatis的session工厂
+     */
+    public void startJars(List<URL> urls, ApplicationContext applicationContext, SqlSessionFactory sqlSessionFactory) throws Exception {
+        startupState = StartupState.STARTING;
+        failedModules.clear();
+        long start = System.currentTimeMillis();
+        try {
+            Map<String, Throwable> failures = reloadAll(urls, applicationContext, sqlSessionFactory);
+            failedModules.putAll(failures);
+            if (!failures.isEmpty()) {
+                logger.warn("start {} modules cost {} ms, failed: {}", urls.size(), System.currentTimeMillis() - start,
+                        failures.keySet());
+                Throwable failure = failures.values().iterator().next();
+                throw failure instanceof Exception ? (Exception) failure : new ExecutionException(failure);
+            }
+            logger.info("start {} modules cost {} ms", urls.size(), System.currentTimeMillis() - start);
+        } finally {
+            startupState = failedModules.isEmpty() ? StartupState.UP : StartupState.DEGRADED;
+            /**
+             * 没用上的预加载结果不再留着
+             */
+            for (Future<Preload> future : preloads.values()) {
+                future.cancel(false);
+            }
+            preloads.clear();
+            preparedParsers.clear();
+        }
+    }
+
+    /**
+     * 标记启动时有扩展包要加载，startJars()结束之前isReady()返回false
+     */
+    public void markStarting() {
+        startupState = StartupState.STARTING;
+    }
+
+    /**
+     * 启动时的扩展包是否已经加载完，用来回答存活和就绪探针，有扩展包加载失败也算加载完
+     */
+    public boolean isReady() {
+        return startupState != StartupState.STARTING;
+    }
+
+    public StartupState getStartupState() {
+        return startupState;
+    }
+
+    /**
+     * 启动时加载失败、之后也还没刷新成功的扩展包，扩展包id -> 失败原因
+     */
+    public Map<String, Throwable> getFailedModules() {
+        return new TreeMap<>(failedModules);
+    }
+
+    /**
+     * 找到能处理这个地址的ModuleSource，把扩展包地址解析成本地jar包，记录耗时
+     */
+    private ModuleJar fetch(String moduleId, URL url) throws IOException {
+        long start = System.nanoTime();
+        ModuleJar jar = null;
+        for (ModuleSource source : moduleSources) {
+            if (source.supports(url)) {
+                jar = source.resolve(url);
+                break;
+            }
+        }
+        if (jar == null) {
+            if (directoryModuleSource.supports(url)) {
+                jar = directoryModuleSource.resolve(url);
+            } else if (fileModuleSource.supports(url)) {
+                jar = fileModuleSource.resolve(url);
+            } else if (httpModuleSource != null && httpModuleSource.supports(url)) {
+                jar = httpModuleSource.resolve(url);
+            } else {
+                throw new IOException("no module source supports '" + url + "'");
+            }
+        }
+        metrics.record(moduleId, ModuleMetrics.JAR_FETCH, System.nanoTime() - start);
+        return jar;
+    }
+
+    /**
+     * 新建一个类加载器读取jar包并装载类，记录读取和装载的耗时
+     */
+    private Preload load(String moduleId, ClassLoader parent, ModuleJar jar) throws IOException {
+        /**
+         * 这里实际上是将spring的ApplicationContext的类加载器当成parent传给了自定义类加载器，很明自定义的子类加载器自己加载
+         * 的类，parent类加载器直接是获取不到的，所以在自定义类加载器做了特殊的骚操作
+         */
+        ModuleClassLoader moduleClassLoader = new ModuleClassLoader(parent, jar);
+        moduleClassLoader.setParallelLoad(parallelLoad);
+        moduleClassLoader.setLazyLoad(lazyLoad);
+        moduleClassLoader.setIsolated(isolated);
+        moduleClassLoader.setClassBytesRetention(classBytesRetention);
+        moduleClassLoader.setIndexCache(indexCache);
+        /**
+         * 使用模块类加载器加载url资源的jar包，直接返回类的全限定名和Class对象的映射，这些Class对象是
+         * jar包里所有.class结尾的文件加载后的结果,同时mybatis的xml加载后，无奈的放入了
+         * moduleClassLoader.getXmlBytesMap()，不是很优雅
+         */
+        Map<String, Class> classMap;
+        try {
+            classMap = moduleClassLoader.load();
+        } catch (IOException | RuntimeException e) {
+            moduleClassLoader.close();
+            throw e;
+        }
+        metrics.record(moduleId, ModuleMetrics.JAR_SCAN, moduleClassLoader.getScanNanos());
+        metrics.record(moduleId, ModuleMetrics.CLASS_DEFINE, moduleClassLoader.getDefineNanos());
+        metrics.increment(moduleId, ModuleMetrics.CLASSES_DEFINED, moduleClassLoader.getDefinedClassCount());
+        return new Preload(moduleClassLoader, classMap);
+    }
+
+    /**
+     * 拿走一个扩展包的预加载结果，预加载失败时抛出原来的异常
+     */
+    private Preload takePreload(URL url) throws Exception {
+        Future<Preload> future = preloads.remove(url.toString());
+        if (future == null) {
+            return null;
+        }
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * 异步刷新一个扩展包，马上返回任务，任务在加载扩展包的线程池里执行，同一个扩展包的任务一个接一个执行。同一个扩展包
+     * 已经有任务在排队时不会再排一个，直接合并到排队的任务上，返回的也是那个任务
+     * @param url jar url
+     * @param applicationContext spring context
+     * @param sqlSessionFactory mybatis的session工厂
+     * @return 刷新任务，可以用任务id查询进度
+     */
+    public ReloadJob submitReload(URL url, ApplicationContext applicationContext, SqlSessionFactory sqlSessionFactory) {
+        String moduleId = ModuleRegistry.resolveModuleId(url);
+        synchronized (queuedJobs) {
+            ReloadJob queued = queuedJobs.get(moduleId);
+            if (queued != null) {
+                queued.merge(url);
+                logger.info("reload of module '{}' merged into queued job {}", moduleId, queued.getId());
+                return queued;
+            }
+            ReloadJob job = new ReloadJob(UUID.randomUUID().toString(), moduleId, url);
+            queuedJobs.put(moduleId, job);
+            jobs.put(job.getId(), job);
+            enqueue(moduleId, () -> runJob(job, applicationContext, sqlSessionFactory));
+            return job;
+        }
+    }
+
+    /**
+     * 把一个扩展包的操作接在它的任务链后面，同一个扩展包的刷新和卸载不管从哪里发起，都一个接一个执行
+     * @return 操作的结果，失败时带着原来的异常
+     */
+    private CompletableFuture<Void> enqueue(String moduleId, ModuleTask task) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        /**
+         * 链上的任务不能以异常结束，否则后面接着的任务都不会执行了，异常只交给这一次操作的结果
+         */
+        jobTails.compute(moduleId, (id, tail) -> (tail == null ? CompletableFuture.<Void>completedFuture(null) : tail)
+                .thenRunAsync(() -> {
+                    try {
+                        task.run();
+                        result.complete(null);
+                    } catch (Throwable e) {
+                        result.completeExceptionally(e);
+                    }
+                }, moduleRegistry.getExecutor()));
+        return result;
+    }
+
+    /**
+     * 同步等待任务链上的一次操作
+     */
+    private void await(Future<?> future) throws Exception {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * 按任务id查询刷新任务
+     * @param jobId 任务id
+     * @return 任务不存在或者太旧已经被清掉时返回null
+     */
+    public ReloadJob getReloadJob(String jobId) {
+        return jobs.get(jobId);
+    }
+
+    private void runJob(ReloadJob job, ApplicationContext applicationContext, SqlSessionFactory sqlSessionFactory) {
+        /**
+         * 开始执行以后再来的请求要重新排队，因为这次执行不一定能读到它们对应的jar内容
+         */
+        synchronized (queuedJobs) {
+            queuedJobs.remove(job.getModuleId(), job);
+        }
+        job.start();
+        try {
+            reloadJar(job.getModuleId(), job.getUrl(), applicationContext, sqlSessionFactory, job);
+            job.succeed();
+            logger.info("reload job {} done: {}", job.getId(), job);
+        } catch (Throwable e) {
+            /**
+             * 不能把异常抛出去，否则同一个扩展包后面排队的任务都不会执行了
+             */
+            logger.error("reload job " + job.getId() + " of module '" + job.getModuleId() + "' failed", e);
+            job.fail(e);
+        }
+    }
+
+    /**
+     * 加载一个外部扩展jar，包括springmvc接口资源，mybatis的@mapper和mapper.xml和spring bean等资源，扩展包id由jar包文件名得到
+     * @param url jar url
+     * @param applicationContext spring context
+     * @param sqlSessionFactory mybatis的session工厂
+     */
+    public void reloadJar(URL url, ApplicationContext applicationContext,SqlSessionFactory sqlSessionFactory) throws Exception {
+        reloadJar(ModuleRegistry.resolveModuleId(url), url, applicationContext, sqlSessionFactory);
+    }
+
+    /**
+     * 加载一个外部扩展jar，包括springmvc接口资源，mybatis的@mapper和mapper.xml和spring bean等资源
+     * @param moduleId 扩展包id
+     * @param url jar url
+     * @param applicationContext spring context
+     * @param sqlSessionFactory mybatis的session工厂
+     */
+    public void reloadJar(String moduleId, URL url, ApplicationContext applicationContext,SqlSessionFactory sqlSessionFactory) throws Exception {
+        await(enqueue(moduleId, () -> reloadJar(moduleId, url, applicationContext, sqlSessionFactory, null)));
+    }
+
+    /**
+     * 马上执行刷新，只能在扩展包自己的任务链上调用
+     * @param job 异步刷新时记录进度的任务，同步刷新时为空
+     */
+    private void reloadJar(String moduleId, URL url, ApplicationContext applicationContext, SqlSessionFactory sqlSessionFactory,
+                           ReloadJob job) throws Exception {
+        long start = System.nanoTime();
+        try {
+            doReloadJar(moduleId, url, applicationContext, sqlSessionFactory, job);
+            metrics.record(moduleId, ModuleMetrics.RELOAD, System.nanoTime() - start);
+            /**
+             * 启动时失败的扩展包后来刷新成功了，不再算失败
+             */
+            if (failedModules.remove(moduleId) != null && failedModules.isEmpty()
+                    && startupState == StartupState.DEGRADED) {
+                startupState = StartupState.UP;
+            }
+        } catch (Exception e) {
+            metrics.increment(moduleId, ModuleMetrics.RELOAD_FAILURES, 1);
+            throw e;
+        }
+    }
+
+    private void doReloadJar(String moduleId, URL url, ApplicationContext applicationContext, SqlSessionFactory sqlSessionFactory,
+                             ReloadJob job) throws Exception {
+        this.applicationContext = applicationContext;
+        /**
+         * 启动时后台已经预加载过的直接拿来用
+         */
+        Preload preload = takePreload(url);
+        if (preload == null) {
+            phase(job, "fetch");
+            ModuleJar jar = fetch(moduleId, url);
+            /**
+             * 在扩展包自己的任务链上执行，读到的当前版本到注册之前不会被别的刷新或者卸载改掉
+             */
+            Module current = moduleRegistry.get(moduleId);
+            if (skipUnchanged && current != null && jar.getHash().equals(current.getJarHash())) {
+                logger.info("module '{}' jar {} from '{}' unchanged, skip reload", moduleId, jar.getHash(), url);
+                return;
+            }
+            phase(job, "load");
+            preload = load(moduleId, applicationContext.getClassLoader(), jar);
+        }
+        ModuleClassLoader moduleClassLoader = preload.classLoader;
+        Map<String, Class> classMap = preload.classMap;
+
+        if (blueGreen && isolated) {
+            reloadBlueGreen(moduleId, url, moduleClassLoader, classMap, applicationContext, sqlSessionFactory, job);
+            return;
+        }
+
+        phase(job, "lock");
+        synchronized (registerLock) {
+            phase(job, "register");
+            Module previous = moduleRegistry.get(moduleId);
+            Module module = Module.next(moduleId, previous, url);
+            module.setClassLoader(moduleClassLoader);
+            module.setJarHash(moduleClassLoader.getJarHash());
+            if (isolated && previous != null) {
+                if (incremental && previous.getClassHashes().equals(moduleClassLoader.getIndex().getClassHashes())) {
+                    /**
+                     * class都没有变化，继续沿用上个版本的类加载器，新的类加载器只用来读取mapper.xml
+                     */
+                    module.setClassLoader(previous.getClassLoader());
+                    reloadChanged(module, moduleClassLoader.getIndex(), moduleClassLoader.getXmlBytesMap(),
+                            previous.getClassMap(), applicationContext, sqlSessionFactory);
+                    moduleClassLoader.close();
+                    moduleRegistry.register(module);
+                    logger.info("reload module '{}' version {} from '{}' with previous class loader", moduleId, module.getVersion(), url);
+                    return;
+                }
+                replace(previous, url, moduleClassLoader, classMap, applicationContext, sqlSessionFactory, job);
+                return;
+            }
+            if (incremental) {
+                reloadChanged(module, moduleClassLoader.getIndex(), moduleClassLoader.getXmlBytesMap(), classMap,
+                        applicationContext, sqlSessionFactory);
+            } else {
+                /**
+                 * 刷新mybatis的xml和Mapper接口资源，Mapper接口其实就是xml的namespace
+                 */
+                Map<String, Object> extObjMap = refreshMappers(moduleId, mapperLoader, sqlSessionFactory,
+                        moduleClassLoader.getXmlBytesMap(), moduleClassLoader);
+                if (extObjMap == null) {
+                    throw new IllegalStateException("refresh mapper xmls of module '" + moduleId + "' failed");
+                }
+                /**
+                 * 将各种资源放入spring容器
+                 */
+                module.setClassMap(classMap);
+                registerBeans(module, applicationContext, classMap, extObjMap, true);
+                module.setXmlBytesMap(new HashMap<>(moduleClassLoader.getXmlBytesMap()));
+            }
+            moduleRegistry.register(module);
+            logger.info("reload module '{}' version {} from '{}'", moduleId, module.getVersion(), url);
+        }
+    }
+
+    /**
+     * 隔离模式下用新的类加载器替换正在生效的版本，新版本从头注册，旧版本在新版本生效之前一直完整可用，之后等它处理完
+     * 手上的请求再在后台释放：
+     * 1、新版本的mapper.xml注册到它自己的ModuleConfiguration，宿主里和旧版本自己的语句都不动
+     * 2、同名的bean和mapper重新注册前先把旧bean的销毁回调摘下来，旧的bean对象留给手上还有请求的旧版本接着用，销毁回调
+     *    等释放旧版本时再执行
+     * 3、接口最后在springmvc注册表的写锁里一次性从旧版本换成新版本，中间不会有找不到接口的时候
+     * 4、切换之前任何一步失败都释放新版本，旧版本被顶掉的bean放回去，旧版本继续生效
+     */
+    private void replace(Module previous, URL url, ModuleClassLoader moduleClassLoader, Map<String, Class> classMap,
+                         ApplicationContext applicationContext, SqlSessionFactory sqlSessionFactory, ReloadJob job) throws Exception {
+        String moduleId = previous.getId();
+        ConfigurableApplicationContext configurableApplicationContext = (ConfigurableApplicationContext) applicationContext;
+        DefaultListableBeanFactory defaultListableBeanFactory = (DefaultListableBeanFactory) configurableApplicationContext.getBeanFactory();
+
+        phase(job, "mapper");
+        SqlSessionFactory moduleSqlSessionFactory = new DefaultSqlSessionFactory(new ModuleConfiguration(sqlSessionFactory.getConfiguration()));
+        MapperLoader moduleMapperLoader = new MapperLoader();
+        moduleMapperLoader.setParallel(mapperParallel);
+        Map<String, Object> extObjMap = refreshMappers(moduleId, moduleMapperLoader, moduleSqlSessionFactory,
+                moduleClassLoader.getXmlBytesMap(), moduleClassLoader);
+        if (extObjMap == null) {
+            moduleClassLoader.close();
+            throw new IllegalStateException("refresh mapper xmls of module '" + moduleId + "' failed, keep the current version");
+        }
+
+        Module module = new Module(moduleId, previous.getVersion() + 1, url);
+        module.setClassLoader(moduleClassLoader);
+        module.setJarHash(moduleClassLoader.getJarHash());
+        module.setClassMap(classMap);
+        module.setSqlSessionFactory(moduleSqlSessionFactory);
+        module.setMapperLoader(moduleMapperLoader);
+        module.setClassHashes(moduleClassLoader.getIndex().getClassHashes());
+        module.setXmlHashes(moduleClassLoader.getIndex().getXmlHashes());
+        module.setXmlBytesMap(new HashMap<>(moduleClassLoader.getXmlBytesMap()));
+        module.setLastDiff(new ModuleDiff(previous.getClassHashes(), module.getClassHashes(),
+                previous.getXmlHashes(), module.getXmlHashes()));
+        /**
+         * 记下旧版本的bean定义和已经创建好的对象，新版本中途失败时原样放回去
+         */
+        Map<String, BeanDefinition> previousDefinitions = new LinkedHashMap<>();
+        Map<String, Object> previousSingletons = new LinkedHashMap<>();
+        for (String beanName : previous.getBeanNames()) {
+            if (isOwner(previous, beanName) && defaultListableBeanFactory.containsBeanDefinition(beanName)) {
+                previousDefinitions.put(beanName, defaultListableBeanFactory.getBeanDefinition(beanName));
+                previousSingletons.put(beanName, defaultListableBeanFactory.getSingleton(beanName));
+            }
+        }
+        for (String namespace : previous.getMapperNamespaces()) {
+            if (isOwner(previous, namespace)) {
+                previousSingletons.put(namespace, defaultListableBeanFactory.getSingleton(namespace));
+            }
+        }
+        try {
+            phase(job, "beans");
+            detachDisposables(previous, defaultListableBeanFactory);
+            /**
+             * spring里按beanName缓存的注入点、合并定义、代理类型之类的东西要在同名的新bean注册之前清掉，否则新bean会沿用
+             * 旧版本的类型。这些只是缓存，旧版本手上的请求用到时会再填回去，释放时会再清一遍
+             */
+            cleanCaches(previous, applicationContext, sqlSessionFactory);
+            registerBeans(module, applicationContext, classMap, extObjMap, false);
+
+            phase(job, "switch");
+            long start = System.nanoTime();
+            RequestMappingHandlerMapping mappingHandlerMapping = getRequestMappingHandlerMapping(configurableApplicationContext);
+            List<StagedMapping> mappings = detectMappings(module, mappingHandlerMapping, this::getBeanName, defaultListableBeanFactory);
+            checkConflicts(previous, module, mappings, mappingHandlerMapping);
+            swap(previous, module, mappings, mappingHandlerMapping, defaultListableBeanFactory);
+            metrics.record(moduleId, ModuleMetrics.MVC_REFRESH, System.nanoTime() - start);
+            metrics.increment(moduleId, ModuleMetrics.HANDLERS_SWAPPED, mappings.size());
+        } catch (Exception e) {
+            logger.error("replace module '{}' version {} failed, discard it and keep version {}", moduleId, module.getVersion(),
+                    previous.getVersion());
+            /**
+             * 接口还没切过去，新版本没接过流量，直接释放，再把被它顶掉的旧bean放回去
+             */
+            release(module, applicationContext, sqlSessionFactory);
+            restore(previous, previousDefinitions, previousSingletons, defaultListableBeanFactory);
+            throw e;
+        }
+        moduleRegistry.register(module);
+        /**
+         * 流量已经切到新版本，旧版本处理完手上的请求后在后台释放
+         */
+        retire(previous, applicationContext, sqlSessionFactory);
+        phase(job, "swagger");
+        refreshSwagger(moduleId, configurableApplicationContext);
+        logger.info("reload module '{}' version {} from '{}'", moduleId, module.getVersion(), url);
+    }
+
+    /**
+     * 把一个版本的bean的销毁回调从bean工厂里摘下来，之后同名bean重新注册时spring不会马上销毁旧bean，回调留到释放这个版本时执行
+     */
+    private void detachDisposables(Module module, DefaultListableBeanFactory defaultListableBeanFactory) {
+        Map<String, Object> disposableBeans = (Map<String, Object>) Accessors.DISPOSABLE_BEANS.get(defaultListableBeanFactory);
+        synchronized (disposableBeans) {
+            for (String beanName : module.getBeanNames()) {
+                Object disposable = isOwner(module, beanName) ? disposableBeans.remove(beanName) : null;
+                if (disposable instanceof DisposableBean) {
+                    module.getDetachedDisposables().put(beanName, (DisposableBean) disposable);
+                }
+            }
+        }
+    }
+
+    /**
+     * 替换失败、新版本已经释放以后，把旧版本被顶掉的bean定义、bean对象和销毁回调放回bean工厂，beanName重新归旧版本
+     */
+    private void restore(Module previous, Map<String, BeanDefinition> definitions, Map<String, Object> singletons,
+                         DefaultListableBeanFactory defaultListableBeanFactory) {
+        definitions.forEach((beanName, beanDefinition) -> {
+            if (!defaultListableBeanFactory.containsBeanDefinition(beanName)) {
+                defaultListableBeanFactory.registerBeanDefinition(beanName, beanDefinition);
+            }
+        });
+        singletons.forEach((beanName, singleton) -> {
+            if (singleton != null && !defaultListableBeanFactory.containsSingleton(beanName)) {
+                defaultListableBeanFactory.registerSingleton(beanName, singleton);
+            }
+        });
+        previous.getDetachedDisposables().forEach(defaultListableBeanFactory::registerDisposableBean);
+        previous.getDetachedDisposables().clear();
+        definitions.keySet().forEach(beanName -> moduleRegistry.bindBeanName(beanName, previous));
+        singletons.keySet().forEach(beanName -> moduleRegistry.bindBeanName(beanName, previous));
+    }
+
+    /**
+     * 蓝绿刷新，新版本用自己的类加载器和mybatis配置，bean以带版本号的beanName注册并提前创建好，接口也提前算好，这期间
+     * 旧版本照常处理请求。全部准备好以后在springmvc注册表的写锁里一次性换掉接口和beanName别名，之前任何一步失败都只
+     * 丢掉新版本，旧版本不受影响
+     */
+    private void reloadBlueGreen(String moduleId, URL url, ModuleClassLoader moduleClassLoader, Map<String, Class> classMap,
+                                 ApplicationContext applicationContext, SqlSessionFactory sqlSessionFactory, ReloadJob job) throws Exception {
+        long start = System.currentTimeMillis();
+        ConfigurableApplicationContext configurableApplicationContext = (ConfigurableApplicationContext) applicationContext;
+        DefaultListableBeanFactory defaultListableBeanFactory = (DefaultListableBeanFactory) configurableApplicationContext.getBeanFactory();
+
+        /**
+         * mapper.xml注册到新版本自己的Configuration，不碰宿主的Configuration，不需要在registerLock里做
+         */
+        phase(job, "mapper");
+        SqlSessionFactory moduleSqlSessionFactory = new DefaultSqlSessionFactory(new ModuleConfiguration(sqlSessionFactory.getConfiguration()));
+        MapperLoader moduleMapperLoader = new MapperLoader();
+        moduleMapperLoader.setParallel(mapperParallel);
+        Map<String, Object> extObjMap = refreshMappers(moduleId, moduleMapperLoader, moduleSqlSessionFactory,
+                moduleClassLoader.getXmlBytesMap(), moduleClassLoader);
+        if (extObjMap == null) {
+            moduleClassLoader.close();
+            throw new IllegalStateException("stage mapper xmls of module '" + moduleId + "' failed, keep the current version");
+        }
+
+        phase(job, "lock");
+        synchronized (registerLock) {
+            Module previous = moduleRegistry.get(moduleId);
+            Module module = new Module(moduleId, previous == null ? 1 : previous.getVersion() + 1, url);
+            module.setClassLoader(moduleClassLoader);
+            module.setJarHash(moduleClassLoader.getJarHash());
+            module.setClassMap(classMap);
+            module.setSqlSessionFactory(moduleSqlSessionFactory);
+            module.setClassHashes(moduleClassLoader.getIndex().getClassHashes());
+            module.setXmlHashes(moduleClassLoader.getIndex().getXmlHashes());
+            module.setXmlBytesMap(new HashMap<>(moduleClassLoader.getXmlBytesMap()));
+            if (previous != null) {
+                module.setLastDiff(new ModuleDiff(previous.getClassHashes(), module.getClassHashes(),
+                        previous.getXmlHashes(), module.getXmlHashes()));
+            }
+
+            RequestMappingHandlerMapping mappingHandlerMapping = getRequestMappingHandlerMapping(configurableApplicationContext);
+            try {
+                phase(job, "beans");
+                long phaseStart = System.nanoTime();
+                stageBeans(module, defaultListableBeanFactory, extObjMap);
+                metrics.record(moduleId, ModuleMetrics.BEAN_REGISTER, System.nanoTime() - phaseStart);
+                phaseStart = System.nanoTime();
+                List<StagedMapping> mappings = detectMappings(module, mappingHandlerMapping,
+                        className -> versionedBeanName(module, getBeanName(className)), null);
+                checkConflicts(previous, module, mappings, mappingHandlerMapping);
+                phase(job, "switch");
+                swap(previous, module, mappings, mappingHandlerMapping, defaultListableBeanFactory);
+                metrics.record(moduleId, ModuleMetrics.MVC_REFRESH, System.nanoTime() - phaseStart);
+                metrics.increment(moduleId, ModuleMetrics.HANDLERS_SWAPPED, mappings.size());
+            } catch (Exception e) {
+                logger.error("stage module '{}' version {} failed, discard it and keep the current version", moduleId, module.getVersion());
+                /**
+                 * 新版本还没接过流量，不用等
+                 */
+                release(module, applicationContext, sqlSessionFactory);
+                throw e;
+            }
+            moduleRegistry.register(module);
+
+            /**
+             * 流量已经切到新版本，旧版本处理完手上的请求后在后台释放
+             */
+            if (previous != null) {
+                retire(previous, applicationContext, sqlSessionFactory);
+            }
+            phase(job, "swagger");
+            refreshSwagger(module.getId(), configurableApplicationContext);
+            logger.info("blue-green reload module '{}' version {} from '{}' cost {} ms", moduleId, module.getVersion(), url,
+                    System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * 以带版本号的beanName注册新版本的mapper和bean并全部创建出来，这时还没有流量会走到它们
+     */
+    private void stageBeans(Module module, DefaultListableBeanFactory defaultListableBeanFactory, Map<String, Object> extObjMap) throws Exception {
+        extObjMap.forEach((namespace, obj) -> {
+            String beanName = versionedBeanName(module, namespace);
+            defaultListableBeanFactory.registerSingleton(beanName, obj);
+            module.getMapperNamespaces().add(beanName);
+            moduleRegistry.bindBeanName(beanName, module);
+            module.getAliases().put(namespace, beanName);
+        });
+        for (Map.Entry<String, Class> entry : module.getClassMap().entrySet()) {
+            Class<?> clazz = entry.getValue();
+            if (isBeanClass(module, entry.getKey(), clazz)) {
+                String alias = getBeanName(entry.getKey());
+                String beanName = versionedBeanName(module, alias);
+                BeanDefinition beanDefinition = BeanDefinitionBuilder.genericBeanDefinition(clazz).getRawBeanDefinition();
+                beanDefinition.setScope(SINGLETON);
+                defaultListableBeanFactory.registerBeanDefinition(beanName, beanDefinition);
+                module.getBeanNames().add(beanName);
+                moduleRegistry.bindBeanName(beanName, module);
+                module.getAliases().put(alias, beanName);
+            }
+        }
+        /**
+         * 别名和宿主里真实的beanName冲突时不注册别名，不能把宿主的bean挡住
+         */
+        module.getAliases().keySet().removeIf(alias -> {
+            boolean conflict = defaultListableBeanFactory.containsBeanDefinition(alias) || defaultListableBeanFactory.containsSingleton(alias);
+            if (conflict) {
+                logger.warn("bean name '{}' of module '{}' conflicts with an existing bean, alias skipped", alias, module.getId());
+            }
+            return conflict;
+        });
+        instantiateBeans(module, defaultListableBeanFactory, module.getBeanNames());
+    }
+
+    /**
+     * 切换前先检查新版本的接口有没有和不属于旧版本的接口冲突，在写锁里失败的话还要回滚
+     */
+    private void checkConflicts(Module previous, Module module, List<StagedMapping> mappings,
+                                RequestMappingHandlerMapping mappingHandlerMapping) {
+        Map<RequestMappingInfo, HandlerMethod> handlerMethods = mappingHandlerMapping.getHandlerMethods();
+        for (StagedMapping mapping : mappings) {
+            if (handlerMethods.containsKey(mapping.info) && (previous == null || !previous.getMappingInfos().contains(mapping.info))) {
+                throw new IllegalStateException("Ambiguous mapping. Cannot map '" + mapping.beanName + "' method " + mapping.method
+                        + " to " + mapping.info + ": there is already a mapping not owned by module '" + module.getId() + "'");
+            }
+        }
+    }
+
+    /**
+     * 切换流量，持有springmvc注册表的写锁，请求查找接口时要拿读锁，所以切换期间的请求会等切换完成，不会看到一半新一半旧
+     * 的接口。这里只有注册表和别名的内存操作，bean早就创建好了
+     */
+    private void swap(Module previous, Module module, List<StagedMapping> mappings, RequestMappingHandlerMapping mappingHandlerMapping,
+                      DefaultListableBeanFactory defaultListableBeanFactory) throws Exception {
+        Map<RequestMappingInfo, HandlerMethod> previousHandlerMethods = new HashMap<>();
+        if (previous != null) {
+            Map<RequestMappingInfo, HandlerMethod> handlerMethods = mappingHandlerMapping.getHandlerMethods();
+            for (RequestMappingInfo info : previous.getMappingInfos()) {
+                if (handlerMethods.containsKey(info)) {
+                    previousHandlerMethods.put(info, handlerMethods.get(info));
+                }
+            }
+        }
+        /**
+         * spring boot默认不允许覆盖别名，registerAlias会报错，只能直接改别名表，put本身是原子的
+         */
+        Map<String, String> aliasMap = getAliasMap(defaultListableBeanFactory);
+        Lock writeLock = getMappingWriteLock(mappingHandlerMapping);
+        long start = System.nanoTime();
+        writeLock.lock();
+        try {
+            for (RequestMappingInfo info : previousHandlerMethods.keySet()) {
+                mappingHandlerMapping.unregisterMapping(info);
+            }
+            try {
+                for (StagedMapping mapping : mappings) {
+                    mappingHandlerMapping.registerMapping(mapping.info, mapping.handler, mapping.method);
+                    module.getMappingInfos().add(mapping.info);
+                }
+            } catch (RuntimeException e) {
+                for (RequestMappingInfo info : module.getMappingInfos()) {
+                    mappingHandlerMapping.unregisterMapping(info);
+                }
+                module.getMappingInfos().clear();
+                previousHandlerMethods.forEach((info, handlerMethod) ->
+                        mappingHandlerMapping.registerMapping(info, handlerMethod.getBean(), handlerMethod.getMethod()));
+                throw e;
+            }
+            aliasMap.putAll(module.getAliases());
+        } finally {
+            writeLock.unlock();
+        }
+        if (previous != null) {
+            previous.getMappingInfos().clear();
+        }
+        logger.info("switch module '{}' to version {}, {} mappings, paused {} us", module.getId(), module.getVersion(),
+                mappings.size(), (System.nanoTime() - start) / 1000);
+    }
+
+    /**
+     * 在后台等旧版本空闲后再释放，不占着registerLock等，不耽误后面的刷新
+     */
+    private void retire(Module module, ApplicationContext applicationContext, SqlSessionFactory sqlSessionFactory) {
+        getRetireExecutor().execute(() -> {
+            try {
+                drain(module);
+                synchronized (registerLock) {
+                    release(module, applicationContext, sqlSessionFactory);
+                }
+                logger.info("retire module '{}' version {}", module.getId(), module.getVersion());
+            } catch (Exception e) {
+                logger.error("retire module '" + module.getId() + "' version " + module.getVersion() + " error", e);
+            }
+        });
+    }
 
-    private final static String DYNAMIC_DOC_PACKAGE = "dynamic.swagger.doc.package";
+    /**
+     * 等一个版本正在处理的请求全部结束，超时就不等了，不能让旧版本一直留着。请求找到接口和进入拦截器计数之间有一个
+     * 很短的窗口，所以要间隔一次检查连续两次看到0才认为空闲
+     */
+    private void drain(Module module) throws InterruptedException {
+        if (module.isDrained() || drainTimeout <= 0) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        int idleChecks = 0;
+        while (idleChecks < 2) {
+            if (module.getInFlight() > 0) {
+                idleChecks = 0;
+            } else {
+                idleChecks++;
+            }
+            if (idleChecks < 2) {
+                if (System.currentTimeMillis() - start >= drainTimeout) {
+                    logger.warn("module '{}' version {} still has {} in-flight requests after {} ms, release it anyway",
+                            module.getId(), module.getVersion(), module.getInFlight(), drainTimeout);
+                    break;
+                }
+                Thread.sleep(DRAIN_POLL_INTERVAL);
+            }
+        }
+        module.setDrained(true);
+        logger.info("drain module '{}' version {} cost {} ms", module.getId(), module.getVersion(), System.currentTimeMillis() - start);
+    }
 
-    private Set<RequestMappingInfo> extMappingInfos = new HashSet<>();
+    private synchronized ExecutorService getRetireExecutor() {
+        if (retireExecutor == null) {
+            retireExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "module-retirer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return retireExecutor;
+    }
 
-    private ApplicationContext applicationContext;
+    /**
+     * 刷新mapper.xml，顺便记下耗时和重新注册的语句数
+     */
+    private Map<String, Object> refreshMappers(String moduleId, MapperLoader loader, SqlSessionFactory sqlSessionFactory,
+                                               Map<String, byte[]> xmlBytesMap, ClassLoader classLoader) {
+        long start = System.nanoTime();
+        Map<String, Object> extObjMap = loader.refresh(sqlSessionFactory, xmlBytesMap, classLoader, preparedParsers);
+        metrics.record(moduleId, ModuleMetrics.MAPPER_REFRESH, System.nanoTime() - start);
+        metrics.increment(moduleId, ModuleMetrics.STATEMENTS_REPLACED, loader.getLastStatementCount());
+        return extObjMap;
+    }
+
+    private void phase(ReloadJob job, String phase) {
+        if (job != null) {
+            job.phase(phase);
+        }
+    }
 
     /**
-     * 使用spring上下文拿到指定beanName的对象
+     * 优先用类加载器根据字节码判断出的类型，能识别组合注解，判断不了时再反射判断
      */
-    public <T> T getBean(String beanName) {
-        return (T) ((ConfigurableApplicationContext) applicationContext).getBeanFactory().getBean(beanName);
+    private boolean isBeanClass(Module module, String className, Class<?> clazz) {
+        if (clazz == null) {
+            return false;
+        }
+        ModuleClassScanner.Kind kind = getClassKind(module, className);
+        return kind != null ? kind.isBean() : SpringUtil.isSpringBeanClass(clazz);
+    }
+
+    private boolean isControllerClass(Module module, String className, Class<?> clazz) {
+        if (clazz == null) {
+            return false;
+        }
+        ModuleClassScanner.Kind kind = getClassKind(module, className);
+        return kind != null ? kind == ModuleClassScanner.Kind.CONTROLLER
+                : SpringUtil.isSpringBeanClass(clazz) && SpringUtil.isControllerClass(clazz);
+    }
+
+    private ModuleClassScanner.Kind getClassKind(Module module, String className) {
+        return module.getClassLoader() == null ? null : module.getClassLoader().getClassKind(className);
+    }
+
+    private String versionedBeanName(Module module, String beanName) {
+        return beanName + "@v" + module.getVersion();
+    }
+
+    private Map<String, String> getAliasMap(DefaultListableBeanFactory defaultListableBeanFactory) {
+        return (Map<String, String>) Accessors.ALIAS_MAP.get(defaultListableBeanFactory);
+    }
+
+    private Lock getMappingWriteLock(RequestMappingHandlerMapping mappingHandlerMapping) throws Exception {
+        Object mappingRegistry = Accessors.GET_MAPPING_REGISTRY.invoke(mappingHandlerMapping);
+        return ((ReadWriteLock) Accessors.READ_WRITE_LOCK.get(mappingRegistry)).writeLock();
     }
 
     /**
-     * 使用spring上下文拿到指定类型的对象
+     * 差量刷新，和上一次加载的版本比较每个class和mapper.xml的摘要，只重新注册内容有变化的bean和mapper，有controller变化时
+     * 才刷新springmvc和swagger，摘要直接从新版本jar包的索引里拿
      */
-    public <T> T getBean(Class<T> clazz) {
-        return (T) ((ConfigurableApplicationContext) applicationContext).getBeanFactory().getBean(clazz);
+    private void reloadChanged(Module module, ModuleIndex index, Map<String, byte[]> xmlBytesMap,
+                               Map<String, Class> classMap,
+                               ApplicationContext applicationContext, SqlSessionFactory sqlSessionFactory) throws Exception {
+        long start = System.currentTimeMillis();
+        ModuleClassLoader moduleClassLoader = module.getClassLoader();
+        Map<String, String> newClassHashes = index.getClassHashes();
+        Map<String, String> newXmlHashes = index.getXmlHashes();
+        ModuleDiff diff = new ModuleDiff(module.getClassHashes(), newClassHashes, module.getXmlHashes(), newXmlHashes);
+        /**
+         * 非隔离模式下类被塞进了parent，同名的类不能重新定义，parent会一直返回旧的类，再注册bean也还是旧的逻辑，
+         * 只能在改动任何东西之前拒绝
+         */
+        if (!moduleClassLoader.isIsolated() && !diff.getModifiedClasses().isEmpty()) {
+            throw new IllegalStateException("module '" + module.getId() + "' changed classes " + diff.getModifiedClasses()
+                    + ", which can not be redefined without dynamic.load.isolated=true, restart the application or enable it");
+        }
+
+        DefaultListableBeanFactory defaultListableBeanFactory = (DefaultListableBeanFactory) ((ConfigurableApplicationContext) applicationContext).getBeanFactory();
+        /**
+         * 替换过的版本的mapper.xml注册在它自己的ModuleConfiguration里，差量刷新也刷新到那里
+         */
+        if (module.getSqlSessionFactory() != null) {
+            sqlSessionFactory = module.getSqlSessionFactory();
+        }
+        MapperLoader moduleMapperLoader = module.getMapperLoader() != null ? module.getMapperLoader() : mapperLoader;
+
+        /**
+         * 先清掉已经被删除的mapper.xml
+         */
+        if (!diff.getRemovedXmls().isEmpty()) {
+            Set<String> namespaces = moduleMapperLoader.remove(sqlSessionFactory, filter(module.getXmlBytesMap(), diff.getRemovedXmls()), moduleClassLoader);
+            for (String namespace : namespaces) {
+                if (defaultListableBeanFactory.containsSingleton(namespace)) {
+                    defaultListableBeanFactory.destroySingleton(namespace);
+                }
+                module.getMapperNamespaces().remove(namespace);
+                moduleRegistry.unbindBeanNames(Collections.singleton(namespace), module);
+            }
+        }
+
+        /**
+         * 只刷新有变化的mapper.xml
+         */
+        Map<String, Object> extObjMap = refreshMappers(module.getId(), moduleMapperLoader, sqlSessionFactory,
+                filter(xmlBytesMap, diff.getChangedXmls()), moduleClassLoader);
+        if (extObjMap == null) {
+            throw new IllegalStateException("refresh changed mapper xmls of module '" + module.getId() + "' failed");
+        }
+
+        /**
+         * 再清掉已经被删除的bean
+         */
+        boolean controllerChanged = false;
+        for (String className : diff.getRemovedClasses()) {
+            Class<?> clazz = module.getClassMap().get(className);
+            if (isBeanClass(module, className, clazz)) {
+                String beanName = getBeanName(className);
+                if (defaultListableBeanFactory.containsBeanDefinition(beanName)) {
+                    defaultListableBeanFactory.removeBeanDefinition(beanName);
+                }
+                module.getBeanNames().remove(beanName);
+                moduleRegistry.unbindBeanNames(Collections.singleton(beanName), module);
+                controllerChanged |= isControllerClass(module, className, clazz);
+            }
+        }
+
+        /**
+         * 只重新注册有变化的bean
+         */
+        Map<String, Class> changedClassMap = filter(classMap, diff.getChangedClasses());
+        for (Map.Entry<String, Class> entry : changedClassMap.entrySet()) {
+            controllerChanged |= isControllerClass(module, entry.getKey(), entry.getValue());
+        }
+        module.setClassMap(classMap);
+        registerBeans(module, applicationContext, changedClassMap, extObjMap, controllerChanged);
+
+        module.setClassHashes(newClassHashes);
+        module.setXmlHashes(newXmlHashes);
+        module.setXmlBytesMap(new HashMap<>(xmlBytesMap));
+        module.setLastDiff(diff);
+        logger.info("incremental reload module '{}' cost {} ms, mvc refreshed: {}, {}", module.getId(),
+                System.currentTimeMillis() - start, controllerChanged, diff);
     }
 
     /**
-     * 加载一个外部扩展jar，包括springmvc接口资源，mybatis的@mapper和mapper.xml和spring bean等资源
-     * @param url jar url
+     * 卸载一个扩展包，注销springmvc接口、spring bean和mybatis的mapper，清理各种缓存后关闭类加载器
+     * @param moduleId 扩展包id
      * @param applicationContext spring context
      * @param sqlSessionFactory mybatis的session工厂
+     * @return 扩展包不存在时返回false
      */
-    public void reloadJar(URL url, ApplicationContext applicationContext,SqlSessionFactory sqlSessionFactory) throws Exception {
-        this.applicationContext = applicationContext;
-        URL[] urls = new URL[]{url};
-        /**
-         * 这里实际上是将spring的ApplicationContext的类加载器当成parent传给了自定义类加载器，很明自定义的子类加载器自己加载
-         * 的类，parent类加载器直接是获取不到的，所以在自定义类加载器做了特殊的骚操作
-         */
-        ModuleClassLoader moduleClassLoader = new ModuleClassLoader(applicationContext.getClassLoader(), urls);
+    public boolean unloadModule(String moduleId, ApplicationContext applicationContext, SqlSessionFactory sqlSessionFactory) throws Exception {
+        AtomicBoolean unloaded = new AtomicBoolean();
+        await(enqueue(moduleId, () -> unloaded.set(doUnloadModule(moduleId, applicationContext, sqlSessionFactory))));
+        return unloaded.get();
+    }
+
+    private boolean doUnloadModule(String moduleId, ApplicationContext applicationContext, SqlSessionFactory sqlSessionFactory) throws Exception {
+        Module module;
+        synchronized (registerLock) {
+            module = moduleRegistry.remove(moduleId);
+            if (module == null) {
+                return false;
+            }
+            unregisterMappings(module, applicationContext);
+            refreshSwagger((ConfigurableApplicationContext) applicationContext);
+        }
         /**
-         * 使用模块类加载器加载url资源的jar包，直接返回类的全限定名和Class对象的映射，这些Class对象是
-         * jar包里所有.class结尾的文件加载后的结果,同时mybatis的xml加载后，无奈的放入了
-         * moduleClassLoader.getXmlBytesMap()，不是很优雅
+         * 接口已经没了，新请求不会再进来，不占着registerLock等已经进来的请求处理完，再销毁bean和mapper
          */
-        Map<String, Class> classMap = moduleClassLoader.load();
+        drain(module);
+        synchronized (registerLock) {
+            release(module, applicationContext, sqlSessionFactory);
+        }
+        logger.info("unload module '{}' version {}", moduleId, module.getVersion());
+        return true;
+    }
+
+    /**
+     * 注销一个扩展包版本的springmvc接口，之后新请求不会再进到这个版本
+     */
+    private void unregisterMappings(Module module, ApplicationContext applicationContext) {
+        RequestMappingHandlerMapping mappingHandlerMapping = getRequestMappingHandlerMapping((ConfigurableApplicationContext) applicationContext);
+        for (RequestMappingInfo requestMappingInfo : module.getMappingInfos()) {
+            mappingHandlerMapping.unregisterMapping(requestMappingInfo);
+        }
+        module.getMappingInfos().clear();
+    }
+
+    /**
+     * 释放一个扩展包版本注册过的所有东西，在registerLock里调用。这里不等请求，调用前要么已经drain过，要么这个版本
+     * 从来没接过流量。同名的bean和mapper已经被新版本覆盖的不动
+     */
+    private void release(Module module, ApplicationContext applicationContext, SqlSessionFactory sqlSessionFactory) throws Exception {
+        ConfigurableApplicationContext configurableApplicationContext = (ConfigurableApplicationContext) applicationContext;
+        DefaultListableBeanFactory defaultListableBeanFactory = (DefaultListableBeanFactory) configurableApplicationContext.getBeanFactory();
 
-        MapperLoader mapperLoader = new MapperLoader();
+        unregisterMappings(module, applicationContext);
 
         /**
-         * 刷新mybatis的xml和Mapper接口资源，Mapper接口其实就是xml的namespace
+         * 蓝绿刷新注册的别名还指向这个版本的话一起删掉，已经切到新版本的别名不动
+         */
+        if (!module.getAliases().isEmpty()) {
+            Map<String, String> aliasMap = getAliasMap(defaultListableBeanFactory);
+            module.getAliases().forEach(aliasMap::remove);
+            module.getAliases().clear();
+        }
+        for (String beanName : module.getBeanNames()) {
+            if (isOwner(module, beanName) && defaultListableBeanFactory.containsBeanDefinition(beanName)) {
+                defaultListableBeanFactory.removeBeanDefinition(beanName);
+            }
+        }
+        for (String namespace : module.getMapperNamespaces()) {
+            if (isOwner(module, namespace) && defaultListableBeanFactory.containsSingleton(namespace)) {
+                defaultListableBeanFactory.destroySingleton(namespace);
+            }
+        }
+        /**
+         * 被新版本同名bean顶掉的旧bean到这里才执行销毁回调，倒着执行，和spring销毁单例的顺序一致
          */
-        Map<String, Object> extObjMap = mapperLoader.refresh(sqlSessionFactory, moduleClassLoader.getXmlBytesMap());
+        List<Map.Entry<String, DisposableBean>> disposables = new ArrayList<>(module.getDetachedDisposables().entrySet());
+        Collections.reverse(disposables);
+        for (Map.Entry<String, DisposableBean> disposable : disposables) {
+            try {
+                disposable.getValue().destroy();
+            } catch (Throwable e) {
+                logger.warn("destroy bean '{}' of module '{}' version {} error", disposable.getKey(), module.getId(),
+                        module.getVersion(), e);
+            }
+        }
+        module.getDetachedDisposables().clear();
         /**
-         * 将各种资源放入spring容器
+         * 蓝绿刷新和替换过的版本用的是自己的Configuration，丢掉就行，不用清理宿主的
          */
-        registerBeans(applicationContext, classMap, extObjMap);
+        if (module.getSqlSessionFactory() == null) {
+            mapperLoader.remove(sqlSessionFactory, module.getXmlBytesMap(), module.getClassLoader());
+        }
+        module.setSqlSessionFactory(null);
+        module.setMapperLoader(null);
+
+        ModuleClassLoader moduleClassLoader = module.getClassLoader();
+        if (moduleClassLoader != null && moduleClassLoader.isIsolated()) {
+            cleanCaches(module, applicationContext, sqlSessionFactory);
+            moduleClassLoader.close();
+        }
+        moduleRegistry.unbindBeanNames(module.getBeanNames(), module);
+        moduleRegistry.unbindBeanNames(module.getMapperNamespaces(), module);
+        module.getBeanNames().clear();
+        module.getMapperNamespaces().clear();
+        module.getClassMap().clear();
+    }
+
+    /**
+     * 清理spring、springmvc、mybatis里引用着这个版本的类或者beanName的缓存
+     */
+    private void cleanCaches(Module module, ApplicationContext applicationContext, SqlSessionFactory sqlSessionFactory) {
+        Set<String> names = new HashSet<>(module.getBeanNames());
+        names.addAll(module.getMapperNamespaces());
+        ModuleCacheCleaner.clean(module.getClassLoader(), (DefaultListableBeanFactory) ((ConfigurableApplicationContext) applicationContext)
+                .getBeanFactory(), sqlSessionFactory.getConfiguration(), names);
+    }
+
+    /**
+     * 同名的bean被新版本重新注册以后归新版本所有
+     */
+    private boolean isOwner(Module module, String beanName) {
+        Module owner = moduleRegistry.findByBeanName(beanName);
+        return owner == null || owner == module;
+    }
+
+    private <T> Map<String, T> filter(Map<String, T> map, Set<String> keys) {
+        Map<String, T> result = new HashMap<>();
+        for (String key : keys) {
+            if (map.containsKey(key)) {
+                result.put(key, map.get(key));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 最近一次差量刷新的结果，包括哪些class和mapper.xml被跳过了
+     * @param moduleId 扩展包id
+     */
+    public ModuleDiff getLastDiff(String moduleId) {
+        Module module = moduleRegistry.get(moduleId);
+        return module == null ? null : module.getLastDiff();
+    }
+
+    /**
+     * 刷新每个阶段的耗时和数量，按扩展包分组
+     */
+    public ModuleMetrics getMetrics() {
+        return metrics;
+    }
+
+    public ModuleRegistry getModuleRegistry() {
+        return moduleRegistry;
+    }
+
+    public void setParallelLoad(boolean parallelLoad) {
+        this.parallelLoad = parallelLoad;
+    }
+
+    public void setLazyLoad(boolean lazyLoad) {
+        this.lazyLoad = lazyLoad;
+    }
+
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public void setIsolated(boolean isolated) {
+        this.isolated = isolated;
+    }
+
+    public void setClassBytesRetention(ModuleClassBytes.Retention classBytesRetention) {
+        this.classBytesRetention = classBytesRetention;
+    }
+
+    public void setTargetedMvc(boolean targetedMvc) {
+        this.targetedMvc = targetedMvc;
+    }
+
+    public void setBlueGreen(boolean blueGreen) {
+        this.blueGreen = blueGreen;
+    }
+
+    /**
+     * 没有打包索引的扩展包运行时生成的索引缓存到哪个目录，为空不缓存
+     */
+    public void setIndexCacheDir(String indexCacheDir) {
+        this.indexCache = StringUtils.hasText(indexCacheDir) ? new ModuleIndexCache(new File(indexCacheDir)) : null;
+    }
+
+    /**
+     * 下载下来的扩展包缓存到哪个目录，为空时不支持http地址
+     * @param jarCacheDir 缓存目录
+     * @param connectTimeout 连接超时，单位毫秒
+     * @param readTimeout 读取超时，单位毫秒
+     */
+    public void setJarCacheDir(String jarCacheDir, int connectTimeout, int readTimeout) {
+        if (!StringUtils.hasText(jarCacheDir)) {
+            this.httpModuleSource = null;
+            return;
+        }
+        HttpModuleSource httpModuleSource = new HttpModuleSource(new ModuleJarCache(new File(jarCacheDir)));
+        httpModuleSource.setConnectTimeout(connectTimeout);
+        httpModuleSource.setReadTimeout(readTimeout);
+        this.httpModuleSource = httpModuleSource;
+    }
+
+    /**
+     * 加一个扩展包来源，先加的先用，都排在内置的本地jar包、目录和http前面
+     */
+    public void addModuleSource(ModuleSource moduleSource) {
+        moduleSources.add(moduleSource);
+    }
+
+    /**
+     * 扩展包地址对应的jar包内容和当前生效的版本一样时是否跳过刷新
+     */
+    public void setSkipUnchanged(boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+    }
+
+    /**
+     * 释放旧版本前最多等多久让它处理完手上的请求，单位毫秒
+     */
+    public void setDrainTimeout(long drainTimeout) {
+        this.drainTimeout = drainTimeout;
+    }
+
+    /**
+     * 是否并行解析一个扩展包里的多个mapper.xml
+     */
+    public void setMapperParallel(boolean mapperParallel) {
+        this.mapperParallel = mapperParallel;
+        mapperLoader.setParallel(mapperParallel);
+    }
+
+    /**
+     * 是否在后台线程重新生成扩展包的swagger文档，不阻塞刷新扩展包的线程
+     */
+    public void setSwaggerAsync(boolean swaggerAsync) {
+        swaggerRefresher.setAsync(swaggerAsync);
+    }
+
+    @Override
+    public void destroy() {
+        moduleRegistry.shutdown();
+        swaggerRefresher.shutdown();
+        synchronized (this) {
+            if (retireExecutor != null) {
+                retireExecutor.shutdownNow();
+            }
+        }
     }
 
     /**
      * 装载bean到spring中
      *
+     * @param module 扩展包
      * @param applicationContext
      * @param cacheClassMap
+     * @param refreshMvc 是否需要刷新springmvc和swagger，没有controller变化时可以跳过
      */
-    public void registerBeans(ApplicationContext applicationContext, Map<String, Class> cacheClassMap,Map<String,Object> extObjMap) throws Exception {
+    public void registerBeans(Module module, ApplicationContext applicationContext, Map<String, Class> cacheClassMap,
+                              Map<String,Object> extObjMap, boolean refreshMvc) throws Exception {
+        long start = System.nanoTime();
         /**
          * 将applicationContext转换为ConfigurableApplicationContext
          */
@@ -127,23 +1444,24 @@ public class ModuleApplication {
                     defaultListableBeanFactory.destroySingleton(beanName);
                 }
                 defaultListableBeanFactory.registerSingleton(beanName,obj);
+                module.getMapperNamespaces().add(beanName);
+                moduleRegistry.bindBeanName(beanName, module);
             });
         }
 
+        List<String> beanNames = new ArrayList<>();
         for (Map.Entry<String, Class> entry : cacheClassMap.entrySet()) {
             String className = entry.getKey();
             Class<?> clazz = entry.getValue();
-            if (SpringUtil.isSpringBeanClass(clazz)) {
-                //将变量首字母置小写
-                String beanName = StringUtils.uncapitalize(className);
-                beanName = beanName.substring(beanName.lastIndexOf(".") + 1);
-                beanName = StringUtils.uncapitalize(beanName);
+            if (isBeanClass(module, className, clazz)) {
+                String beanName = getBeanName(className);
 
                /**
                  * 已经在spring容器就删了
                  */
                 if (defaultListableBeanFactory.containsBeanDefinition(beanName)) {
                     defaultListableBeanFactory.removeBeanDefinition(beanName);
+                    ModuleCacheCleaner.evictMergedBeanDefinition(defaultListableBeanFactory, beanName);
                 }
                 /**
                  * 使用spring的BeanDefinitionBuilder将Class对象转成BeanDefinition
@@ -156,38 +1474,95 @@ public class ModuleApplication {
                  * 以指定beanName注册上面生成的BeanDefinition
                  */
                 defaultListableBeanFactory.registerBeanDefinition(beanName, beanDefinition);
+                module.getBeanNames().add(beanName);
+                moduleRegistry.bindBeanName(beanName, module);
+                beanNames.add(beanName);
             }
 
         }
 
         /**
-         * 刷新springmvc，让新增的接口生效
+         * 隔离模式下马上创建出扩展包的bean，让aop和事务的代理类也生成在扩展包的类加载器里，否则代理类生成在spring的类加载器
+         * 里会找不到扩展包的类，而且会一直引用着扩展包的类导致回收不掉
          */
-        refreshMVC((ConfigurableApplicationContext) applicationContext);
+        if (isolated) {
+            instantiateBeans(module, defaultListableBeanFactory, beanNames);
+        }
+        metrics.record(module.getId(), ModuleMetrics.BEAN_REGISTER, System.nanoTime() - start);
+
+        /**
+         * 刷新springmvc，让新增的接口生效，再刷新swagger文档
+         */
+        if (refreshMvc) {
+            start = System.nanoTime();
+            refreshMVC(module, configurableApplicationContext);
+            metrics.record(module.getId(), ModuleMetrics.MVC_REFRESH, System.nanoTime() - start);
+            metrics.increment(module.getId(), ModuleMetrics.HANDLERS_SWAPPED, module.getMappingInfos().size());
+            refreshSwagger(module.getId(), configurableApplicationContext);
+        }
+
+    }
+
+    /**
+     * 把代理的类加载器临时换成扩展包的类加载器，再创建bean
+     */
+    private void instantiateBeans(Module module, DefaultListableBeanFactory defaultListableBeanFactory, Collection<String> beanNames) throws Exception {
+        Map<ProxyProcessorSupport, ClassLoader> proxyClassLoaders = new HashMap<>();
+        for (BeanPostProcessor processor : defaultListableBeanFactory.getBeanPostProcessors()) {
+            if (processor instanceof ProxyProcessorSupport) {
+                proxyClassLoaders.put((ProxyProcessorSupport) processor, (ClassLoader) Accessors.PROXY_CLASS_LOADER.get(processor));
+                ((ProxyProcessorSupport) processor).setProxyClassLoader(module.getClassLoader());
+            }
+        }
+        try {
+            for (String beanName : beanNames) {
+                if (defaultListableBeanFactory.containsBeanDefinition(beanName)) {
+                    defaultListableBeanFactory.getBean(beanName);
+                }
+            }
+        } finally {
+            proxyClassLoaders.forEach(ProxyProcessorSupport::setProxyClassLoader);
+        }
+    }
+
+    private RequestMappingHandlerMapping getRequestMappingHandlerMapping(ConfigurableApplicationContext applicationContext) {
+        return applicationContext.getBeanFactory().getBean("requestMappingHandlerMapping", RequestMappingHandlerMapping.class);
+    }
 
+    /**
+     * 根据类的全限定名得到beanName
+     */
+    private String getBeanName(String className) {
+        return SpringUtil.getBeanName(className);
     }
 
     /**
      * 刷新springMVC,这里花了大量时间调试，找不到开放的方法，只能取个巧，在更新RequestMappingHandlerMapping前先记录之前
      * 所有RequestMappingInfo，记得这里一定要copy一下，然后刷新后再记录一次，计算出差量存放在成员变量Set中，然后每次开头判断
-     * 差量那里是否有内容，有就先unregiester掉
+     * 差量那里是否有内容，有就先unregiester掉。默认走registerMappings只注册扩展包自己的接口，上面这种全量刷新的方式
+     * 只在dynamic.mvc.targeted=false时使用
      */
-    private void refreshMVC(ConfigurableApplicationContext applicationContext) throws Exception {
+    private void refreshMVC(Module module, ConfigurableApplicationContext applicationContext) throws Exception {
 
 
-        Map<String, RequestMappingHandlerMapping> map = applicationContext.getBeanFactory().getBeansOfType(RequestMappingHandlerMapping.class);
         /**
          * 先拿到RequestMappingHandlerMapping对象
          */
-        RequestMappingHandlerMapping mappingHandlerMapping = map.get("requestMappingHandlerMapping");
+        RequestMappingHandlerMapping mappingHandlerMapping = getRequestMappingHandlerMapping(applicationContext);
 
         /**
          * 重新注册mapping前先判断是否存在了，存在了就先unregister掉
          */
-        if(!extMappingInfos.isEmpty()) {
-            for(RequestMappingInfo requestMappingInfo:extMappingInfos) {
+        if(!module.getMappingInfos().isEmpty()) {
+            for(RequestMappingInfo requestMappingInfo:module.getMappingInfos()) {
                 mappingHandlerMapping.unregisterMapping(requestMappingInfo);
             }
+            module.getMappingInfos().clear();
+        }
+
+        if (targetedMvc) {
+            registerMappings(module, mappingHandlerMapping, applicationContext.getBeanFactory());
+            return;
         }
 
         /**
@@ -216,7 +1591,7 @@ public class ModuleApplication {
         /**
          * 填充差量部分RequestMappingInfo
           */
-        fillSurplusRequestMappingInfos(preRequestMappingInfoSet,afterRequestMappingInfoSet);
+        fillSurplusRequestMappingInfos(module, preRequestMappingInfoSet,afterRequestMappingInfoSet);
 
         /**
          * 这里真的是不讲武德了，每次调用value.afterPropertiesSet();如下urlLookup都会产生重复，暂时没找到开放方法去掉重复，这里重复会导致
@@ -227,22 +1602,71 @@ public class ModuleApplication {
          * protected方法的，因为这个方法不属于子类，只有父类才可以访问到，只有你拿得到你才有资格不讲武德的使用method.setAccessible(true)强行
          * 访问
          */
-        Method method = ReflectUtil.getMethod(mappingHandlerMapping,"getMappingRegistry",new Class[]{});
-        method.setAccessible(true);
-        Object mappingRegistryObj = method.invoke(mappingHandlerMapping,new Object[]{});
-        Field field = mappingRegistryObj.getClass().getDeclaredField("urlLookup");
-        field.setAccessible(true);
-        MultiValueMap<String, RequestMappingInfo> multiValueMap = (MultiValueMap)field.get(mappingRegistryObj);
+        Object mappingRegistryObj = Accessors.GET_MAPPING_REGISTRY.invoke(mappingHandlerMapping);
+        MultiValueMap<String, RequestMappingInfo> multiValueMap = (MultiValueMap) Accessors.URL_LOOKUP.get(mappingRegistryObj);
         multiValueMap.forEach((key,list) -> {
             clearMultyMapping(list);
         });
+    }
 
+
+    /**
+     * 只为扩展包里的controller生成RequestMappingInfo并直接注册，耗时只和扩展包的接口数有关，和宿主应用有多少bean无关，
+     * 也不会产生urlLookup重复的问题
+     */
+    private void registerMappings(Module module, RequestMappingHandlerMapping mappingHandlerMapping,
+                                  BeanFactory beanFactory) throws Exception {
+        for (StagedMapping mapping : detectMappings(module, mappingHandlerMapping, this::getBeanName,
+                isolated ? beanFactory : null)) {
+            mappingHandlerMapping.registerMapping(mapping.info, mapping.handler, mapping.method);
+            module.getMappingInfos().add(mapping.info);
+        }
+    }
+
+    /**
+     * 算出扩展包里controller的所有接口，先不注册
+     * @param beanNames 由类的全限定名得到beanName
+     * @param beanFactory 不为空时接口直接绑定已经创建好的controller对象，不在每次请求时按beanName查找。隔离模式下替换
+     *                    版本时同名的beanName很快就换成了新版本的bean，旧版本的接口在切换之前还要一直调用旧版本的对象
+     */
+    private List<StagedMapping> detectMappings(Module module, RequestMappingHandlerMapping mappingHandlerMapping,
+                                               Function<String, String> beanNames, BeanFactory beanFactory) throws Exception {
+        List<StagedMapping> mappings = new ArrayList<>();
         /**
-         * 刷新swagger文档
+         * getMappingForMethod是protected的，只能反射调用，它会合并类和方法上的@RequestMapping
          */
-        refreshSwagger(applicationContext);
+        for (Map.Entry<String, Class> entry : module.getClassMap().entrySet()) {
+            Class<?> clazz = entry.getValue();
+            if (!isControllerClass(module, entry.getKey(), clazz)) {
+                continue;
+            }
+            String beanName = beanNames.apply(entry.getKey());
+            Object handler = beanFactory == null ? beanName : beanFactory.getBean(beanName);
+            Class<?> userType = ClassUtils.getUserClass(clazz);
+            Map<Method, RequestMappingInfo> methods = MethodIntrospector.selectMethods(userType,
+                    (MethodIntrospector.MetadataLookup<RequestMappingInfo>) method -> {
+                        try {
+                            return (RequestMappingInfo) Accessors.GET_MAPPING_FOR_METHOD.invoke(mappingHandlerMapping, method, userType);
+                        } catch (Exception e) {
+                            throw new IllegalStateException("Invalid mapping on handler class [" + userType.getName() + "]: " + method, e);
+                        }
+                    });
+            for (Map.Entry<Method, RequestMappingInfo> mapping : methods.entrySet()) {
+                Method invocableMethod = AopUtils.selectInvocableMethod(mapping.getKey(), userType);
+                mappings.add(new StagedMapping(mapping.getValue(), beanName, handler, invocableMethod));
+            }
+        }
+        return mappings;
     }
 
+    /**
+     * 刷新swagger文档并记下耗时，异步模式下只是提交到后台的耗时
+     */
+    private void refreshSwagger(String moduleId, ConfigurableApplicationContext applicationContext) throws Exception {
+        long start = System.nanoTime();
+        refreshSwagger(applicationContext);
+        metrics.record(moduleId, ModuleMetrics.SWAGGER_REFRESH, System.nanoTime() - start);
+    }
 
     /**
      * 刷新swagger文档
@@ -262,16 +1686,12 @@ public class ModuleApplication {
             /**
              * 不管愿不愿意，强行拿到属性得到documentationPluginsManager对象
              */
-            Field field1 = bootstrapper.getClass().getDeclaredField("documentationPluginsManager");
-            field1.setAccessible(true);
-            DocumentationPluginsManager documentationPluginsManager = (DocumentationPluginsManager) field1.get(bootstrapper);
+            DocumentationPluginsManager documentationPluginsManager = (DocumentationPluginsManager) Accessors.DOCUMENTATION_PLUGINS_MANAGER.get(bootstrapper);
 
             /**
              * 继续往下层拿documentationPlugins属性
              */
-            Field field2 = documentationPluginsManager.getClass().getDeclaredField("documentationPlugins");
-            field2.setAccessible(true);
-            PluginRegistry<DocumentationPlugin, DocumentationType> pluginRegistrys = (PluginRegistry<DocumentationPlugin, DocumentationType>) field2.get(documentationPluginsManager);
+            PluginRegistry<DocumentationPlugin, DocumentationType> pluginRegistrys = (PluginRegistry<DocumentationPlugin, DocumentationType>) Accessors.DOCUMENTATION_PLUGINS.get(documentationPluginsManager);
             /**
              * 拿到最关键的文档插件集合，所有逻辑文档解析逻辑都在插件中
              */
@@ -279,9 +1699,7 @@ public class ModuleApplication {
             /**
              * 真的不能怪我，好端端，你还搞个不能修改的集合，强行往父类递归拿到unmodifiableList的list属性
              */
-            Field unModList = ReflectUtil.getField(dockets,"list");
-            unModList.setAccessible(true);
-            List<DocumentationPlugin> modifyerList = (List<DocumentationPlugin>) unModList.get(dockets);
+            List<DocumentationPlugin> modifyerList = (List<DocumentationPlugin>) Accessors.UNMODIFIABLE_LIST.get(dockets);
             /**
              * 清掉已经存在的dynamic分组
              */
@@ -289,15 +1707,12 @@ public class ModuleApplication {
             /**
              * 这下老实了吧，把自己的Docket加入进去，这里的groupName为dynamic
              */
-            modifyerList.add(createRestApi(extSwaggerDocPackage));
-            /**
-             * 清空罪魁祸首DocumentationCache缓存，不然就算再加载一次，获取文档还是从这个缓存中拿，不会完成更新
-             */
-            bootstrapper.stop();
+            Docket docket = createRestApi(extSwaggerDocPackage);
+            modifyerList.add(docket);
             /**
-             * 手动执行重新解析swagger文档
+             * 只重新解析dynamic分组，覆盖掉DocumentationCache里的旧文档，异步模式下在后台线程解析
              */
-            bootstrapper.start();
+            swaggerRefresher.refresh(bootstrapper, docket);
         }
     }
 
@@ -350,10 +1765,10 @@ public class ModuleApplication {
      * @param preRequestMappingInfoSet
      * @param afterRequestMappingInfoSet
      */
-    private void fillSurplusRequestMappingInfos(Set<RequestMappingInfo> preRequestMappingInfoSet,Set<RequestMappingInfo> afterRequestMappingInfoSet) {
+    private void fillSurplusRequestMappingInfos(Module module, Set<RequestMappingInfo> preRequestMappingInfoSet,Set<RequestMappingInfo> afterRequestMappingInfoSet) {
         for(RequestMappingInfo requestMappingInfo:afterRequestMappingInfoSet) {
             if(!preRequestMappingInfoSet.contains(requestMappingInfo)) {
-                extMappingInfos.add(requestMappingInfo);
+                module.getMappingInfos().add(requestMappingInfo);
             }
         }
     }
@@ -375,4 +1790,58 @@ public class ModuleApplication {
         }
     }
 
+    /**
+     * 扩展包任务链上的一次操作
+     */
+    private interface ModuleTask {
+
+        void run() throws Exception;
+    }
+
+    /**
+     * 启动时扩展包的加载状态，STARTING还在加载，UP全部生效，DEGRADED加载完了但是有扩展包失败
+     */
+    public enum StartupState {
+        STARTING, UP, DEGRADED
+    }
+
+    /**
+     * 读好jar包、装载好类的类加载器和装载出来的类
+     */
+    private static class Preload {
+
+        private final ModuleClassLoader classLoader;
+
+        private final Map<String, Class> classMap;
+
+        private Preload(ModuleClassLoader classLoader, Map<String, Class> classMap) {
+            this.classLoader = classLoader;
+            this.classMap = classMap;
+        }
+    }
+
+    /**
+     * 一个准备注册的接口
+     */
+    private static class StagedMapping {
+
+        private final RequestMappingInfo info;
+
+        private final String beanName;
+
+        /**
+         * 注册到springmvc的handler，beanName或者controller对象
+         */
+        private final Object handler;
+
+        private final Method method;
+
+        StagedMapping(RequestMappingInfo info, String beanName, Object handler, Method method) {
+            this.info = info;
+            this.beanName = beanName;
+            this.handler = handler;
+            this.method = method;
+        }
+    }
+
 }
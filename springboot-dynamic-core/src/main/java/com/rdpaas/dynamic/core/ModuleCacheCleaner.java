@@ -0,0 +1,197 @@
+package com.rdpaas.dynamic.core;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.deser.DeserializerCache;
+import com.fasterxml.jackson.databind.ser.DefaultSerializerProvider;
+import com.rdpaas.dynamic.utils.Accessors;
+import org.apache.ibatis.reflection.ReflectorFactory;
+import org.apache.ibatis.session.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.CachedIntrospectionResults;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.beans.factory.support.AbstractBeanFactory;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.core.MethodParameter;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.transaction.interceptor.AbstractFallbackTransactionAttributeSource;
+import org.springframework.util.ReflectionUtils;
+import org.springframework.web.method.support.HandlerMethodArgumentResolverComposite;
+import org.springframework.web.servlet.mvc.method.annotation.ExceptionHandlerExceptionResolver;
+import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerAdapter;
+
+import java.lang.reflect.Member;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 扩展包卸载时清理spring、springmvc、mybatis和jackson里以Class为key的各种缓存，只要有一处还引用着扩展包的类，
+ * 扩展包的类加载器就回收不掉，元空间会随着重新加载的次数一直涨
+ * @author rongdi
+ * @date 2021-04-03
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class ModuleCacheCleaner {
+
+    private final static Logger logger = LoggerFactory.getLogger(ModuleCacheCleaner.class);
+
+    /**
+     * 清理缓存
+     * @param classLoader 扩展包的类加载器
+     * @param beanFactory spring的bean工厂
+     * @param configuration mybatis的配置
+     * @param beanNames 扩展包注册过的beanName，一些缓存是以beanName为key的
+     */
+    public static void clean(ClassLoader classLoader, DefaultListableBeanFactory beanFactory, Configuration configuration,
+                             Set<String> beanNames) {
+        /**
+         * spring自己的反射、注解和类型缓存，都提供了开放的清理方法
+         */
+        CachedIntrospectionResults.clearClassLoader(classLoader);
+        ReflectionUtils.clearCache();
+        AnnotationUtils.clearCache();
+        ResolvableType.clearCache();
+
+        /**
+         * bean工厂里的工厂方法、属性描述缓存
+         */
+        removeKeys(beanFactory, "factoryMethodCandidateCache", classLoader, beanNames);
+        removeKeys(beanFactory, "filteredPropertyDescriptorsCache", classLoader, beanNames);
+        /**
+         * 删掉bean定义只是把合并后的定义标记为过期，同名同类名的新定义重新合并时会把旧定义解析出的targetType抄过来，
+         * 按类型找新版本的bean就会拿着旧版本的类去比较而找不到，所以整个删掉
+         */
+        removeKeys(beanFactory, "mergedBeanDefinitions", classLoader, beanNames);
+
+        /**
+         * 各种BeanPostProcessor里的缓存，比如@Autowired构造方法、@PostConstruct、AOP代理类型等
+         */
+        for (BeanPostProcessor processor : ((AbstractBeanFactory) beanFactory).getBeanPostProcessors()) {
+            removeKeys(processor, "candidateConstructorsCache", classLoader, beanNames);
+            removeKeys(processor, "injectionMetadataCache", classLoader, beanNames);
+            removeKeys(processor, "lifecycleMetadataCache", classLoader, beanNames);
+            removeKeys(processor, "eligibleBeans", classLoader, beanNames);
+            removeKeys(processor, "advisedBeans", classLoader, beanNames);
+            removeKeys(processor, "proxyTypes", classLoader, beanNames);
+            removeKeys(processor, "earlyProxyReferences", classLoader, beanNames);
+            removeKeys(processor, "targetSourcedBeans", classLoader, beanNames);
+        }
+
+        /**
+         * 事务注解的解析结果，key是方法和目标类组成的MethodClassKey，拿不到里面的类，只能整个清掉，用到时会重新解析
+         */
+        beanFactory.getBeansOfType(AbstractFallbackTransactionAttributeSource.class, false, false).values().forEach(source -> {
+            Object attributeCache = getFieldValue(source, "attributeCache");
+            if (attributeCache instanceof Map) {
+                ((Map<?, ?>) attributeCache).clear();
+            }
+        });
+
+        /**
+         * cglib生成代理对象用的objenesis，以代理类为key
+         */
+        try {
+            removeKeys(Accessors.OBJENESIS.get(), "cache", classLoader, beanNames);
+        } catch (RuntimeException e) {
+            logger.warn("clean objenesis cache error: {}", e.toString());
+        }
+
+        /**
+         * springmvc的参数解析器、@InitBinder、@ModelAttribute、@SessionAttributes和@ExceptionHandler缓存
+         */
+        beanFactory.getBeansOfType(RequestMappingHandlerAdapter.class, false, false).values().forEach(adapter -> {
+            removeKeys(adapter, "sessionAttributesHandlerCache", classLoader, beanNames);
+            removeKeys(adapter, "initBinderCache", classLoader, beanNames);
+            removeKeys(adapter, "modelAttributeCache", classLoader, beanNames);
+            cleanArgumentResolvers(adapter, "argumentResolvers", classLoader, beanNames);
+            cleanArgumentResolvers(adapter, "initBinderArgumentResolvers", classLoader, beanNames);
+        });
+        beanFactory.getBeansOfType(ExceptionHandlerExceptionResolver.class, false, false).values()
+                .forEach(resolver -> removeKeys(resolver, "exceptionHandlerCache", classLoader, beanNames));
+
+        /**
+         * jackson的序列化器、反序列化器和类型缓存
+         */
+        beanFactory.getBeansOfType(ObjectMapper.class, false, false).values().forEach(objectMapper -> {
+            if (objectMapper.getSerializerProvider() instanceof DefaultSerializerProvider) {
+                ((DefaultSerializerProvider) objectMapper.getSerializerProvider()).flushCachedSerializers();
+            }
+            objectMapper.getTypeFactory().clearCache();
+            removeKeys(objectMapper, "_rootDeserializers", classLoader, beanNames);
+            Object deserializerCache = getFieldValue(objectMapper.getDeserializationContext(), "_cache");
+            if (deserializerCache instanceof DeserializerCache) {
+                ((DeserializerCache) deserializerCache).flushCachedDeserializers();
+            }
+        });
+
+        /**
+         * mybatis的反射元数据和枚举之类自动注册的TypeHandler
+         */
+        if (configuration != null) {
+            ReflectorFactory reflectorFactory = configuration.getReflectorFactory();
+            removeKeys(reflectorFactory, "reflectorMap", classLoader, beanNames);
+            removeKeys(configuration.getTypeHandlerRegistry(), "TYPE_HANDLER_MAP", classLoader, beanNames);
+            removeKeys(configuration.getTypeHandlerRegistry(), "ALL_TYPE_HANDLERS_MAP", classLoader, beanNames);
+        }
+    }
+
+    /**
+     * 同名的bean删掉旧定义以后、注册新定义之前调用，原因见clean里的mergedBeanDefinitions，这时旧版本还没到释放的时候
+     */
+    public static void evictMergedBeanDefinition(DefaultListableBeanFactory beanFactory, String beanName) {
+        ((Map<?, ?>) Accessors.MERGED_BEAN_DEFINITIONS.get(beanFactory)).remove(beanName);
+    }
+
+    private static void cleanArgumentResolvers(Object adapter, String fieldName, ClassLoader classLoader, Set<String> beanNames) {
+        Object composite = getFieldValue(adapter, fieldName);
+        if (composite instanceof HandlerMethodArgumentResolverComposite) {
+            removeKeys(composite, "argumentResolverCache", classLoader, beanNames);
+        }
+    }
+
+    /**
+     * 删掉对象中指定Map或者Set属性里属于扩展包的key，属性不存在则忽略，不同版本的spring和mybatis属性不一定都有
+     */
+    private static void removeKeys(Object target, String fieldName, ClassLoader classLoader, Set<String> beanNames) {
+        Object value = getFieldValue(target, fieldName);
+        Collection<?> keys = null;
+        if (value instanceof Map) {
+            keys = ((Map<?, ?>) value).keySet();
+        } else if (value instanceof Set) {
+            keys = (Set<?>) value;
+        }
+        if (keys != null) {
+            keys.removeIf(key -> belongsTo(key, classLoader) || beanNames.contains(key));
+        }
+    }
+
+    private static Object getFieldValue(Object target, String fieldName) {
+        return Accessors.readField(target, fieldName);
+    }
+
+    /**
+     * 判断缓存的key是不是扩展包的类加载器装载的，key可能是Class、方法、方法参数或者包含Class的其它对象
+     */
+    private static boolean belongsTo(Object key, ClassLoader classLoader) {
+        Class<?> clazz;
+        if (key instanceof Class) {
+            clazz = (Class<?>) key;
+        } else if (key instanceof Member) {
+            clazz = ((Member) key).getDeclaringClass();
+        } else if (key instanceof MethodParameter) {
+            clazz = ((MethodParameter) key).getContainingClass();
+        } else if (key != null) {
+            clazz = key.getClass();
+        } else {
+            return false;
+        }
+        for (ClassLoader loader = clazz.getClassLoader(); loader != null; loader = loader.getParent()) {
+            if (loader == classLoader) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
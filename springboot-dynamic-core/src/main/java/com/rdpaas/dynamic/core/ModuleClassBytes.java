@@ -0,0 +1,248 @@
+package com.rdpaas.dynamic.core;
+
+import org.springframework.util.StringUtils;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 扩展包装载完以后还没定义的类的字节码。懒加载或者隔离模式下这些类要等到第一次用到时才定义，字节码不能丢，但也没必要
+ * 原样放在堆里跟着类加载器熬进老年代：可以压缩后放在堆里，也可以整体拷到一块堆外内存里，定义完一个类就不再保留它的那一份
+ * @author rongdi
+ * @date 2021-05-08
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public abstract class ModuleClassBytes {
+
+    /**
+     * 类定义完以后字节码的保留策略
+     */
+    public enum Retention {
+
+        /**
+         * 原样保留所有类的字节码，直到扩展包卸载
+         */
+        KEEP,
+
+        /**
+         * 定义完的类不再保留，还没定义的压缩后放在堆里
+         */
+        COMPRESS,
+
+        /**
+         * 定义完的类不再保留，还没定义的拷到一块堆外内存里，整个扩展包卸载后随着类加载器一起释放
+         */
+        OFF_HEAP;
+
+        /**
+         * @param value keep、compress或者off-heap，不区分大小写，为空时是keep
+         */
+        public static Retention of(String value) {
+            if (!StringUtils.hasText(value)) {
+                return KEEP;
+            }
+            try {
+                return valueOf(value.trim().toUpperCase().replace('-', '_'));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("unknown class bytes retention '" + value + "', allowed values: keep, compress, off-heap");
+            }
+        }
+    }
+
+    /**
+     * @return 字节码，没有或者已经不再保留时返回null
+     */
+    abstract byte[] get(String className);
+
+    abstract boolean contains(String className);
+
+    /**
+     * 类已经定义好了，不再保留它的字节码
+     */
+    abstract void remove(String className);
+
+    abstract int size();
+
+    /**
+     * 实际占用的字节数
+     */
+    abstract long getRetainedBytes();
+
+    static ModuleClassBytes of(Retention retention, Map<String, byte[]> classBytesMap) {
+        return retention == Retention.OFF_HEAP ? new OffHeap(classBytesMap) : new Compressed(classBytesMap);
+    }
+
+    /**
+     * 每个类单独压缩，压缩后没有变小的原样存放，所以取的时候按长度就能分出有没有压缩
+     */
+    private static class Compressed extends ModuleClassBytes {
+
+        private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+        private Compressed(Map<String, byte[]> classBytesMap) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+            try {
+                classBytesMap.forEach((className, bytes) -> entries.put(className, new Entry(deflate(deflater, bytes), bytes.length)));
+            } finally {
+                deflater.end();
+            }
+        }
+
+        private static byte[] deflate(Deflater deflater, byte[] bytes) {
+            if (bytes.length == 0) {
+                return bytes;
+            }
+            deflater.reset();
+            deflater.setInput(bytes);
+            deflater.finish();
+            /**
+             * 压缩后和原来一样长的也原样存放，否则取的时候会被当成没压缩的
+             */
+            byte[] buffer = new byte[bytes.length - 1];
+            int length = 0;
+            while (!deflater.finished() && length < buffer.length) {
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            if (!deflater.finished()) {
+                return bytes;
+            }
+            byte[] compressed = new byte[length];
+            System.arraycopy(buffer, 0, compressed, 0, length);
+            return compressed;
+        }
+
+        @Override
+        byte[] get(String className) {
+            Entry entry = entries.get(className);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.data.length == entry.size) {
+                return entry.data;
+            }
+            byte[] bytes = new byte[entry.size];
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(entry.data);
+                int offset = 0;
+                while (offset < bytes.length) {
+                    int inflated = inflater.inflate(bytes, offset, bytes.length - offset);
+                    if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IllegalStateException("unexpected end of compressed class '" + className + "'");
+                    }
+                    offset += inflated;
+                }
+                return bytes;
+            } catch (DataFormatException e) {
+                throw new IllegalStateException("invalid compressed class '" + className + "'", e);
+            } finally {
+                inflater.end();
+            }
+        }
+
+        @Override
+        boolean contains(String className) {
+            return entries.containsKey(className);
+        }
+
+        @Override
+        void remove(String className) {
+            entries.remove(className);
+        }
+
+        @Override
+        int size() {
+            return entries.size();
+        }
+
+        @Override
+        long getRetainedBytes() {
+            long bytes = 0;
+            for (Entry entry : entries.values()) {
+                bytes += entry.data.length;
+            }
+            return bytes;
+        }
+
+        private static class Entry {
+
+            private final byte[] data;
+
+            /**
+             * 压缩前的大小，和data一样长时data没有压缩，压缩过的一定比它短
+             */
+            private final int size;
+
+            private Entry(byte[] data, int size) {
+                this.data = data;
+                this.size = size;
+            }
+        }
+    }
+
+    /**
+     * 所有类的字节码连续放在一块堆外内存里，只记录每个类的位置。单个类定义完以后只是删掉位置，内存要等整块不再被引用时才释放
+     */
+    private static class OffHeap extends ModuleClassBytes {
+
+        private final ByteBuffer buffer;
+
+        /**
+         * 类名 -> 高32位是位置，低32位是长度
+         */
+        private final Map<String, Long> positions = new ConcurrentHashMap<>();
+
+        private OffHeap(Map<String, byte[]> classBytesMap) {
+            long total = 0;
+            for (byte[] bytes : classBytesMap.values()) {
+                total += bytes.length;
+            }
+            if (total > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("class bytes too large for one direct buffer: " + total);
+            }
+            buffer = ByteBuffer.allocateDirect((int) total);
+            classBytesMap.forEach((className, bytes) -> {
+                positions.put(className, (long) buffer.position() << 32 | bytes.length);
+                buffer.put(bytes);
+            });
+        }
+
+        @Override
+        byte[] get(String className) {
+            Long position = positions.get(className);
+            if (position == null) {
+                return null;
+            }
+            byte[] bytes = new byte[(int) (position & 0xFFFFFFFFL)];
+            ByteBuffer view = buffer.duplicate();
+            view.clear();
+            view.position((int) (position >>> 32));
+            view.get(bytes);
+            return bytes;
+        }
+
+        @Override
+        boolean contains(String className) {
+            return positions.containsKey(className);
+        }
+
+        @Override
+        void remove(String className) {
+            positions.remove(className);
+        }
+
+        @Override
+        int size() {
+            return positions.size();
+        }
+
+        @Override
+        long getRetainedBytes() {
+            return buffer.capacity();
+        }
+    }
+}
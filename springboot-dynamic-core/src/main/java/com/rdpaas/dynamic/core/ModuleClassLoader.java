@@ -1,22 +1,35 @@
 package com.rdpaas.dynamic.core;
 
 
+import com.rdpaas.dynamic.utils.Accessors;
+import com.rdpaas.dynamic.utils.BytecodeUtil;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.util.DigestUtils;
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLClassLoader;
-import java.security.AccessController;
-import java.security.PrivilegedExceptionAction;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
@@ -31,6 +44,13 @@ public class ModuleClassLoader extends URLClassLoader {
 
     private Logger logger = LoggerFactory.getLogger(ModuleClassLoader.class);
 
+    /**
+     * 按类名加锁而不是锁整个类加载器，同一层没有继承关系的类才能真正并行装载
+     */
+    static {
+        ClassLoader.registerAsParallelCapable();
+    }
+
     private final static String CLASS_SUFFIX = ".class";
 
     private final static String XML_SUFFIX = ".xml";
@@ -40,31 +60,143 @@ public class ModuleClassLoader extends URLClassLoader {
     //属于本类加载器加载的jar包
     private JarFile jarFile;
 
-    private Map<String, byte[]> classBytesMap = new HashMap<>();
+    private Map<String, byte[]> classBytesMap = new ConcurrentHashMap<>();
+
+    private Map<String, Class<?>> classesMap = new ConcurrentHashMap<>();
+
+    private Map<String, byte[]> xmlBytesMap = new ConcurrentHashMap<>();
+
+    private boolean parallelLoad;
+
+    private boolean lazyLoad;
+
+    /**
+     * 是否把类定义在本类加载器里，这样扩展包卸载后类加载器和它装载的类都能被回收
+     */
+    private boolean isolated;
+
+    /**
+     * 扩展包里每个类在扩展包内的父类和接口，从字节码里读出来，不用装载类
+     */
+    private Map<String, List<String>> superTypesMap = new ConcurrentHashMap<>();
+
+    /**
+     * 扩展包的索引，记录每个类的类型、父类和接口以及内容的摘要，不用装载类
+     */
+    private volatile ModuleIndex index;
+
+    /**
+     * 索引的磁盘缓存，为空时没有索引的jar包每次都现场生成
+     */
+    private ModuleIndexCache indexCache;
+
+    /**
+     * jar包里打包时生成的索引
+     */
+    private byte[] indexBytes;
+
+    /**
+     * 索引是从哪来的，jar、cache或者built
+     */
+    private String indexSource;
+
+    /**
+     * 懒加载模式下已经处理过引用关系的类
+     */
+    private Set<String> resolvedClassNames = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 隔离模式下已经在本类加载器里定义过的包
+     */
+    private Set<String> definedPackages = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 当前线程是否正在装载某个类的引用，避免findClass层层嵌套
+     */
+    private ThreadLocal<Boolean> resolving = new ThreadLocal<>();
+
+    /**
+     * 上一次load()读取jar包和装载类的耗时，单位纳秒
+     */
+    private long scanNanos;
+
+    private long defineNanos;
+
+    /**
+     * jar包内容的摘要，由ModuleSource解析地址时算好，为空时需要的时候再算
+     */
+    private String jarHash;
+
+    /**
+     * 扩展包lib/目录下自带的第三方jar包，不解压，用到哪个类再从jar包里读，没有时为空
+     */
+    private volatile ModuleLibraries libraries;
 
-    private Map<String, Class<?>> classesMap = new HashMap<>();
+    /**
+     * 读jar包目录时是否看到了自带的第三方jar包，看到了才去打开
+     */
+    private volatile boolean hasLibraries;
 
-    private Map<String, byte[]> xmlBytesMap = new HashMap<>();
+    /**
+     * 类定义完以后字节码的保留策略
+     */
+    private ModuleClassBytes.Retention classBytesRetention = ModuleClassBytes.Retention.KEEP;
+
+    /**
+     * 保留策略不是KEEP时，load()结束后还没定义的类的字节码从classBytesMap挪到这里，为空时都在classBytesMap里
+     */
+    private volatile ModuleClassBytes retainedBytes;
 
-    public ModuleClassLoader(ClassLoader classLoader, URL... urls) {
+    /**
+     * 隔离模式下用这个类加载器的扩展包版本，注册到ModuleRegistry时设置，用来从接口的类找到它属于哪个版本
+     */
+    private volatile Module module;
+
+    public ModuleClassLoader(ClassLoader classLoader, URL... urls) throws IOException {
+        this(classLoader, new File(urls[0].getPath()), urls);
+    }
+
+    /**
+     * @param jar ModuleSource解析得到的本地jar包
+     */
+    public ModuleClassLoader(ClassLoader classLoader, ModuleJar jar) throws IOException {
+        this(classLoader, jar.getFile(), jar.getFile().toURI().toURL());
+        this.jarHash = jar.getHash();
+    }
+
+    private ModuleClassLoader(ClassLoader classLoader, File file, URL... urls) throws IOException {
         super(urls, classLoader);
-        URL url = urls[0];
-        String path = url.getPath();
         try {
-            jarFile = new JarFile(path);
+            jarFile = new JarFile(file);
         } catch (IOException e) {
-            e.printStackTrace();
+            logger.error("open jar '{}' failed", file, e);
+            super.close();
+            throw e;
         }
     }
 
     @Override
     protected Class<?> findClass(String name) throws ClassNotFoundException {
-        byte[] buf = classBytesMap.get(name);
+        /**
+         * 定义过的类可能已经不再保留字节码了，先查已经定义的
+         */
+        Class<?> defined = classesMap.get(name);
+        if (defined != null) {
+            return defined;
+        }
+        byte[] buf = getClassBytes(name);
         if (buf == null) {
             return super.findClass(name);
         }
-        if(classesMap.containsKey(name)) {
-            return classesMap.get(name);
+        /**
+         * 隔离模式下类归属于本类加载器，引用到的扩展包的类会由jvm回到本类加载器来找，不需要再像下面那样强塞给parent
+         */
+        if (isolated) {
+            definePackage(name);
+            Class<?> clazz = defineClass(name, buf, 0, buf.length);
+            classesMap.put(name, clazz);
+            release(name);
+            return clazz;
         }
         /**
          * 这里应该算是骚操作了，我不知道市面上有没有人这么做过，反正我是想了好久，遇到各种因为spring要生成代理对象
@@ -76,13 +208,197 @@ public class ModuleClassLoader extends URLClassLoader {
          * 3、还原当前线程类加载器为第一步保存的类加载器
          * 这样之后mybatis那些xml里resultType，resultMap之类的需要访问扩展包的Class的就不会报错了。
          * 不过直接用现在这种骚操作，更加一劳永逸，不会有mybatis的问题了
+         * 强塞给parent的类，parent是找不到它在扩展包里的父类和接口的，所以先把它们装载进去，而不是等defineClass报错再补
          */
-        return loadClass(name,buf);
+        for (String superType : getSuperTypes(name)) {
+            if (!classesMap.containsKey(superType)) {
+                loadClass(superType);
+            }
+        }
+        Class<?> clazz = loadClass(name,buf);
+        if (clazz != null) {
+            classesMap.put(name, clazz);
+            if (needsResolve()) {
+                resolveReferences(name);
+            } else {
+                release(name);
+            }
+        }
+        return clazz;
+    }
+
+    /**
+     * 非隔离模式下强塞给parent的类，是否要顺着引用把扩展包里用到的类一起装载进去
+     */
+    private boolean needsResolve() {
+        return lazyLoad || libraries != null;
+    }
+
+    /**
+     * 类定义完、引用也处理完以后不再保留它的字节码，只在load()结束、保留策略不是KEEP时生效
+     */
+    private void release(String className) {
+        ModuleClassBytes retainedBytes = this.retainedBytes;
+        if (retainedBytes != null) {
+            retainedBytes.remove(className);
+        }
     }
 
     /**
-     * 使用反射强行将类装载的归属给当前类加载器的父类加载器也就是AppClassLoader，如果报ClassNotFoundException
-     * 则递归装载
+     * 按保留策略处理load()结束时的字节码：已经定义并且处理完引用的类直接丢掉，剩下的压缩或者挪到堆外
+     */
+    private void compact() {
+        if (classBytesRetention == ModuleClassBytes.Retention.KEEP || classBytesMap.isEmpty()) {
+            return;
+        }
+        long before = 0;
+        int total = classBytesMap.size();
+        Map<String, byte[]> pending = new HashMap<>();
+        for (Map.Entry<String, byte[]> entry : classBytesMap.entrySet()) {
+            before += entry.getValue().length;
+            String className = entry.getKey();
+            boolean done = classesMap.containsKey(className)
+                    && (isolated || !needsResolve() || resolvedClassNames.contains(className));
+            if (!done) {
+                pending.put(className, entry.getValue());
+            }
+        }
+        ModuleClassBytes retained = ModuleClassBytes.of(classBytesRetention, pending);
+        /**
+         * 先让新的存放生效再清空原来的，并发的findClass在两边总能找到一边
+         */
+        retainedBytes = retained;
+        classBytesMap.clear();
+        superTypesMap.clear();
+        logger.info("compact class bytes of jar '{}' from {} to {} bytes, retained {} of {} classes, retention: {}",
+                jarFile.getName(), before, retained.getRetainedBytes(), retained.size(), total,
+                classBytesRetention);
+    }
+
+    /**
+     * 先找扩展包自己的类，再找自带的第三方jar包里的类
+     * @return 字节码，都没有时返回null
+     */
+    private byte[] getClassBytes(String className) {
+        byte[] bytes = getModuleClassBytes(className);
+        ModuleLibraries libraries = this.libraries;
+        if (bytes != null || libraries == null) {
+            return bytes;
+        }
+        try {
+            return libraries.findClass(className);
+        } catch (IOException e) {
+            logger.error("read class '{}' from libraries of jar '{}' failed", className, jarFile.getName(), e);
+            return null;
+        }
+    }
+
+    private boolean containsClass(String className) {
+        ModuleLibraries libraries = this.libraries;
+        return containsModuleClass(className) || (libraries != null && libraries.containsClass(className));
+    }
+
+    /**
+     * 扩展包自己的类的字节码，不管是原样放着的还是按保留策略压缩过的
+     */
+    private byte[] getModuleClassBytes(String className) {
+        byte[] bytes = classBytesMap.get(className);
+        ModuleClassBytes retainedBytes = this.retainedBytes;
+        if (bytes == null && retainedBytes != null) {
+            bytes = retainedBytes.get(className);
+        }
+        return bytes;
+    }
+
+    private boolean containsModuleClass(String className) {
+        ModuleClassBytes retainedBytes = this.retainedBytes;
+        return classBytesMap.containsKey(className) || (retainedBytes != null && retainedBytes.contains(className));
+    }
+
+    /**
+     * 自带的第三方jar包里的资源，如META-INF/services下的spi配置，扩展包自己的资源由URLClassLoader找
+     */
+    @Override
+    public URL findResource(String name) {
+        URL url = super.findResource(name);
+        ModuleLibraries libraries = this.libraries;
+        if (url == null && libraries != null) {
+            url = libraries.findResource(name);
+        }
+        return url;
+    }
+
+    @Override
+    public Enumeration<URL> findResources(String name) throws IOException {
+        ModuleLibraries libraries = this.libraries;
+        if (libraries == null) {
+            return super.findResources(name);
+        }
+        List<URL> urls = Collections.list(super.findResources(name));
+        urls.addAll(libraries.findResources(name));
+        return Collections.enumeration(urls);
+    }
+
+    /**
+     * 定义类所在的包，jdk8下没有定义包的类getPackage()会返回null。定义过的包自己记着，getPackage在jdk9以后已经废弃，
+     * 替代它的getDefinedPackage在jdk8里又没有
+     */
+    private void definePackage(String className) {
+        int index = className.lastIndexOf('.');
+        if (index <= 0) {
+            return;
+        }
+        String packageName = className.substring(0, index);
+        if (definedPackages.add(packageName)) {
+            try {
+                definePackage(packageName, null, null, null, null, null, null, null);
+            } catch (IllegalArgumentException e) {
+                //URLClassLoader自己装载类时已经定义过了
+            }
+        }
+    }
+
+    /**
+     * 懒加载模式下，类是被强行塞给parent加载器的，parent加载器后面解析这个类的引用时是找不到扩展包里的类的，所以装载
+     * 一个类的时候要顺便把它在扩展包里直接和间接引用到的类都装载进去，没被引用到的类则一直等到有人通过本类加载器来找时才装载。
+     * 自带的第三方jar包里的类不会在load()里提前装载，不管是不是懒加载都要这样跟着引用装载
+     * @param name
+     */
+    private void resolveReferences(String name) {
+        if (Boolean.TRUE.equals(resolving.get())) {
+            return;
+        }
+        resolving.set(Boolean.TRUE);
+        try {
+            Deque<String> pending = new ArrayDeque<>();
+            pending.push(name);
+            while (!pending.isEmpty()) {
+                String current = pending.pop();
+                if (!resolvedClassNames.add(current)) {
+                    continue;
+                }
+                byte[] bytes = getClassBytes(current);
+                if (bytes == null) {
+                    continue;
+                }
+                for (String reference : BytecodeUtil.getReferencedClassNames(bytes)) {
+                    if (containsClass(reference) && !resolvedClassNames.contains(reference)) {
+                        loadClass(reference);
+                        pending.push(reference);
+                    }
+                }
+                release(current);
+            }
+        } catch (ClassNotFoundException e) {
+            logger.error("",e);
+        } finally {
+            resolving.remove();
+        }
+    }
+
+    /**
+     * 使用反射强行将类装载的归属给当前类加载器的父类加载器也就是AppClassLoader，扩展包里的父类和接口已经先装载好了，
+     * 如果还是报ClassNotFoundException则递归装载。并行装载时按类名加锁，同一个类只定义一次
      * @param name
      * @param bytes
      * @return
@@ -90,60 +406,66 @@ public class ModuleClassLoader extends URLClassLoader {
     private Class<?> loadClass(String name, byte[] bytes) throws ClassNotFoundException {
 
         Object[] args = new Object[]{name, bytes, 0, bytes.length};
-        try {
-            /**
-             * 拿到当前类加载器的parent加载器AppClassLoader
-             */
-            ClassLoader parent = this.getParent();
-            /**
-             * 首先要明确反射是万能的，仿造org.springframework.cglib.core.ReflectUtils的写法，强行获取被保护
-             * 的方法defineClass的对象，然后调用指定类加载器的加载字节码方法，强行将加载归属塞给它，避免被spring的AOP或者@Transactional
-             * 触碰到的类需要生成代理对象，而在AppClassLoader下加载不到外部的扩展类而报错，所以这里强行将加载外部扩展包的类的归属给
-             * AppClassLoader，让spring的cglib生成代理对象时可以加载到原对象
-             */
-            Method classLoaderDefineClass = (Method) AccessController.doPrivileged(new PrivilegedExceptionAction() {
-                @Override
-                public Object run() throws Exception {
-                    return ClassLoader.class.getDeclaredMethod("defineClass",
-                            String.class, byte[].class, Integer.TYPE, Integer.TYPE);
+        /**
+         * 拿到当前类加载器的parent加载器AppClassLoader
+         */
+        ClassLoader parent = this.getParent();
+        synchronized (getClassLoadingLock(name)) {
+            try {
+                /**
+                 * 首先要明确反射是万能的，仿造org.springframework.cglib.core.ReflectUtils的写法，强行获取被保护
+                 * 的方法defineClass的对象，然后调用指定类加载器的加载字节码方法，强行将加载归属塞给它，避免被spring的AOP或者@Transactional
+                 * 触碰到的类需要生成代理对象，而在AppClassLoader下加载不到外部的扩展类而报错，所以这里强行将加载外部扩展包的类的归属给
+                 * AppClassLoader，让spring的cglib生成代理对象时可以加载到原对象。defineClass只在第一次用到时解析，缓存在Accessors里
+                 */
+                return (Class<?>) Accessors.DEFINE_CLASS.invoke(parent, args);
+            } catch (InvocationTargetException e) {
+                Throwable target = e.getTargetException();
+                /**
+                 * 别的线程或者装载同一个jar包的另一个类加载器已经在AppClassLoader里定义过了，直接拿定义好的
+                 */
+                if (target instanceof LinkageError && String.valueOf(target.getMessage()).contains("duplicate class definition")) {
+                    return parent.loadClass(name);
+                }
+                String notClassName = getMissingClassName(target);
+                if (notClassName == null || notClassName.equals(name)) {
+                    logger.error("", target);
+                    return null;
+                }
+                byte[] bytes1 = getClassBytes(notClassName);
+                if (bytes1 == null) {
+                    throw new ClassNotFoundException(notClassName, target);
                 }
-            });
-            if(!classLoaderDefineClass.isAccessible()) {
-                classLoaderDefineClass.setAccessible(true);
-            }
-            return (Class<?>)classLoaderDefineClass.invoke(parent,args);
-        } catch (Exception e) {
-            if(e instanceof InvocationTargetException) {
-                String message = ((InvocationTargetException) e).getTargetException().getCause().toString();
                 /**
-                 * 无奈，明明ClassNotFoundException是个异常，非要抛个InvocationTargetException，导致
-                 * 我这里一个不太优雅的判断
+                 * 递归装载未找到的类
                  */
-                if(message.startsWith("java.lang.ClassNotFoundException")) {
-                    String notClassName = message.split(":")[1];
-                    if(StringUtils.isEmpty(notClassName)) {
-                        throw new ClassNotFoundException(message);
-                    }
-                    notClassName = notClassName.trim();
-                    byte[] bytes1 = classBytesMap.get(notClassName);
-                    if(bytes1 == null) {
-                        throw new ClassNotFoundException(message);
-                    }
-                    /**
-                     * 递归装载未找到的类
-                     */
-                    Class<?> notClass = loadClass(notClassName, bytes1);
-                    if(notClass == null) {
-                        throw new ClassNotFoundException(message);
-                    }
-                    classesMap.put(notClassName,notClass);
-                    return loadClass(name,bytes);
+                Class<?> notClass = loadClass(notClassName, bytes1);
+                if (notClass == null) {
+                    throw new ClassNotFoundException(notClassName, target);
                 }
-            } else {
-                logger.error("",e);
+                classesMap.put(notClassName, notClass);
+                if (!needsResolve()) {
+                    release(notClassName);
+                }
+                return loadClass(name, bytes);
             }
         }
-        return null;
+    }
+
+    /**
+     * defineClass时找不到父类或者接口，jdk抛的是NoClassDefFoundError，消息是/分隔的类名，有的版本会带着一个
+     * ClassNotFoundException作为cause，cause不一定有
+     */
+    private static String getMissingClassName(Throwable e) {
+        Throwable cause = e.getCause() instanceof ClassNotFoundException ? e.getCause() : e;
+        if (!(cause instanceof ClassNotFoundException) && !(cause instanceof NoClassDefFoundError)) {
+            return null;
+        }
+        String message = cause.getMessage();
+        if (StringUtils.isEmpty(message)) {
+            return null;
+        }
+        return message.trim().replace('/', '.');
     }
 
     public Map<String,byte[]> getXmlBytesMap() {
@@ -152,73 +474,411 @@ public class ModuleClassLoader extends URLClassLoader {
 
 
     /**
-     * 方法描述 初始化类加载器，保存字节码
+     * 方法描述 初始化类加载器，保存字节码，jar包或者自带的第三方jar包读不了时直接抛出，不能只装载一半
      */
-    public Map<String, Class> load() {
+    public Map<String, Class> load() throws IOException {
 
         Map<String, Class> cacheClassMap = new HashMap<>();
 
-        //解析jar包每一项
-        Enumeration<JarEntry> en = jarFile.entries();
-        InputStream input = null;
+        long start = System.nanoTime();
         try {
-            while (en.hasMoreElements()) {
-                JarEntry je = en.nextElement();
-                String name = je.getName();
-                //这里添加了路径扫描限制
-                if (name.endsWith(CLASS_SUFFIX)) {
-                    String className = name.replace(CLASS_SUFFIX, "").replaceAll("/", ".");
-                    input = jarFile.getInputStream(je);
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    int bufferSize = 4096;
-                    byte[] buffer = new byte[bufferSize];
-                    int bytesNumRead = 0;
-                    while ((bytesNumRead = input.read(buffer)) != -1) {
-                        baos.write(buffer, 0, bytesNumRead);
-                    }
-                    byte[] classBytes = baos.toByteArray();
-                    classBytesMap.put(className, classBytes);
-                } else if(name.endsWith(XML_SUFFIX) && name.startsWith(MAPPER_SUFFIX)) {
-                    input = jarFile.getInputStream(je);
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    int bufferSize = 4096;
-                    byte[] buffer = new byte[bufferSize];
-                    int bytesNumRead = 0;
-                    while ((bytesNumRead = input.read(buffer)) != -1) {
-                        baos.write(buffer, 0, bytesNumRead);
-                    }
-                    byte[] xmlBytes = baos.toByteArray();
-                    xmlBytesMap.put(name, xmlBytes);
-                }
+            if (parallelLoad) {
+                loadEntriesParallel();
+            } else {
+                loadEntries();
             }
+        } catch (UncheckedIOException e) {
+            logger.error("read jar '{}' failed", jarFile.getName(), e);
+            throw e.getCause();
         } catch (IOException e) {
-            logger.error("",e);
+            logger.error("read jar '{}' failed", jarFile.getName(), e);
+            throw e;
         } finally {
-            if (input != null) {
-                try {
-                    input.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+            /**
+             * 字节码都已经读到内存里了，jar包没必要一直开着，自带的第三方jar包由ModuleLibraries自己按位置读
+             */
+            try {
+                jarFile.close();
+            } catch (IOException e) {
+                logger.error("",e);
+            }
+        }
+        if (hasLibraries) {
+            try {
+                libraries = ModuleLibraries.open(new File(jarFile.getName()));
+            } catch (IOException e) {
+                logger.error("open libraries of jar '{}' failed", jarFile.getName(), e);
+                throw e;
+            }
+        }
+        index = loadIndex();
+        scanNanos = System.nanoTime() - start;
+        logger.info("load jar '{}' cost {} ms, classes: {}, xmls: {}, libs: {}, parallel: {}, index: {}", jarFile.getName(),
+                TimeUnit.NANOSECONDS.toMillis(scanNanos), classBytesMap.size(), xmlBytesMap.size(),
+                libraries == null ? 0 : libraries.size(), parallelLoad, indexSource);
+
+        start = System.nanoTime();
+        //将jar中的每一个class字节码进行Class载入，懒加载模式下只装载bean和mapper接口，它们引用到的类会在findClass里跟着装载
+        List<String> classNames = new ArrayList<>();
+        for (String key : classBytesMap.keySet()) {
+            if (!lazyLoad || index.getKind(key) != ModuleClassScanner.Kind.OTHER) {
+                classNames.add(key);
+            }
+        }
+        /**
+         * 按继承关系分层，父类和接口所在的层先装载，同一层的类互相没有继承关系，可以并行装载
+         */
+        for (List<String> level : sortBySuperTypes(classNames)) {
+            if (parallelLoad && level.size() > 1) {
+                level.parallelStream().forEach(key -> defineEntry(key, cacheClassMap));
+            } else {
+                level.forEach(key -> defineEntry(key, cacheClassMap));
+            }
+        }
+        defineNanos = System.nanoTime() - start;
+        if (lazyLoad) {
+            logger.info("lazy load jar '{}', defined {} of {} classes", jarFile.getName(), classesMap.size(),
+                    classBytesMap.size());
+        }
+        compact();
+        return cacheClassMap;
+
+    }
+
+    private void defineEntry(String key, Map<String, Class> cacheClassMap) {
+        Class<?> aClass = null;
+        try {
+            aClass = loadClass(key);
+            /**
+             * 之前已经装载过的类parent会直接返回，不会再走findClass，这里也要补上它引用的类
+             */
+            if ((lazyLoad || libraries != null) && !isolated) {
+                resolveReferences(key);
+            }
+        } catch (ClassNotFoundException e) {
+            logger.error("",e);
+        }
+        synchronized (cacheClassMap) {
+            cacheClassMap.put(key, aClass);
+        }
+    }
+
+    /**
+     * 优先用jar包里打包时生成的索引，其次是按jar包摘要存放的磁盘缓存，都没有时根据字节码现场生成一份并写进缓存。
+     * jar包里的索引只核对类和xml的清单，不重新计算摘要，打包以后又改过jar包内容的要重新生成索引
+     */
+    private ModuleIndex loadIndex() {
+        if (indexBytes != null) {
+            try {
+                ModuleIndex embedded = ModuleIndex.parse(indexBytes);
+                if (embedded.matches(classBytesMap.keySet(), xmlBytesMap.keySet())) {
+                    indexSource = "jar";
+                    return embedded;
                 }
+                logger.warn("module index in jar '{}' does not match its content, ignore it", jarFile.getName());
+            } catch (RuntimeException e) {
+                logger.warn("read module index in jar '{}' failed, ignore it: {}", jarFile.getName(), e.getMessage());
+            } finally {
+                indexBytes = null;
             }
         }
+        if (indexCache != null) {
+            try {
+                if (jarHash == null) {
+                    try (InputStream input = new FileInputStream(jarFile.getName())) {
+                        jarHash = DigestUtils.md5DigestAsHex(input);
+                    }
+                }
+                ModuleIndex cached = indexCache.get(jarHash);
+                if (cached != null && cached.matches(classBytesMap.keySet(), xmlBytesMap.keySet())) {
+                    indexSource = "cache";
+                    return cached;
+                }
+            } catch (IOException e) {
+                logger.warn("hash jar '{}' failed, skip module index cache: {}", jarFile.getName(), e.getMessage());
+            }
+        }
+        ModuleIndex built = ModuleIndex.build(classBytesMap, xmlBytesMap, new ModuleClassScanner(classBytesMap, this));
+        if (indexCache != null && jarHash != null) {
+            indexCache.put(jarHash, built);
+        }
+        indexSource = "built";
+        return built;
+    }
 
-        //将jar中的每一个class字节码进行Class载入
-        for (Map.Entry<String, byte[]> entry : classBytesMap.entrySet()) {
-            String key = entry.getKey();
-            Class<?> aClass = null;
+    /**
+     * 把类按继承深度分层，第0层在扩展包里没有父类和接口，第n层的父类和接口都在前n层里
+     * @param classNames 要装载的类
+     * @return 按层排好的类
+     */
+    private List<List<String>> sortBySuperTypes(List<String> classNames) {
+        Map<String, Integer> depths = new HashMap<>();
+        List<List<String>> levels = new ArrayList<>();
+        for (String className : classNames) {
+            int depth = getDepth(className, depths, new HashSet<>());
+            while (levels.size() <= depth) {
+                levels.add(new ArrayList<>());
+            }
+            levels.get(depth).add(className);
+        }
+        return levels;
+    }
+
+    private int getDepth(String className, Map<String, Integer> depths, Set<String> visiting) {
+        Integer depth = depths.get(className);
+        if (depth != null) {
+            return depth;
+        }
+        /**
+         * 继承成环的字节码是非法的，交给defineClass去报错
+         */
+        if (!visiting.add(className)) {
+            return 0;
+        }
+        int max = 0;
+        for (String superType : getSuperTypes(className)) {
+            max = Math.max(max, getDepth(superType, depths, visiting) + 1);
+        }
+        visiting.remove(className);
+        depths.put(className, max);
+        return max;
+    }
+
+    /**
+     * 拿到一个类在扩展包里的父类和接口，扩展包外的不用管，parent自己能找到
+     */
+    private List<String> getSuperTypes(String className) {
+        if (!containsModuleClass(className)) {
+            return Collections.emptyList();
+        }
+        ModuleIndex index = this.index;
+        List<String> indexed = index == null ? null : index.getSuperTypes(className);
+        if (indexed != null) {
+            return indexed;
+        }
+        return superTypesMap.computeIfAbsent(className, key -> {
+            List<String> superTypes = new ArrayList<>();
+            List<String> superTypeNames;
+            byte[] bytes = getModuleClassBytes(key);
+            if (bytes == null) {
+                return superTypes;
+            }
             try {
-                aClass = loadClass(key);
-            } catch (ClassNotFoundException e) {
-                logger.error("",e);
+                superTypeNames = BytecodeUtil.getSuperTypeNames(bytes);
+            } catch (IllegalArgumentException e) {
+                /**
+                 * class版本比spring自带的asm支持的还新时读不了，按没有父类处理，装载时缺父类再走捕获异常重试的老路
+                 */
+                return superTypes;
             }
-            cacheClassMap.put(key, aClass);
+            for (String superType : superTypeNames) {
+                if (containsModuleClass(superType)) {
+                    superTypes.add(superType);
+                }
+            }
+            return superTypes;
+        });
+    }
+
+    /**
+     * 单线程顺序解析jar包每一项
+     */
+    private void loadEntries() throws IOException {
+        Enumeration<JarEntry> en = jarFile.entries();
+        while (en.hasMoreElements()) {
+            loadEntry(en.nextElement());
         }
-        return cacheClassMap;
+    }
+
+    /**
+     * 先把需要的项挑出来，再并行读取，JarFile的getInputStream本身是线程安全的，每个流各自解压互不影响
+     */
+    private void loadEntriesParallel() {
+        List<JarEntry> entries = new ArrayList<>();
+        Enumeration<JarEntry> en = jarFile.entries();
+        while (en.hasMoreElements()) {
+            JarEntry je = en.nextElement();
+            if (isClassEntry(je.getName()) || isXmlEntry(je.getName()) || ModuleIndex.LOCATION.equals(je.getName())) {
+                entries.add(je);
+            } else if (ModuleLibraries.isLibraryEntry(je.getName())) {
+                hasLibraries = true;
+            }
+        }
+        entries.parallelStream().forEach(je -> {
+            try {
+                loadEntry(je);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
 
+    private void loadEntry(JarEntry je) throws IOException {
+        String name = je.getName();
+        //这里添加了路径扫描限制
+        if (isClassEntry(name)) {
+            String className = name.replace(CLASS_SUFFIX, "").replaceAll("/", ".");
+            classBytesMap.put(className, readEntry(je));
+        } else if(isXmlEntry(name)) {
+            xmlBytesMap.put(name, readEntry(je));
+        } else if (ModuleIndex.LOCATION.equals(name)) {
+            indexBytes = readEntry(je);
+        } else if (ModuleLibraries.isLibraryEntry(name)) {
+            hasLibraries = true;
+        }
+    }
+
+    /**
+     * jar包里的一项是不是要装载的类，生成索引时也按这个规则挑
+     */
+    public static boolean isClassEntry(String name) {
+        return name.endsWith(CLASS_SUFFIX);
+    }
+
+    /**
+     * jar包里的一项是不是mybatis的mapper.xml
+     */
+    public static boolean isXmlEntry(String name) {
+        return name.endsWith(XML_SUFFIX) && name.startsWith(MAPPER_SUFFIX);
+    }
+
+    /**
+     * 读取jar包中的一项，大小已知时直接按JarEntry.getSize()分配数组一次读满，避免ByteArrayOutputStream扩容和
+     * toByteArray()的两次拷贝，大小未知时才退回到缓冲区的方式
+     */
+    private byte[] readEntry(JarEntry je) throws IOException {
+        try (InputStream input = jarFile.getInputStream(je)) {
+            long size = je.getSize();
+            if (size >= 0 && size <= Integer.MAX_VALUE) {
+                byte[] bytes = new byte[(int) size];
+                int offset = 0;
+                while (offset < bytes.length) {
+                    int bytesNumRead = input.read(bytes, offset, bytes.length - offset);
+                    if (bytesNumRead == -1) {
+                        throw new EOFException("Unexpected end of entry: " + je.getName());
+                    }
+                    offset += bytesNumRead;
+                }
+                return bytes;
+            }
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int bytesNumRead;
+            while ((bytesNumRead = input.read(buffer)) != -1) {
+                baos.write(buffer, 0, bytesNumRead);
+            }
+            return baos.toByteArray();
+        }
+    }
+
+    /**
+     * 是否并行读取jar包中的字节码和xml，扩展包class很多的时候能明显缩短加载时间
+     */
+    public void setParallelLoad(boolean parallelLoad) {
+        this.parallelLoad = parallelLoad;
+    }
+
+    /**
+     * 是否懒加载，开启后load()只装载spring bean、mapper接口以及它们引用到的类，其它类在第一次通过findClass查找时才装载
+     */
+    public void setLazyLoad(boolean lazyLoad) {
+        this.lazyLoad = lazyLoad;
+    }
+
+    /**
+     * 是否隔离装载，开启后类定义在本类加载器里而不是parent里，扩展包卸载或者被新版本替换后，只要外部不再引用这些类，
+     * 类加载器连同类的元数据都可以被gc回收，同名的类在新版本里也能重新定义
+     */
+    public void setIsolated(boolean isolated) {
+        this.isolated = isolated;
     }
 
+    public boolean isIsolated() {
+        return isolated;
+    }
+
+    public long getScanNanos() {
+        return scanNanos;
+    }
+
+    public long getDefineNanos() {
+        return defineNanos;
+    }
+
+    /**
+     * 已经由本类加载器装载的类的数量
+     */
+    public int getDefinedClassCount() {
+        return classesMap.size();
+    }
+
+    /**
+     * 根据索引判断扩展包里一个类的类型，不会装载这个类
+     * @return 不是扩展包里的类、字节码读不了或者还没有load()时返回null
+     */
+    public ModuleClassScanner.Kind getClassKind(String className) {
+        ModuleIndex index = this.index;
+        return index == null ? null : index.getKind(className);
+    }
+
+    /**
+     * 扩展包的索引，还没有load()时返回null
+     */
+    public ModuleIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * 设置索引的磁盘缓存，没有打包索引的jar包第一次装载时生成的索引会存进去
+     */
+    public void setIndexCache(ModuleIndexCache indexCache) {
+        this.indexCache = indexCache;
+    }
+
+    public String getJarHash() {
+        return jarHash;
+    }
+
+    /**
+     * 类定义完以后字节码的保留策略，不是KEEP时load()之后classBytesMap会被清空，还没定义的类压缩或者挪到堆外
+     */
+    public void setClassBytesRetention(ModuleClassBytes.Retention classBytesRetention) {
+        this.classBytesRetention = classBytesRetention;
+    }
+
+    /**
+     * 扩展包里类的字节码，保留策略不是KEEP时只在load()过程中完整
+     */
     public Map<String, byte[]> getClassBytesMap() {
         return classBytesMap;
     }
+
+    public Module getModule() {
+        return module;
+    }
+
+    public void setModule(Module module) {
+        this.module = module;
+    }
+
+    /**
+     * 卸载时释放字节码和类的引用
+     */
+    @Override
+    public void close() throws IOException {
+        module = null;
+        classBytesMap.clear();
+        classesMap.clear();
+        xmlBytesMap.clear();
+        resolvedClassNames.clear();
+        definedPackages.clear();
+        superTypesMap.clear();
+        retainedBytes = null;
+        index = null;
+        if (libraries != null) {
+            libraries.close();
+            libraries = null;
+        }
+        super.close();
+    }
 }
\ No newline at end of file
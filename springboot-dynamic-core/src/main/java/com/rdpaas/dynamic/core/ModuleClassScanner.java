@@ -0,0 +1,220 @@
+package com.rdpaas.dynamic.core;
+
+import org.apache.ibatis.annotations.Mapper;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.Resource;
+import org.springframework.core.type.AnnotationMetadata;
+import org.springframework.core.type.MethodMetadata;
+import org.springframework.core.type.classreading.MetadataReaderFactory;
+import org.springframework.core.type.classreading.SimpleMetadataReaderFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.stereotype.Controller;
+import org.springframework.stereotype.Repository;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.StringUtils;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 不装载类，直接读字节码里的注解元数据，判断扩展包里的类是不是spring的bean、controller、配置类或者mybatis的mapper接口。
+ * 用的是spring扫描@Component时同一套MetadataReader，能识别@Service、@RestController这种组合注解以及自定义的组合注解，
+ * 父类上的注解也算，和SpringUtil.isSpringBeanClass的规则一致
+ * @author rongdi
+ * @date 2021-05-08
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class ModuleClassScanner {
+
+    public enum Kind {
+
+        MAPPER(false),
+
+        CONTROLLER(true),
+
+        CONFIGURATION(true),
+
+        BEAN(true),
+
+        OTHER(false);
+
+        private final boolean bean;
+
+        Kind(boolean bean) {
+            this.bean = bean;
+        }
+
+        /**
+         * 是否要注册成spring的bean，mapper接口由MapperLoader生成代理对象，不算
+         */
+        public boolean isBean() {
+            return bean;
+        }
+    }
+
+    private final static String OBJECT = Object.class.getName();
+
+    private final Map<String, byte[]> classBytesMap;
+
+    private final MetadataReaderFactory metadataReaderFactory;
+
+    /**
+     * 读过的类的元数据，包括扩展包外的父类和接口
+     */
+    private final Map<String, Optional<AnnotationMetadata>> metadataCache = new ConcurrentHashMap<>();
+
+    private final Map<String, Kind> kinds = new ConcurrentHashMap<>();
+
+    /**
+     * @param classBytesMap 扩展包里所有类的字节码
+     * @param classLoader 扩展包外的父类和注解从这个类加载器找
+     */
+    public ModuleClassScanner(Map<String, byte[]> classBytesMap, ClassLoader classLoader) {
+        this.classBytesMap = classBytesMap;
+        /**
+         * 扩展包里的类直接用内存里的字节码，不用再去jar包里读一遍
+         */
+        this.metadataReaderFactory = new SimpleMetadataReaderFactory(new DefaultResourceLoader(classLoader) {
+            @Override
+            public Resource getResource(String location) {
+                if (location.startsWith(CLASSPATH_URL_PREFIX) && location.endsWith(ClassUtils.CLASS_FILE_SUFFIX)) {
+                    String path = location.substring(CLASSPATH_URL_PREFIX.length(),
+                            location.length() - ClassUtils.CLASS_FILE_SUFFIX.length());
+                    byte[] bytes = classBytesMap.get(ClassUtils.convertResourcePathToClassName(path));
+                    if (bytes != null) {
+                        return new ByteArrayResource(bytes, location);
+                    }
+                }
+                return super.getResource(location);
+            }
+        });
+    }
+
+    /**
+     * 判断扩展包里一个类的类型
+     * @param className 类的全限定名
+     * @return 不是扩展包里的类，或者字节码读不了（比如class版本比spring自带的asm支持的还新）返回null，由调用方装载类后反射判断
+     */
+    public Kind getKind(String className) {
+        if (!classBytesMap.containsKey(className)) {
+            return null;
+        }
+        return kinds.computeIfAbsent(className, this::classify);
+    }
+
+    private Kind classify(String className) {
+        AnnotationMetadata metadata = getMetadata(className);
+        if (metadata == null) {
+            return null;
+        }
+        /**
+         * 接口只有mapper接口需要关心
+         */
+        if (metadata.isInterface()) {
+            return metadata.isAnnotated(Mapper.class.getName()) || metadata.isAnnotated(Repository.class.getName())
+                    ? Kind.MAPPER : Kind.OTHER;
+        }
+        if (metadata.isAbstract()) {
+            return Kind.OTHER;
+        }
+        if (!hasAnnotation(metadata, Component.class.getName(), false)) {
+            return Kind.OTHER;
+        }
+        /**
+         * 和AnnotatedElementUtils.hasAnnotation一样，接口上的@RequestMapping也算
+         */
+        if (hasAnnotation(metadata, Controller.class.getName(), true) || hasAnnotation(metadata, RequestMapping.class.getName(), true)) {
+            return Kind.CONTROLLER;
+        }
+        if (metadata.isAnnotated(Configuration.class.getName())) {
+            return Kind.CONFIGURATION;
+        }
+        return Kind.BEAN;
+    }
+
+    /**
+     * 列出controller自己声明的接口，格式是"GET /user/get"，没有限定请求方式的不带前缀。只是按注解的值拼出来的，
+     * 不解析占位符，也不包括从父类继承来的方法，真正注册接口还是交给springmvc
+     * @param className 类的全限定名
+     * @return 不是controller返回空集合
+     */
+    public List<String> getRequestMappings(String className) {
+        if (getKind(className) != Kind.CONTROLLER) {
+            return Collections.emptyList();
+        }
+        AnnotationMetadata metadata = getMetadata(className);
+        String requestMapping = RequestMapping.class.getName();
+        String[] prefixes = getPaths(metadata.getAnnotationAttributes(requestMapping));
+        List<String> mappings = new ArrayList<>();
+        for (MethodMetadata method : metadata.getAnnotatedMethods(requestMapping)) {
+            Map<String, Object> attributes = method.getAnnotationAttributes(requestMapping);
+            RequestMethod[] requestMethods = attributes == null ? null : (RequestMethod[]) attributes.get("method");
+            String methods = requestMethods == null || requestMethods.length == 0 ? ""
+                    : StringUtils.arrayToDelimitedString(requestMethods, ",") + " ";
+            for (String prefix : prefixes) {
+                for (String path : getPaths(attributes)) {
+                    mappings.add(methods + combine(prefix, path));
+                }
+            }
+        }
+        Collections.sort(mappings);
+        return mappings;
+    }
+
+    private String[] getPaths(Map<String, Object> attributes) {
+        String[] paths = attributes == null ? null : (String[]) attributes.get("path");
+        return paths == null || paths.length == 0 ? new String[]{""} : paths;
+    }
+
+    private String combine(String prefix, String path) {
+        String combined = "/" + prefix + "/" + path;
+        combined = combined.replaceAll("/+", "/");
+        return combined.length() > 1 && combined.endsWith("/") ? combined.substring(0, combined.length() - 1) : combined;
+    }
+
+    /**
+     * 类本身或者父类上有没有直接或者组合的注解
+     * @param interfaces 是否也找接口
+     */
+    private boolean hasAnnotation(AnnotationMetadata metadata, String annotationName, boolean interfaces) {
+        if (metadata.isAnnotated(annotationName)) {
+            return true;
+        }
+        if (interfaces) {
+            for (String interfaceName : metadata.getInterfaceNames()) {
+                AnnotationMetadata interfaceMetadata = getMetadata(interfaceName);
+                if (interfaceMetadata != null && hasAnnotation(interfaceMetadata, annotationName, true)) {
+                    return true;
+                }
+            }
+        }
+        String superClassName = metadata.getSuperClassName();
+        if (superClassName == null || OBJECT.equals(superClassName)) {
+            return false;
+        }
+        AnnotationMetadata superMetadata = getMetadata(superClassName);
+        return superMetadata != null && hasAnnotation(superMetadata, annotationName, interfaces);
+    }
+
+    private AnnotationMetadata getMetadata(String className) {
+        return metadataCache.computeIfAbsent(className, key -> {
+            try {
+                return Optional.of(metadataReaderFactory.getMetadataReader(key).getAnnotationMetadata());
+            } catch (IOException e) {
+                /**
+                 * 找不到字节码的父类按没有注解处理
+                 */
+                return Optional.empty();
+            }
+        }).orElse(null);
+    }
+}
@@ -0,0 +1,123 @@
+package com.rdpaas.dynamic.core;
+
+import com.rdpaas.dynamic.utils.Accessors;
+import org.apache.ibatis.cache.Cache;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.ResultMap;
+import org.apache.ibatis.parsing.XNode;
+import org.apache.ibatis.session.Configuration;
+
+import java.util.Map;
+
+/**
+ * 扩展包某一个版本自己的mybatis配置，蓝绿刷新时新版本的mapper.xml先注册到这里，不动宿主的Configuration，切换前
+ * 旧版本照常处理请求，切换失败直接丢掉就行。settings、类型别名、TypeHandler和插件都和宿主共用，引用宿主的
+ * resultMap、sql片段、语句和缓存时找不到就去宿主里找。MapperLoader刷新时也拿它当暂存区，在锁外构建好再合并进宿主
+ *
+ * 宿主的属性是创建时复制过来的快照：TypeHandler、类型别名、插件链这些注册表和宿主是同一个对象，之后往宿主里加的也能看到，
+ * 但mapUnderscoreToCamelCase、defaultExecutorType这类settings之后在宿主上改了，已经创建的ModuleConfiguration和
+ * 在它上面构建出来的语句还是旧值。这个类继承的是mybatis的Configuration，宿主是mybatis-plus的MybatisConfiguration这种
+ * 子类时，子类自己的属性和重写的方法都不会带过来，构建语句时走的是mybatis原本的逻辑
+ * @author rongdi
+ * @date 2021-04-17
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class ModuleConfiguration extends Configuration {
+
+    private final Configuration parent;
+
+    private final Map<String, XNode> fragments;
+
+    public ModuleConfiguration(Configuration parent) {
+        this.parent = parent;
+        this.fragments = new FallbackMap<>("SQL fragments", parent.getSqlFragments());
+        /**
+         * 各种注册表每个版本自己一份，其它属性都直接引用宿主的
+         */
+        Accessors.CONFIGURATION_SETTINGS.copy(parent, this);
+    }
+
+    public Configuration getParent() {
+        return parent;
+    }
+
+    /**
+     * 当作MapperLoader的暂存区用时，注册表合并进宿主以后清掉自己这一份。已经构建好的语句还引用着这个配置，之后它们
+     * 查找resultMap、语句和缓存时全部落到宿主，宿主里再被替换也能拿到最新的
+     */
+    public void clearRegistries() {
+        mappedStatements.clear();
+        caches.clear();
+        resultMaps.clear();
+        parameterMaps.clear();
+        keyGenerators.clear();
+        loadedResources.clear();
+        fragments.clear();
+        cacheRefMap.clear();
+    }
+
+    @Override
+    public Map<String, XNode> getSqlFragments() {
+        return fragments;
+    }
+
+    @Override
+    public boolean hasResultMap(String id) {
+        return super.hasResultMap(id) || parent.hasResultMap(id);
+    }
+
+    @Override
+    public ResultMap getResultMap(String id) {
+        if (!resultMaps.containsKey(id) && parent.hasResultMap(id)) {
+            return parent.getResultMap(id);
+        }
+        return super.getResultMap(id);
+    }
+
+    @Override
+    public boolean hasStatement(String statementName, boolean validateIncompleteStatements) {
+        return super.hasStatement(statementName, validateIncompleteStatements) || parent.hasStatement(statementName, false);
+    }
+
+    @Override
+    public MappedStatement getMappedStatement(String id, boolean validateIncompleteStatements) {
+        if (!mappedStatements.containsKey(id) && parent.hasStatement(id, false)) {
+            return parent.getMappedStatement(id, false);
+        }
+        return super.getMappedStatement(id, validateIncompleteStatements);
+    }
+
+    @Override
+    public boolean hasCache(String id) {
+        return super.hasCache(id) || parent.hasCache(id);
+    }
+
+    @Override
+    public Cache getCache(String id) {
+        if (!caches.containsKey(id) && parent.hasCache(id)) {
+            return parent.getCache(id);
+        }
+        return super.getCache(id);
+    }
+
+    /**
+     * 读取时自己没有的key去宿主里找，写入和重复校验只看自己这里
+     */
+    private static class FallbackMap<V> extends StrictMap<V> {
+
+        private final Map<String, V> fallback;
+
+        FallbackMap(String name, Map<String, V> fallback) {
+            super(name);
+            this.fallback = fallback;
+        }
+
+        @Override
+        public V get(Object key) {
+            if (!super.containsKey(key) && fallback.containsKey(key)) {
+                return fallback.get(key);
+            }
+            return super.get(key);
+        }
+    }
+}
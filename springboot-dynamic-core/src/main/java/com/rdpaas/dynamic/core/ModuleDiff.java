@@ -0,0 +1,132 @@
+package com.rdpaas.dynamic.core;
+
+import org.springframework.util.DigestUtils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * 扩展包两个版本之间的差量，按每个class和mapper.xml内容的摘要来比较
+ * @author rongdi
+ * @date 2021-03-20
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class ModuleDiff {
+
+    private final Set<String> changedClasses = new TreeSet<>();
+
+    /**
+     * 上个版本里也有、内容有变化的class，不含新增的
+     */
+    private final Set<String> modifiedClasses = new TreeSet<>();
+
+    private final Set<String> removedClasses = new TreeSet<>();
+
+    private final Set<String> unchangedClasses = new TreeSet<>();
+
+    private final Set<String> changedXmls = new TreeSet<>();
+
+    private final Set<String> removedXmls = new TreeSet<>();
+
+    private final Set<String> unchangedXmls = new TreeSet<>();
+
+    /**
+     * @param previousClassHashes 上个版本class的摘要
+     * @param classHashes 当前版本class的摘要
+     * @param previousXmlHashes 上个版本xml的摘要
+     * @param xmlHashes 当前版本xml的摘要
+     */
+    public ModuleDiff(Map<String, String> previousClassHashes, Map<String, String> classHashes,
+                      Map<String, String> previousXmlHashes, Map<String, String> xmlHashes) {
+        compare(previousClassHashes, classHashes, changedClasses, removedClasses, unchangedClasses);
+        for (String className : changedClasses) {
+            if (previousClassHashes.containsKey(className)) {
+                modifiedClasses.add(className);
+            }
+        }
+        compare(previousXmlHashes, xmlHashes, changedXmls, removedXmls, unchangedXmls);
+    }
+
+    /**
+     * 计算每一项内容的摘要
+     * @param bytesMap
+     * @return
+     */
+    public static Map<String, String> hash(Map<String, byte[]> bytesMap) {
+        Map<String, String> hashes = new HashMap<>();
+        bytesMap.forEach((name, bytes) -> hashes.put(name, DigestUtils.md5DigestAsHex(bytes)));
+        return hashes;
+    }
+
+    private static void compare(Map<String, String> previous, Map<String, String> current, Set<String> changed,
+                                Set<String> removed, Set<String> unchanged) {
+        current.forEach((name, hash) -> {
+            if (hash.equals(previous.get(name))) {
+                unchanged.add(name);
+            } else {
+                changed.add(name);
+            }
+        });
+        for (String name : previous.keySet()) {
+            if (!current.containsKey(name)) {
+                removed.add(name);
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return changedClasses.isEmpty() && removedClasses.isEmpty() && changedXmls.isEmpty() && removedXmls.isEmpty();
+    }
+
+    /**
+     * 新增或者内容有变化的class
+     */
+    public Set<String> getChangedClasses() {
+        return Collections.unmodifiableSet(changedClasses);
+    }
+
+    /**
+     * 内容有变化的class，同名的类已经定义过了，只有隔离模式下新的类加载器才能重新定义它们
+     */
+    public Set<String> getModifiedClasses() {
+        return Collections.unmodifiableSet(modifiedClasses);
+    }
+
+    public Set<String> getRemovedClasses() {
+        return Collections.unmodifiableSet(removedClasses);
+    }
+
+    public Set<String> getUnchangedClasses() {
+        return Collections.unmodifiableSet(unchangedClasses);
+    }
+
+    /**
+     * 新增或者内容有变化的mapper.xml
+     */
+    public Set<String> getChangedXmls() {
+        return Collections.unmodifiableSet(changedXmls);
+    }
+
+    public Set<String> getRemovedXmls() {
+        return Collections.unmodifiableSet(removedXmls);
+    }
+
+    public Set<String> getUnchangedXmls() {
+        return Collections.unmodifiableSet(unchangedXmls);
+    }
+
+    @Override
+    public String toString() {
+        return "ModuleDiff{" +
+            "changedClasses=" + changedClasses +
+            ", removedClasses=" + removedClasses +
+            ", skippedClasses=" + unchangedClasses.size() +
+            ", changedXmls=" + changedXmls +
+            ", removedXmls=" + removedXmls +
+            ", skippedXmls=" + unchangedXmls +
+            '}';
+    }
+}
@@ -0,0 +1,57 @@
+package com.rdpaas.dynamic.core;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * actuator的/actuator/modules端点，列出当前生效的扩展包版本、正在处理的请求数和刷新耗时，/actuator/modules/{moduleId}
+ * 只看一个扩展包。只有引入了spring-boot-actuator才会装配，暴露出去还要配置management.endpoints.web.exposure.include
+ * @author rongdi
+ * @date 2021-05-08
+ * @blog https://www.cnblogs.com/rongdi
+ */
+@Endpoint(id = "modules")
+public class ModuleEndpoint {
+
+    private final ModuleApplication moduleApplication;
+
+    public ModuleEndpoint(ModuleApplication moduleApplication) {
+        this.moduleApplication = moduleApplication;
+    }
+
+    @ReadOperation
+    public Map<String, Object> modules() {
+        Map<String, Object> result = new TreeMap<>();
+        for (Module module : moduleApplication.getModuleRegistry().getModules()) {
+            result.put(module.getId(), describe(module));
+        }
+        return result;
+    }
+
+    /**
+     * 扩展包不存在时返回null，actuator会转成404
+     */
+    @ReadOperation
+    public Map<String, Object> module(@Selector String moduleId) {
+        Module module = moduleApplication.getModuleRegistry().get(moduleId);
+        return module == null ? null : describe(module);
+    }
+
+    private Map<String, Object> describe(Module module) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("version", module.getVersion());
+        map.put("url", module.getUrl().toString());
+        map.put("jarHash", module.getJarHash());
+        map.put("inFlight", module.getInFlight());
+        map.put("beans", module.getBeanNames().size());
+        map.put("mappers", module.getMapperNamespaces().size());
+        map.put("handlers", module.getMappingInfos().size());
+        map.put("metrics", moduleApplication.getMetrics().snapshot().get(module.getId()));
+        return map;
+    }
+}
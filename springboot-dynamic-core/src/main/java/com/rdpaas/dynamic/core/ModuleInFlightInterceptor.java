@@ -0,0 +1,78 @@
+package com.rdpaas.dynamic.core;
+
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * 统计每个扩展包版本正在处理的请求数，旧版本被替换或者卸载时要等这些请求处理完才能释放
+ * @author rongdi
+ * @date 2021-04-17
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class ModuleInFlightInterceptor implements AsyncHandlerInterceptor {
+
+    private final static String MODULE_ATTRIBUTE = ModuleInFlightInterceptor.class.getName() + ".module";
+
+    private final ModuleRegistry moduleRegistry;
+
+    public ModuleInFlightInterceptor(ModuleRegistry moduleRegistry) {
+        this.moduleRegistry = moduleRegistry;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        if (handler instanceof HandlerMethod) {
+            Module module = findModule((HandlerMethod) handler);
+            if (module != null) {
+                module.enter();
+                request.setAttribute(MODULE_ATTRIBUTE, module);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 隔离模式下接口的类就是找到接口时那个版本的类，由它的类加载器确定版本，不受之后beanName被新版本重新绑定的影响。
+     * 非隔离模式下类都在宿主的类加载器里，只能按beanName找
+     */
+    private Module findModule(HandlerMethod handlerMethod) {
+        ClassLoader classLoader = handlerMethod.getBeanType().getClassLoader();
+        if (classLoader instanceof ModuleClassLoader && ((ModuleClassLoader) classLoader).getModule() != null) {
+            return ((ModuleClassLoader) classLoader).getModule();
+        }
+        /**
+         * 扩展包的接口都是按beanName注册的，处理请求时拿到的是已经取出bean的HandlerMethod，要从原始的那个拿beanName
+         */
+        if (handlerMethod.getResolvedFromHandlerMethod() != null) {
+            handlerMethod = handlerMethod.getResolvedFromHandlerMethod();
+        }
+        if (handlerMethod.getBean() instanceof String) {
+            return moduleRegistry.findByBeanName((String) handlerMethod.getBean());
+        }
+        return null;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        exit(request);
+    }
+
+    /**
+     * 异步请求在这里就离开了接口方法，异步结果回来时会再走一遍preHandle
+     */
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        exit(request);
+    }
+
+    private void exit(HttpServletRequest request) {
+        Object module = request.getAttribute(MODULE_ATTRIBUTE);
+        if (module instanceof Module) {
+            request.removeAttribute(MODULE_ATTRIBUTE);
+            ((Module) module).exit();
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.rdpaas.dynamic.core;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.annotation.JSONField;
+import com.alibaba.fastjson.serializer.SerializerFeature;
+import com.rdpaas.dynamic.utils.BytecodeUtil;
+import com.rdpaas.dynamic.utils.SpringUtil;
+import org.apache.ibatis.builder.xml.XMLMapperEntityResolver;
+import org.apache.ibatis.parsing.XPathParser;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * 扩展包的索引，记录每个类是不是bean、beanName、在扩展包里的父类和接口、controller的接口、每个mapper.xml的namespace以及
+ * 所有class和xml内容的摘要。打包时由springboot-dynamic-maven-plugin生成放在jar包的META-INF下，没有的话运行时生成一次
+ * 缓存到磁盘上，有了索引装载扩展包时就不用再逐个读字节码判断类型和计算摘要
+ * @author rongdi
+ * @date 2021-05-08
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class ModuleIndex {
+
+    /**
+     * 索引在jar包里的位置
+     */
+    public final static String LOCATION = "META-INF/springboot-dynamic/module-index.json";
+
+    /**
+     * 索引格式的版本，格式不兼容时加一，旧版本的索引直接忽略
+     */
+    public final static int FORMAT = 1;
+
+    private int format = FORMAT;
+
+    /**
+     * 类的全限定名 -> 类的信息
+     */
+    private Map<String, ClassEntry> classes = new TreeMap<>();
+
+    /**
+     * mapper.xml在jar包里的路径 -> xml的信息
+     */
+    private Map<String, XmlEntry> xmls = new TreeMap<>();
+
+    /**
+     * 根据扩展包的内容生成索引
+     * @param classBytesMap 扩展包里所有类的字节码
+     * @param xmlBytesMap 扩展包里所有mapper.xml
+     * @param classScanner 判断类的类型
+     */
+    public static ModuleIndex build(Map<String, byte[]> classBytesMap, Map<String, byte[]> xmlBytesMap,
+                                    ModuleClassScanner classScanner) {
+        ModuleIndex index = new ModuleIndex();
+        Map<String, String> classHashes = ModuleDiff.hash(classBytesMap);
+        classBytesMap.forEach((className, bytes) -> {
+            ClassEntry entry = new ClassEntry();
+            entry.setHash(classHashes.get(className));
+            entry.setKind(classScanner.getKind(className));
+            if (entry.getKind() != null && entry.getKind().isBean()) {
+                entry.setBeanName(SpringUtil.getBeanName(className));
+            }
+            List<String> mappings = classScanner.getRequestMappings(className);
+            if (!mappings.isEmpty()) {
+                entry.setMappings(mappings);
+            }
+            try {
+                List<String> superTypes = new ArrayList<>();
+                for (String superType : BytecodeUtil.getSuperTypeNames(bytes)) {
+                    if (classBytesMap.containsKey(superType)) {
+                        superTypes.add(superType);
+                    }
+                }
+                entry.setSuperTypes(superTypes);
+            } catch (IllegalArgumentException e) {
+                /**
+                 * 字节码读不了，留空由类加载器自己处理
+                 */
+            }
+            index.classes.put(className, entry);
+        });
+        Map<String, String> xmlHashes = ModuleDiff.hash(xmlBytesMap);
+        xmlBytesMap.forEach((path, bytes) -> {
+            XmlEntry entry = new XmlEntry();
+            entry.setHash(xmlHashes.get(path));
+            try {
+                entry.setNamespace(new XPathParser(new ByteArrayInputStream(bytes), true, null, new XMLMapperEntityResolver())
+                        .evalNode("/mapper").getStringAttribute("namespace"));
+            } catch (RuntimeException e) {
+                /**
+                 * xml写错了留到注册的时候再报错
+                 */
+            }
+            index.xmls.put(path, entry);
+        });
+        return index;
+    }
+
+    public static ModuleIndex parse(byte[] bytes) {
+        return JSON.parseObject(bytes, ModuleIndex.class);
+    }
+
+    public byte[] toBytes() {
+        return JSON.toJSONBytes(this, SerializerFeature.PrettyFormat);
+    }
+
+    /**
+     * 索引是不是和扩展包的内容对得上，格式版本不对或者类和xml的清单不一致时不能用
+     */
+    public boolean matches(Set<String> classNames, Set<String> xmlPaths) {
+        return format == FORMAT && classes.keySet().equals(classNames) && xmls.keySet().equals(xmlPaths);
+    }
+
+    public ModuleClassScanner.Kind getKind(String className) {
+        ClassEntry entry = classes.get(className);
+        return entry == null ? null : entry.getKind();
+    }
+
+    /**
+     * 类在扩展包里的父类和接口
+     * @return 不是扩展包里的类或者索引里没有记录时返回null
+     */
+    public List<String> getSuperTypes(String className) {
+        ClassEntry entry = classes.get(className);
+        return entry == null ? null : entry.getSuperTypes();
+    }
+
+    /**
+     * 每个class内容的摘要，和ModuleDiff.hash算出来的一样
+     */
+    @JSONField(serialize = false)
+    public Map<String, String> getClassHashes() {
+        Map<String, String> hashes = new HashMap<>();
+        classes.forEach((className, entry) -> hashes.put(className, entry.getHash()));
+        return hashes;
+    }
+
+    @JSONField(serialize = false)
+    public Map<String, String> getXmlHashes() {
+        Map<String, String> hashes = new HashMap<>();
+        xmls.forEach((path, entry) -> hashes.put(path, entry.getHash()));
+        return hashes;
+    }
+
+    /**
+     * mapper的namespace -> xml在jar包里的路径
+     */
+    @JSONField(serialize = false)
+    public Map<String, String> getMapperNamespaces() {
+        Map<String, String> namespaces = new TreeMap<>();
+        xmls.forEach((path, entry) -> {
+            if (entry.getNamespace() != null) {
+                namespaces.put(entry.getNamespace(), path);
+            }
+        });
+        return namespaces;
+    }
+
+    public int getFormat() {
+        return format;
+    }
+
+    public void setFormat(int format) {
+        this.format = format;
+    }
+
+    public Map<String, ClassEntry> getClasses() {
+        return classes;
+    }
+
+    public void setClasses(Map<String, ClassEntry> classes) {
+        this.classes = classes;
+    }
+
+    public Map<String, XmlEntry> getXmls() {
+        return xmls;
+    }
+
+    public void setXmls(Map<String, XmlEntry> xmls) {
+        this.xmls = xmls;
+    }
+
+    public static class ClassEntry {
+
+        private String hash;
+
+        /**
+         * 字节码读不了时为空
+         */
+        private ModuleClassScanner.Kind kind;
+
+        /**
+         * 只有bean才有
+         */
+        private String beanName;
+
+        private List<String> superTypes;
+
+        /**
+         * controller的接口，格式是"GET /user/get"
+         */
+        private List<String> mappings;
+
+        public String getHash() {
+            return hash;
+        }
+
+        public void setHash(String hash) {
+            this.hash = hash;
+        }
+
+        public ModuleClassScanner.Kind getKind() {
+            return kind;
+        }
+
+        public void setKind(ModuleClassScanner.Kind kind) {
+            this.kind = kind;
+        }
+
+        public String getBeanName() {
+            return beanName;
+        }
+
+        public void setBeanName(String beanName) {
+            this.beanName = beanName;
+        }
+
+        public List<String> getSuperTypes() {
+            return superTypes;
+        }
+
+        public void setSuperTypes(List<String> superTypes) {
+            this.superTypes = superTypes;
+        }
+
+        public List<String> getMappings() {
+            return mappings;
+        }
+
+        public void setMappings(List<String> mappings) {
+            this.mappings = mappings;
+        }
+    }
+
+    public static class XmlEntry {
+
+        private String hash;
+
+        private String namespace;
+
+        public String getHash() {
+            return hash;
+        }
+
+        public void setHash(String hash) {
+            this.hash = hash;
+        }
+
+        public String getNamespace() {
+            return namespace;
+        }
+
+        public void setNamespace(String namespace) {
+            this.namespace = namespace;
+        }
+    }
+}
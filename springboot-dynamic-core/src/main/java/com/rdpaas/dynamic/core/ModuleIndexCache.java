@@ -0,0 +1,87 @@
+package com.rdpaas.dynamic.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * 运行时生成的扩展包索引的磁盘缓存，按整个jar包内容的摘要存放，重启或者重复刷新同一个jar包时直接读缓存。
+ * 读写失败都只打日志，最多退回到重新生成索引，不影响扩展包的装载
+ * @author rongdi
+ * @date 2021-05-08
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class ModuleIndexCache {
+
+    private final static Logger logger = LoggerFactory.getLogger(ModuleIndexCache.class);
+
+    private final Path directory;
+
+    public ModuleIndexCache(File directory) {
+        this.directory = directory.toPath();
+    }
+
+    /**
+     * @param jarHash jar包内容的摘要
+     * @return 没有缓存或者缓存读不了时返回null
+     */
+    public ModuleIndex get(String jarHash) {
+        Path file = getFile(jarHash);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try {
+            return ModuleIndex.parse(Files.readAllBytes(file));
+        } catch (IOException | RuntimeException e) {
+            logger.warn("read module index cache '{}' failed, rebuild it: {}", file, e.getMessage());
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ignored) {
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 先写临时文件再改名，多个进程共用一个缓存目录时也不会读到写了一半的文件
+     */
+    public void put(String jarHash, ModuleIndex index) {
+        Path file = getFile(jarHash);
+        Path tmp = null;
+        try {
+            Files.createDirectories(directory);
+            tmp = Files.createTempFile(directory, jarHash, ".tmp");
+            Files.write(tmp, index.toBytes());
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("write module index cache '{}' failed: {}", file, e.getMessage());
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * 文件名带上索引格式的版本，格式升级后旧的缓存自然失效
+     */
+    private Path getFile(String jarHash) {
+        return directory.resolve(jarHash + "-v" + ModuleIndex.FORMAT + ".json");
+    }
+
+    public File getDirectory() {
+        return directory.toFile();
+    }
+}
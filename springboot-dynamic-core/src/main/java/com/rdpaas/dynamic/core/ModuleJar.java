@@ -0,0 +1,69 @@
+package com.rdpaas.dynamic.core;
+
+import org.springframework.util.DigestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+
+/**
+ * ModuleSource解析扩展包地址得到的本地jar包，带着jar包内容的摘要，内容没变的扩展包靠它跳过下载和重新装载
+ * @author rongdi
+ * @date 2021-05-08
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class ModuleJar {
+
+    /**
+     * 配置的扩展包地址
+     */
+    private final URL url;
+
+    /**
+     * 本地的jar包
+     */
+    private final File file;
+
+    /**
+     * jar包内容的md5
+     */
+    private final String hash;
+
+    public ModuleJar(URL url, File file, String hash) {
+        this.url = url;
+        this.file = file;
+        this.hash = hash;
+    }
+
+    /**
+     * 本地jar包，现场计算摘要
+     */
+    public static ModuleJar of(URL url, File file) throws IOException {
+        try (InputStream input = Files.newInputStream(file.toPath())) {
+            return new ModuleJar(url, file, DigestUtils.md5DigestAsHex(input));
+        }
+    }
+
+    public URL getUrl() {
+        return url;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "ModuleJar{" +
+            "url=" + url +
+            ", file=" + file +
+            ", hash='" + hash + '\'' +
+            '}';
+    }
+}
@@ -0,0 +1,184 @@
+package com.rdpaas.dynamic.core;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.serializer.SerializerFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.DigestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * 下载下来的扩展包的本地缓存，jar包按内容的md5存放，同样内容的jar包不管从哪个地址下载的都只存一份。另外按地址记录上次下载
+ * 得到的ETag、Last-Modified和md5，下次带着它们去条件下载，没变就不用再下载。多个进程共用一个目录也没关系，写文件都是先写
+ * 临时文件再改名
+ * @author rongdi
+ * @date 2021-05-08
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class ModuleJarCache {
+
+    private final static Logger logger = LoggerFactory.getLogger(ModuleJarCache.class);
+
+    private final Path directory;
+
+    public ModuleJarCache(File directory) {
+        this.directory = directory.toPath();
+    }
+
+    /**
+     * @param hash jar包内容的md5
+     * @return 没有缓存时返回null
+     */
+    public File get(String hash) {
+        if (hash == null) {
+            return null;
+        }
+        File file = getJarFile(hash).toFile();
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * 把下载好的临时文件按摘要放进缓存，已经有同样内容的jar包时直接丢掉临时文件
+     * @param tmp 由newTempFile创建的临时文件
+     * @param hash 临时文件内容的md5
+     * @return 缓存里的jar包
+     */
+    public File put(Path tmp, String hash) throws IOException {
+        Path file = getJarFile(hash);
+        if (Files.isRegularFile(file)) {
+            Files.deleteIfExists(tmp);
+            return file.toFile();
+        }
+        /**
+         * 别的进程同时放进来同样的内容，覆盖掉也没关系
+         */
+        try {
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return file.toFile();
+    }
+
+    /**
+     * 在缓存目录里新建一个临时文件，和缓存的jar包在同一个目录下改名才是原子的
+     */
+    public Path newTempFile() throws IOException {
+        Files.createDirectories(directory);
+        return Files.createTempFile(directory, "download", ".tmp");
+    }
+
+    /**
+     * @param url 扩展包地址
+     * @return 没下载过或者记录读不了时返回null
+     */
+    public Entry getEntry(URL url) {
+        Path file = getEntryFile(url);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try {
+            Entry entry = JSON.parseObject(Files.readAllBytes(file), Entry.class);
+            return entry != null && url.toString().equals(entry.getUrl()) ? entry : null;
+        } catch (IOException | RuntimeException e) {
+            logger.warn("read module jar cache entry '{}' failed, ignore it: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    public void putEntry(Entry entry) {
+        Path file = null;
+        Path tmp = null;
+        try {
+            file = getEntryFile(new URL(entry.getUrl()));
+            Files.createDirectories(directory);
+            tmp = Files.createTempFile(directory, "entry", ".tmp");
+            Files.write(tmp, JSON.toJSONBytes(entry, SerializerFeature.PrettyFormat));
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("write module jar cache entry '{}' failed: {}", file, e.getMessage());
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private Path getJarFile(String hash) {
+        return directory.resolve(hash + ".jar");
+    }
+
+    /**
+     * 地址里可能有各种特殊字符，文件名取地址的md5
+     */
+    private Path getEntryFile(URL url) {
+        return directory.resolve(DigestUtils.md5DigestAsHex(url.toString().getBytes(StandardCharsets.UTF_8)) + ".url.json");
+    }
+
+    public File getDirectory() {
+        return directory.toFile();
+    }
+
+    /**
+     * 一个地址上次下载的结果
+     */
+    public static class Entry {
+
+        private String url;
+
+        private String etag;
+
+        private String lastModified;
+
+        /**
+         * 下载得到的jar包内容的md5
+         */
+        private String hash;
+
+        public String getUrl() {
+            return url;
+        }
+
+        public void setUrl(String url) {
+            this.url = url;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public void setEtag(String etag) {
+            this.etag = etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        public void setLastModified(String lastModified) {
+            this.lastModified = lastModified;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public void setHash(String hash) {
+            this.hash = hash;
+        }
+    }
+}
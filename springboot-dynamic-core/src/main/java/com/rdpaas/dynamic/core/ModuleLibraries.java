@@ -0,0 +1,522 @@
+package com.rdpaas.dynamic.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * 扩展包里lib/目录下自带的第三方jar包。不解压到临时目录，而是自己解析外层jar包的目录，找到每个内层jar包在文件里的位置，
+ * 用到哪一项再直接从外层文件里读那一段：内层jar包是以存储方式（不压缩）打进去的，读一项只是定位后读一段再解压这一项；内层
+ * jar包本身又被压缩过的，只能在内存里整体解压一次。所有内层jar包的项按目录建索引，找一个类只看这个包所在的几个jar包，
+ * 和内层jar包的数量无关。没有用内存映射，是因为映射着的文件被直接覆盖时jvm会崩溃。文件一直开着，记下打开时的大小、修改时间
+ * 和文件标识，每次读之前核对，原地被改写过时直接报错，不按旧的位置读出错乱的内容；整个文件被换成新的时开着的还是旧文件，照常读
+ * @author rongdi
+ * @date 2021-05-08
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class ModuleLibraries implements Closeable {
+
+    private final static Logger logger = LoggerFactory.getLogger(ModuleLibraries.class);
+
+    private final static String[] LIBRARY_PREFIXES = {"lib/", "BOOT-INF/lib/"};
+
+    private final static String JAR_SUFFIX = ".jar";
+
+    private final static int LOCAL_HEADER = 0x04034b50;
+
+    private final static int LOCAL_HEADER_SIZE = 30;
+
+    private final static int CENTRAL_HEADER = 0x02014b50;
+
+    private final static int CENTRAL_HEADER_SIZE = 46;
+
+    private final static int END_OF_CENTRAL = 0x06054b50;
+
+    private final static int END_OF_CENTRAL_SIZE = 22;
+
+    private final static int STORED = 0;
+
+    private final static int DEFLATED = 8;
+
+    private final File file;
+
+    private final OuterFile outerFile;
+
+    private final List<NestedJar> jars;
+
+    /**
+     * 目录 -> 含有这个目录的内层jar包，按jar包在扩展包里的顺序排，同名的项取前面的
+     */
+    private final Map<String, List<NestedJar>> directoryIndex = new HashMap<>();
+
+    private ModuleLibraries(File file, OuterFile outerFile, List<NestedJar> jars) {
+        this.file = file;
+        this.outerFile = outerFile;
+        this.jars = jars;
+        for (NestedJar jar : jars) {
+            for (String directory : jar.directories) {
+                directoryIndex.computeIfAbsent(directory, key -> new ArrayList<>(1)).add(jar);
+            }
+        }
+    }
+
+    /**
+     * 外层jar包里的一项是不是自带的第三方jar包
+     */
+    public static boolean isLibraryEntry(String name) {
+        if (!name.endsWith(JAR_SUFFIX)) {
+            return false;
+        }
+        for (String prefix : LIBRARY_PREFIXES) {
+            if (name.startsWith(prefix) && name.indexOf('/', prefix.length()) < 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 打开扩展包里所有的内层jar包，只读目录，不读内容
+     * @param file 扩展包
+     */
+    public static ModuleLibraries open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            OuterFile outerFile = new OuterFile(file.toPath(), channel);
+            Data outer = new FileData(outerFile, 0, outerFile.size);
+            List<NestedJar> jars = new ArrayList<>();
+            for (Entry entry : readDirectory(outer).values()) {
+                if (!isLibraryEntry(entry.name)) {
+                    continue;
+                }
+                Data data;
+                if (entry.method == STORED) {
+                    data = new FileData(outerFile, getDataOffset(outer, entry), entry.compressedSize);
+                } else {
+                    logger.info("library '{}' in '{}' is compressed, inflate it in memory, package it stored to read it in place",
+                            entry.name, file);
+                    data = new BytesData(read(outer, entry));
+                }
+                jars.add(new NestedJar(entry.name, data, readDirectory(data)));
+            }
+            return new ModuleLibraries(file, outerFile, jars);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param className 类的全限定名
+     * @return 字节码，内层jar包里都没有时返回null
+     */
+    public byte[] findClass(String className) throws IOException {
+        String name = className.replace('.', '/') + ".class";
+        NestedJar jar = find(name);
+        return jar == null ? null : read(jar.data, jar.entries.get(name));
+    }
+
+    public boolean containsClass(String className) {
+        return find(className.replace('.', '/') + ".class") != null;
+    }
+
+    /**
+     * @param name 资源路径，如META-INF/services/xxx
+     * @return 第一个含有这个资源的内层jar包里的资源，没有时返回null
+     */
+    public URL findResource(String name) {
+        NestedJar jar = find(name);
+        return jar == null ? null : toUrl(jar, jar.entries.get(name));
+    }
+
+    public List<URL> findResources(String name) {
+        List<NestedJar> candidates = directoryIndex.get(getDirectory(name));
+        if (candidates == null) {
+            return Collections.emptyList();
+        }
+        List<URL> urls = new ArrayList<>();
+        for (NestedJar jar : candidates) {
+            Entry entry = jar.entries.get(name);
+            if (entry != null) {
+                URL url = toUrl(jar, entry);
+                if (url != null) {
+                    urls.add(url);
+                }
+            }
+        }
+        return urls;
+    }
+
+    private NestedJar find(String name) {
+        List<NestedJar> candidates = directoryIndex.get(getDirectory(name));
+        if (candidates == null) {
+            return null;
+        }
+        for (NestedJar jar : candidates) {
+            if (jar.entries.containsKey(name)) {
+                return jar;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 地址形如nested:/data/ext.jar!/lib/xxx.jar!/META-INF/xxx，内容由自己的URLStreamHandler从外层jar包里读
+     */
+    private URL toUrl(NestedJar jar, Entry entry) {
+        try {
+            return new URL("nested", null, -1, file.getPath() + "!/" + jar.name + "!/" + entry.name, new EntryHandler(jar, entry));
+        } catch (MalformedURLException e) {
+            logger.warn("create url of '{}' in '{}' failed: {}", entry.name, jar.name, e.toString());
+            return null;
+        }
+    }
+
+    public int size() {
+        return jars.size();
+    }
+
+    public List<String> getJarNames() {
+        List<String> names = new ArrayList<>();
+        jars.forEach(jar -> names.add(jar.name));
+        return names;
+    }
+
+    @Override
+    public void close() throws IOException {
+        outerFile.channel.close();
+    }
+
+    private static String getDirectory(String name) {
+        int index = name.lastIndexOf('/');
+        return index < 0 ? "" : name.substring(0, index);
+    }
+
+    /**
+     * 解析jar包末尾的目录，不支持zip64
+     * @return 项的名字 -> 项，按在目录里的顺序
+     */
+    private static Map<String, Entry> readDirectory(Data data) throws IOException {
+        int tailSize = (int) Math.min(data.size(), END_OF_CENTRAL_SIZE + 0xFFFF);
+        byte[] tail = new byte[tailSize];
+        data.read(data.size() - tailSize, tail, 0, tailSize);
+        int end = -1;
+        for (int i = tailSize - END_OF_CENTRAL_SIZE; i >= 0; i--) {
+            if (readInt(tail, i) == END_OF_CENTRAL) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            throw new ZipException("end of central directory not found");
+        }
+        int count = readShort(tail, end + 10);
+        long size = readUnsignedInt(tail, end + 12);
+        long offset = readUnsignedInt(tail, end + 16);
+        if (count == 0xFFFF || size == 0xFFFFFFFFL || offset == 0xFFFFFFFFL) {
+            throw new ZipException("zip64 is not supported");
+        }
+        byte[] directory = new byte[(int) size];
+        data.read(offset, directory, 0, directory.length);
+        Map<String, Entry> entries = new LinkedHashMap<>(count * 4 / 3 + 1);
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            if (readInt(directory, position) != CENTRAL_HEADER) {
+                throw new ZipException("invalid central directory header at " + (offset + position));
+            }
+            int nameLength = readShort(directory, position + 28);
+            Entry entry = new Entry();
+            entry.method = readShort(directory, position + 10);
+            entry.compressedSize = readUnsignedInt(directory, position + 20);
+            entry.size = readUnsignedInt(directory, position + 24);
+            entry.localHeaderOffset = readUnsignedInt(directory, position + 42);
+            entry.name = new String(directory, position + CENTRAL_HEADER_SIZE, nameLength, StandardCharsets.UTF_8);
+            if (!entry.name.endsWith("/")) {
+                entries.putIfAbsent(entry.name, entry);
+            }
+            position += CENTRAL_HEADER_SIZE + nameLength + readShort(directory, position + 30) + readShort(directory, position + 32);
+        }
+        return entries;
+    }
+
+    /**
+     * 本地文件头后面才是项的内容，本地文件头里的扩展字段长度可能和目录里的不一样，要以本地文件头为准
+     */
+    private static long getDataOffset(Data data, Entry entry) throws IOException {
+        byte[] header = new byte[LOCAL_HEADER_SIZE];
+        data.read(entry.localHeaderOffset, header, 0, header.length);
+        if (readInt(header, 0) != LOCAL_HEADER) {
+            throw new ZipException("invalid local header of '" + entry.name + "'");
+        }
+        return entry.localHeaderOffset + LOCAL_HEADER_SIZE + readShort(header, 26) + readShort(header, 28);
+    }
+
+    private static byte[] read(Data data, Entry entry) throws IOException {
+        if (entry.size > Integer.MAX_VALUE || entry.compressedSize > Integer.MAX_VALUE) {
+            throw new ZipException("entry '" + entry.name + "' is too large");
+        }
+        byte[] compressed = new byte[(int) entry.compressedSize];
+        data.read(getDataOffset(data, entry), compressed, 0, compressed.length);
+        if (entry.method == STORED) {
+            return compressed;
+        }
+        if (entry.method != DEFLATED) {
+            throw new ZipException("unsupported compression method " + entry.method + " of '" + entry.name + "'");
+        }
+        byte[] bytes = new byte[(int) entry.size];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            int offset = 0;
+            while (offset < bytes.length) {
+                int inflated = inflater.inflate(bytes, offset, bytes.length - offset);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new ZipException("unexpected end of entry '" + entry.name + "'");
+                }
+                offset += inflated;
+            }
+            return bytes;
+        } catch (DataFormatException e) {
+            throw new ZipException("invalid deflated entry '" + entry.name + "': " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int readShort(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (int) readUnsignedInt(bytes, offset);
+    }
+
+    private static long readUnsignedInt(byte[] bytes, int offset) {
+        return (readShort(bytes, offset) | (long) readShort(bytes, offset + 2) << 16) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * 一个内层jar包
+     */
+    private static class NestedJar {
+
+        private final String name;
+
+        private final Data data;
+
+        private final Map<String, Entry> entries;
+
+        /**
+         * 这个jar包里出现过的目录
+         */
+        private final List<String> directories;
+
+        private NestedJar(String name, Data data, Map<String, Entry> entries) {
+            this.name = name;
+            this.data = data;
+            this.entries = entries;
+            Map<String, Boolean> directories = new LinkedHashMap<>();
+            entries.keySet().forEach(entryName -> directories.put(getDirectory(entryName), Boolean.TRUE));
+            this.directories = new ArrayList<>(directories.keySet());
+        }
+    }
+
+    private static class Entry {
+
+        private String name;
+
+        private int method;
+
+        private long compressedSize;
+
+        private long size;
+
+        private long localHeaderOffset;
+    }
+
+    /**
+     * 一段可以随机读取的数据，外层jar包或者其中一段，或者内存里解压出来的内层jar包
+     */
+    private interface Data {
+
+        long size();
+
+        void read(long position, byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    /**
+     * 开着的外层文件和打开时的状态
+     */
+    private static class OuterFile {
+
+        private final Path path;
+
+        private final FileChannel channel;
+
+        private final long size;
+
+        private final FileTime lastModified;
+
+        /**
+         * inode之类的文件标识，有的文件系统没有
+         */
+        private final Object fileKey;
+
+        private OuterFile(Path path, FileChannel channel) throws IOException {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            this.path = path;
+            this.channel = channel;
+            this.size = channel.size();
+            this.lastModified = attributes.lastModifiedTime();
+            this.fileKey = attributes.fileKey();
+        }
+
+        /**
+         * 开着的文件被截断或者追加过，或者路径上还是同一个文件但大小、修改时间变了，都说明是原地改写的，位置已经不可信。
+         * 路径上的文件被删掉或者换成了别的文件不影响开着的这个
+         */
+        private void check() throws IOException {
+            if (channel.size() == size) {
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                } catch (NoSuchFileException e) {
+                    return;
+                }
+                if (fileKey != null && !fileKey.equals(attributes.fileKey())) {
+                    return;
+                }
+                if (attributes.size() == size && Objects.equals(attributes.lastModifiedTime(), lastModified)) {
+                    return;
+                }
+            }
+            throw new IOException("module jar '" + path + "' was modified after it was opened, reload the module to read it again");
+        }
+    }
+
+    /**
+     * 外层文件里的一段，按位置读取，多个线程同时读互不影响
+     */
+    private static class FileData implements Data {
+
+        private final OuterFile outerFile;
+
+        private final long start;
+
+        private final long size;
+
+        private FileData(OuterFile outerFile, long start, long size) {
+            this.outerFile = outerFile;
+            this.start = start;
+            this.size = size;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public void read(long position, byte[] buffer, int offset, int length) throws IOException {
+            if (position < 0 || position + length > size) {
+                throw new ZipException("read out of range: " + position + "+" + length + " > " + size);
+            }
+            outerFile.check();
+            ByteBuffer target = ByteBuffer.wrap(buffer, offset, length);
+            long current = start + position;
+            while (target.hasRemaining()) {
+                int read = outerFile.channel.read(target, current);
+                if (read < 0) {
+                    throw new ZipException("unexpected end of file");
+                }
+                current += read;
+            }
+        }
+    }
+
+    private static class BytesData implements Data {
+
+        private final byte[] bytes;
+
+        private BytesData(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public long size() {
+            return bytes.length;
+        }
+
+        @Override
+        public void read(long position, byte[] buffer, int offset, int length) throws IOException {
+            if (position < 0 || position + length > bytes.length) {
+                throw new ZipException("read out of range: " + position + "+" + length + " > " + bytes.length);
+            }
+            System.arraycopy(bytes, (int) position, buffer, offset, length);
+        }
+    }
+
+    /**
+     * 内层jar包里资源的地址，打开时现读
+     */
+    private static class EntryHandler extends URLStreamHandler {
+
+        private final NestedJar jar;
+
+        private final Entry entry;
+
+        private EntryHandler(NestedJar jar, Entry entry) {
+            this.jar = jar;
+            this.entry = entry;
+        }
+
+        @Override
+        protected URLConnection openConnection(URL url) {
+            return new URLConnection(url) {
+
+                @Override
+                public void connect() {
+                    connected = true;
+                }
+
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    return new ByteArrayInputStream(read(jar.data, entry));
+                }
+
+                @Override
+                public long getContentLengthLong() {
+                    return entry.size;
+                }
+            };
+        }
+    }
+}
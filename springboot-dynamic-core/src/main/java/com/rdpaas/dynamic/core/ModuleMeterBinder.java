@@ -0,0 +1,76 @@
+package com.rdpaas.dynamic.core;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 把ModuleMetrics记的刷新耗时和数量转成micrometer的指标，每个阶段一个dynamic.module.phase计时器，按module和phase打标签，
+ * 数量记成dynamic.module.加名称的计数器，按module打标签。只有引入了micrometer才会装配
+ * 指标的值直接读ModuleMetrics里的累计值，每组标签只在第一次出现时注册一次，绑定到registry之前已经记下的也会算进去，
+ * 比如启动时加载扩展包的耗时
+ * @author rongdi
+ * @date 2021-05-08
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class ModuleMeterBinder implements MeterBinder {
+
+    public final static String PHASE_TIMER = "dynamic.module.phase";
+
+    public final static String COUNTER_PREFIX = "dynamic.module.";
+
+    private final ModuleMetrics metrics;
+
+    public ModuleMeterBinder(ModuleMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        /**
+         * 每个registry各自记已经注册过的标签，先挂监听再补注册已有的，中间新记的也不会漏
+         */
+        Set<String> registered = ConcurrentHashMap.newKeySet();
+        metrics.addListener(new ModuleMetrics.Listener() {
+            @Override
+            public void onRecord(String moduleId, String phase, long nanos) {
+                registerTimer(registry, registered, moduleId, phase);
+            }
+
+            @Override
+            public void onIncrement(String moduleId, String name, long amount) {
+                registerCounter(registry, registered, moduleId, name);
+            }
+        });
+        metrics.getPhases().forEach((moduleId, phases) ->
+                phases.forEach(phase -> registerTimer(registry, registered, moduleId, phase)));
+        metrics.getCounterNames().forEach((moduleId, names) ->
+                names.forEach(name -> registerCounter(registry, registered, moduleId, name)));
+    }
+
+    private void registerTimer(MeterRegistry registry, Set<String> registered, String moduleId, String phase) {
+        if (!registered.add("timer:" + moduleId + ":" + phase)) {
+            return;
+        }
+        FunctionTimer.builder(PHASE_TIMER, metrics, m -> m.getCount(moduleId, phase),
+                m -> m.getTotalNanos(moduleId, phase), TimeUnit.NANOSECONDS)
+                .description("springboot-dynamic reload phase duration")
+                .tag("module", moduleId)
+                .tag("phase", phase)
+                .register(registry);
+    }
+
+    private void registerCounter(MeterRegistry registry, Set<String> registered, String moduleId, String name) {
+        if (!registered.add("counter:" + moduleId + ":" + name)) {
+            return;
+        }
+        FunctionCounter.builder(COUNTER_PREFIX + name, metrics, m -> m.getCounter(moduleId, name))
+                .tag("module", moduleId)
+                .register(registry);
+    }
+}
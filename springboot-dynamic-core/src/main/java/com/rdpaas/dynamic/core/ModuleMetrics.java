@@ -0,0 +1,234 @@
+package com.rdpaas.dynamic.core;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按扩展包统计刷新每个阶段的耗时和刷新的数量，用来发现哪个阶段随着扩展包变大越来越慢
+ * @author rongdi
+ * @date 2021-05-01
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class ModuleMetrics {
+
+    /**
+     * 把扩展包地址解析成本地jar包，包括下载
+     */
+    public final static String JAR_FETCH = "jar.fetch";
+
+    /**
+     * 读取jar包
+     */
+    public final static String JAR_SCAN = "jar.scan";
+
+    /**
+     * 装载类
+     */
+    public final static String CLASS_DEFINE = "class.define";
+
+    public final static String MAPPER_REFRESH = "mapper.refresh";
+
+    public final static String BEAN_REGISTER = "bean.register";
+
+    public final static String MVC_REFRESH = "mvc.refresh";
+
+    public final static String SWAGGER_REFRESH = "swagger.refresh";
+
+    /**
+     * 整个刷新
+     */
+    public final static String RELOAD = "reload";
+
+    public final static String CLASSES_DEFINED = "classes.defined";
+
+    public final static String STATEMENTS_REPLACED = "statements.replaced";
+
+    public final static String HANDLERS_SWAPPED = "handlers.swapped";
+
+    public final static String RELOAD_FAILURES = "reload.failures";
+
+    /**
+     * 扩展包id -> 阶段 -> 耗时
+     */
+    private final Map<String, Map<String, Timer>> timers = new ConcurrentHashMap<>();
+
+    /**
+     * 扩展包id -> 名称 -> 累计数量
+     */
+    private final Map<String, Map<String, LongAdder>> counters = new ConcurrentHashMap<>();
+
+    /**
+     * 每记一笔都转发一份，比如转成micrometer的指标
+     */
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * 记录一个阶段的耗时
+     * @param moduleId 扩展包id
+     * @param phase 阶段
+     * @param nanos 耗时，单位纳秒
+     */
+    public void record(String moduleId, String phase, long nanos) {
+        timers.computeIfAbsent(moduleId, id -> new ConcurrentHashMap<>())
+                .computeIfAbsent(phase, name -> new Timer())
+                .record(nanos);
+        for (Listener listener : listeners) {
+            listener.onRecord(moduleId, phase, nanos);
+        }
+    }
+
+    /**
+     * 累加一个数量
+     * @param moduleId 扩展包id
+     * @param name 名称
+     * @param amount 数量
+     */
+    public void increment(String moduleId, String name, long amount) {
+        counters.computeIfAbsent(moduleId, id -> new ConcurrentHashMap<>())
+                .computeIfAbsent(name, key -> new LongAdder())
+                .add(amount);
+        for (Listener listener : listeners) {
+            listener.onIncrement(moduleId, name, amount);
+        }
+    }
+
+    /**
+     * 某个阶段到目前为止记了多少次，没记过时为0
+     */
+    public long getCount(String moduleId, String phase) {
+        Timer timer = getTimer(moduleId, phase);
+        return timer == null ? 0 : timer.count.sum();
+    }
+
+    /**
+     * 某个阶段到目前为止的总耗时，单位纳秒
+     */
+    public long getTotalNanos(String moduleId, String phase) {
+        Timer timer = getTimer(moduleId, phase);
+        return timer == null ? 0 : timer.total.sum();
+    }
+
+    /**
+     * 某个数量到目前为止的累计值
+     */
+    public long getCounter(String moduleId, String name) {
+        Map<String, LongAdder> values = counters.get(moduleId);
+        LongAdder adder = values == null ? null : values.get(name);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    /**
+     * 已经记过耗时的扩展包id -> 阶段
+     */
+    public Map<String, Set<String>> getPhases() {
+        return keys(timers);
+    }
+
+    /**
+     * 已经累加过数量的扩展包id -> 名称
+     */
+    public Map<String, Set<String>> getCounterNames() {
+        return keys(counters);
+    }
+
+    private Timer getTimer(String moduleId, String phase) {
+        Map<String, Timer> phases = timers.get(moduleId);
+        return phases == null ? null : phases.get(phase);
+    }
+
+    private static Map<String, Set<String>> keys(Map<String, ? extends Map<String, ?>> map) {
+        Map<String, Set<String>> result = new TreeMap<>();
+        map.forEach((moduleId, values) -> result.put(moduleId, new TreeSet<>(values.keySet())));
+        return result;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * 当前的统计结果，按扩展包id分组，耗时单位毫秒
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> result = new TreeMap<>();
+        timers.forEach((moduleId, phases) -> {
+            Map<String, Object> timerMap = new TreeMap<>();
+            phases.forEach((phase, timer) -> timerMap.put(phase, timer.snapshot()));
+            module(result, moduleId).put("timers", timerMap);
+        });
+        counters.forEach((moduleId, values) -> {
+            Map<String, Long> counterMap = new TreeMap<>();
+            values.forEach((name, adder) -> counterMap.put(name, adder.sum()));
+            module(result, moduleId).put("counters", counterMap);
+        });
+        return result;
+    }
+
+    private Map<String, Object> module(Map<String, Object> result, String moduleId) {
+        return (Map<String, Object>) result.computeIfAbsent(moduleId, id -> new LinkedHashMap<String, Object>());
+    }
+
+    public void reset() {
+        timers.clear();
+        counters.clear();
+    }
+
+    /**
+     * 统计的监听，不依赖具体的指标库
+     */
+    public interface Listener {
+
+        void onRecord(String moduleId, String phase, long nanos);
+
+        void onIncrement(String moduleId, String name, long amount);
+    }
+
+    /**
+     * 一个阶段的次数、总耗时、最大耗时和最近一次耗时
+     */
+    private static class Timer {
+
+        private final LongAdder count = new LongAdder();
+
+        private final LongAdder total = new LongAdder();
+
+        private final AtomicLong max = new AtomicLong();
+
+        private volatile long last;
+
+        void record(long nanos) {
+            count.increment();
+            total.add(nanos);
+            max.accumulateAndGet(nanos, Math::max);
+            last = nanos;
+        }
+
+        Map<String, Object> snapshot() {
+            long n = count.sum();
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("count", n);
+            map.put("totalMs", toMillis(total.sum()));
+            map.put("meanMs", n == 0 ? 0 : toMillis(total.sum() / n));
+            map.put("maxMs", toMillis(max.get()));
+            map.put("lastMs", toMillis(last));
+            return map;
+        }
+
+        private double toMillis(long nanos) {
+            return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+    }
+}
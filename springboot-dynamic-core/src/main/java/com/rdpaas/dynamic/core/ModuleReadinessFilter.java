@@ -0,0 +1,87 @@
+package com.rdpaas.dynamic.core;
+
+import com.alibaba.fastjson.JSON;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.util.PathMatcher;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.UrlPathHelper;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 启动时的扩展包加载完之前，让存活和就绪探针拿到503。自己回答probePath，另外gatedPaths里的路径（比如actuator的健康检查）
+ * 在扩展包加载完之前直接返回503，加载完后照常交给原来的处理。这样后台加载扩展包时服务可以先启动，但是不会提前接到流量。
+ * 有扩展包加载失败时探针返回200和DEGRADED，列出失败的扩展包，其它扩展包照常接流量，不会因为一个扩展包一直不就绪
+ * @author rongdi
+ * @date 2021-05-08
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class ModuleReadinessFilter extends OncePerRequestFilter {
+
+    private final static PathMatcher PATH_MATCHER = new AntPathMatcher();
+
+    private final UrlPathHelper urlPathHelper = new UrlPathHelper();
+
+    private final ModuleApplication moduleApplication;
+
+    private final String probePath;
+
+    private final List<String> gatedPaths;
+
+    /**
+     * @param moduleApplication 取扩展包是否已经生效
+     * @param probePath 由本过滤器直接回答的探针地址
+     * @param gatedPaths 扩展包加载完之前返回503的地址，支持ant风格的通配符
+     */
+    public ModuleReadinessFilter(ModuleApplication moduleApplication, String probePath, List<String> gatedPaths) {
+        this.moduleApplication = moduleApplication;
+        this.probePath = probePath;
+        this.gatedPaths = gatedPaths;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        String path = urlPathHelper.getPathWithinApplication(request);
+        boolean ready = moduleApplication.isReady();
+        if (path.equals(probePath) || (!ready && isGated(path))) {
+            writeStatus(response, ready);
+            return;
+        }
+        filterChain.doFilter(request, response);
+    }
+
+    private boolean isGated(String path) {
+        for (String gatedPath : gatedPaths) {
+            if (PATH_MATCHER.match(gatedPath, path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void writeStatus(HttpServletResponse response, boolean ready) throws IOException {
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("status", moduleApplication.getStartupState());
+        Map<String, Throwable> failedModules = moduleApplication.getFailedModules();
+        if (!failedModules.isEmpty()) {
+            Map<String, String> errors = new LinkedHashMap<>();
+            failedModules.forEach((moduleId, failure) -> errors.put(moduleId, String.valueOf(failure)));
+            body.put("failedModules", errors);
+        }
+        response.setStatus(ready ? HttpStatus.OK.value() : HttpStatus.SERVICE_UNAVAILABLE.value());
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.getWriter().write(JSON.toJSONString(body));
+    }
+}
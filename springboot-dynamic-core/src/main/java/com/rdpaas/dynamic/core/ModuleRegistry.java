@@ -0,0 +1,126 @@
+package com.rdpaas.dynamic.core;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 扩展包注册中心，按扩展包id记录当前生效的版本，同时提供一个有界的线程池用来并行加载多个扩展包
+ * @author rongdi
+ * @date 2021-03-27
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class ModuleRegistry {
+
+    /**
+     * 从jar包文件名里去掉版本号，如springboot-dynamic-demo-ext-1.0.0-BASE-SNAPSHOT.jar得到springboot-dynamic-demo-ext
+     */
+    final static Pattern JAR_NAME = Pattern.compile("^(.+?)(-\\d[^/]*)?\\.jar$");
+
+    private final Map<String, Module> modules = new ConcurrentHashMap<>();
+
+    /**
+     * beanName -> 注册它的扩展包版本，旧版本被替换以后到释放之前也还在，它手上的请求照样能计数
+     */
+    private final Map<String, Module> modulesByBeanName = new ConcurrentHashMap<>();
+
+    private final ExecutorService executor;
+
+    /**
+     * @param threads 并行加载扩展包的线程数
+     */
+    public ModuleRegistry(int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "module-loader-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), threadFactory);
+    }
+
+    /**
+     * 根据jar包的url得到扩展包id，目录取目录名
+     * @param url
+     * @return
+     */
+    public static String resolveModuleId(URL url) {
+        String path = url.getPath().replace('\\', '/');
+        while (path.length() > 1 && path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        String fileName = path.substring(path.lastIndexOf('/') + 1);
+        Matcher matcher = JAR_NAME.matcher(fileName);
+        return matcher.matches() ? matcher.group(1) : fileName;
+    }
+
+    public Module get(String id) {
+        return modules.get(id);
+    }
+
+    /**
+     * 差量刷新的新版本沿用旧版本注册的beanName，一起改成属于新版本，沿用旧版本的类加载器时类加载器也改成属于新版本
+     */
+    public void register(Module module) {
+        modules.put(module.getId(), module);
+        if (module.getClassLoader() != null) {
+            module.getClassLoader().setModule(module);
+        }
+        for (String beanName : module.getBeanNames()) {
+            modulesByBeanName.put(beanName, module);
+        }
+        for (String namespace : module.getMapperNamespaces()) {
+            modulesByBeanName.put(namespace, module);
+        }
+    }
+
+    public Module remove(String id) {
+        return modules.remove(id);
+    }
+
+    /**
+     * 找到注册过指定beanName的扩展包版本
+     * @param beanName
+     * @return 不属于任何扩展包时返回null
+     */
+    public Module findByBeanName(String beanName) {
+        return modulesByBeanName.get(beanName);
+    }
+
+    /**
+     * 记下beanName属于哪个扩展包版本，同名的新版本会覆盖旧版本
+     */
+    public void bindBeanName(String beanName, Module module) {
+        modulesByBeanName.put(beanName, module);
+    }
+
+    /**
+     * 释放一个版本时删掉它的beanName，已经被新版本覆盖的不动
+     */
+    public void unbindBeanNames(Collection<String> beanNames, Module module) {
+        for (String beanName : beanNames) {
+            modulesByBeanName.remove(beanName, module);
+        }
+    }
+
+    public Collection<Module> getModules() {
+        return Collections.unmodifiableList(new ArrayList<>(modules.values()));
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
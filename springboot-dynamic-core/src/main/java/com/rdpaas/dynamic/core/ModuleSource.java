@@ -0,0 +1,27 @@
+package com.rdpaas.dynamic.core;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * 扩展包从哪来，把dynamic.jar里配置的地址解析成本地的jar包。内置了本地jar包、放着多个版本jar包的目录和http三种，
+ * 其它来源实现这个接口注册成spring bean即可，排在内置的前面
+ * @author rongdi
+ * @date 2021-05-08
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public interface ModuleSource {
+
+    /**
+     * 是否能处理这个地址
+     * @param url 扩展包地址
+     */
+    boolean supports(URL url);
+
+    /**
+     * 把扩展包地址解析成本地的jar包，每次刷新扩展包都会调用，内容没变时应该尽量不重新下载
+     * @param url 扩展包地址
+     * @return 本地jar包和它的摘要
+     */
+    ModuleJar resolve(URL url) throws IOException;
+}
@@ -0,0 +1,326 @@
+package com.rdpaas.dynamic.core;
+
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.context.ApplicationContext;
+import org.springframework.util.DigestUtils;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * 监听扩展jar包所在的目录，jar包被覆盖后自动刷新扩展包。拷贝jar包时会连着来一串写事件，等事件停下来以后再确认两次
+ * 大小和摘要都没变才认为写完了，摘要和上次加载成功的一样就不刷新。地址是目录时监听目录本身和它下面的子目录，
+ * 检查的是目录里当前会被选中的那个jar包
+ * @author rongdi
+ * @date 2021-04-24
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class ModuleWatcher implements SmartInitializingSingleton, DisposableBean {
+
+    private final static Logger logger = LoggerFactory.getLogger(ModuleWatcher.class);
+
+    /**
+     * 没有事件时多久检查一次等待中的jar包
+     */
+    private final static long TICK = 50;
+
+    private final ModuleApplication moduleApplication;
+
+    private final ApplicationContext applicationContext;
+
+    private final SqlSessionFactory sqlSessionFactory;
+
+    private final List<URL> urls;
+
+    /**
+     * 最后一次写事件之后要安静多久才去检查jar包，单位毫秒
+     */
+    private final long debounce;
+
+    /**
+     * 监听的jar包或者放着多个版本的目录
+     */
+    private final Map<Path, JarState> jars = new HashMap<>();
+
+    private final DirectoryModuleSource directorySource = new DirectoryModuleSource();
+
+    private WatchService watchService;
+
+    private Thread thread;
+
+    public ModuleWatcher(ModuleApplication moduleApplication, ApplicationContext applicationContext,
+                         SqlSessionFactory sqlSessionFactory, List<URL> urls, long debounce) {
+        this.moduleApplication = moduleApplication;
+        this.applicationContext = applicationContext;
+        this.sqlSessionFactory = sqlSessionFactory;
+        this.urls = urls;
+        this.debounce = debounce;
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        try {
+            start();
+        } catch (IOException e) {
+            logger.error("start module watcher error", e);
+        }
+    }
+
+    public synchronized void start() throws IOException {
+        if (thread != null) {
+            return;
+        }
+        watchService = FileSystems.getDefault().newWatchService();
+        Set<Path> dirs = new HashSet<>();
+        for (URL url : urls) {
+            if (!"file".equals(url.getProtocol())) {
+                logger.warn("module watcher only supports file urls, '{}' ignored", url);
+                continue;
+            }
+            Path jar;
+            try {
+                jar = Paths.get(url.toURI()).toAbsolutePath().normalize();
+            } catch (Exception e) {
+                logger.warn("module watcher can not resolve '{}': {}", url, e.toString());
+                continue;
+            }
+            JarState state = new JarState(url, Files.isDirectory(jar));
+            /**
+             * 启动时已经存在的jar包会在启动时加载，记下它的摘要，内容没变就不会再刷新
+             */
+            Path target = resolve(jar, state);
+            if (target != null) {
+                state.loadedHash = hash(target);
+            }
+            jars.put(jar, state);
+            if (state.directory) {
+                registerTree(jar, dirs);
+            } else if (dirs.add(jar.getParent())) {
+                register(jar.getParent());
+            }
+        }
+        thread = new Thread(this::watch, "module-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        logger.info("watching {} module jars in {}, debounce {} ms", jars.size(), dirs, debounce);
+    }
+
+    private void register(Path dir) throws IOException {
+        dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+    }
+
+    /**
+     * 监听目录和它下面所有的子目录，WatchService只管一层
+     */
+    private void registerTree(Path root, Set<Path> dirs) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path dir : (Iterable<Path>) paths.filter(Files::isDirectory)::iterator) {
+                if (dirs.add(dir)) {
+                    register(dir);
+                }
+            }
+        }
+    }
+
+    private void watch() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = watchService.poll(TICK, TimeUnit.MILLISECONDS);
+                long now = System.currentTimeMillis();
+                if (key != null) {
+                    Path dir = (Path) key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            /**
+                             * 事件太多丢了一部分，不知道是哪个jar包，全部检查一遍
+                             */
+                            jars.values().forEach(state -> state.touch(now));
+                            continue;
+                        }
+                        Path path = dir.resolve((Path) event.context());
+                        JarState state = jars.get(path);
+                        if (state != null && !state.directory) {
+                            state.touch(now);
+                        }
+                        touchDirectories(dir, path, event, now);
+                    }
+                    key.reset();
+                }
+                for (Map.Entry<Path, JarState> entry : jars.entrySet()) {
+                    JarState state = entry.getValue();
+                    if (state.lastEvent > 0 && now - state.lastEvent >= debounce) {
+                        check(entry.getKey(), state, now);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // 停止监听
+        }
+    }
+
+    /**
+     * 目录地址下面任何一层有变化都要重新检查，新建的子目录也要监听起来
+     */
+    private void touchDirectories(Path dir, Path path, WatchEvent<?> event, long now) {
+        boolean watched = false;
+        for (Path parent = dir; parent != null; parent = parent.getParent()) {
+            JarState state = jars.get(parent);
+            if (state != null && state.directory) {
+                state.touch(now);
+                watched = true;
+            }
+        }
+        if (watched && event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+            try {
+                registerTree(path, new HashSet<>());
+            } catch (IOException e) {
+                logger.warn("module watcher can not watch '{}': {}", path, e.toString());
+            }
+        }
+    }
+
+    /**
+     * 地址对应的jar包，目录时是目录里当前会被选中的那个，jar包不存在时返回null
+     */
+    private Path resolve(Path path, JarState state) throws IOException {
+        if (!state.directory) {
+            return Files.isRegularFile(path) ? path : null;
+        }
+        if (!Files.isDirectory(path)) {
+            return null;
+        }
+        try {
+            return directorySource.resolve(state.url).getFile().toPath();
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 事件停下来以后检查jar包，大小和摘要和上一次检查时一样才认为写完了，否则再等一轮
+     */
+    private void check(Path jar, JarState state, long now) {
+        try {
+            Path target = resolve(jar, state);
+            if (target == null) {
+                state.reset();
+                return;
+            }
+            long size = Files.size(target);
+            String hash = hash(target);
+            if (size != state.sampleSize || !hash.equals(state.sampleHash)) {
+                state.sampleSize = size;
+                state.sampleHash = hash;
+                state.lastEvent = now;
+                return;
+            }
+            state.reset();
+            if (hash.equals(state.loadedHash) || hash.equals(state.reloadingHash)) {
+                logger.debug("module jar '{}' unchanged, skipped", target);
+                return;
+            }
+            state.reloadingHash = hash;
+            ReloadJob job = moduleApplication.submitReload(state.url, applicationContext, sqlSessionFactory);
+            logger.info("module jar '{}' changed, submit reload job {}", target, job.getId());
+            /**
+             * 刷新成功了才算加载过这个摘要，失败了下次同样的内容再来还要刷新
+             */
+            job.getCompletion().thenAccept(done -> {
+                if (done.getState() == ReloadJob.State.SUCCEEDED) {
+                    state.loadedHash = hash;
+                }
+                if (hash.equals(state.reloadingHash)) {
+                    state.reloadingHash = null;
+                }
+            });
+        } catch (IOException e) {
+            /**
+             * 还在写的文件在有些系统上打不开，等下一轮
+             */
+            logger.debug("check module jar '{}' error: {}", jar, e.toString());
+            state.lastEvent = now;
+        }
+    }
+
+    private String hash(Path jar) throws IOException {
+        try (InputStream in = Files.newInputStream(jar)) {
+            return DigestUtils.md5DigestAsHex(in);
+        }
+    }
+
+    @Override
+    public synchronized void destroy() throws Exception {
+        if (thread != null) {
+            thread.interrupt();
+            watchService.close();
+            thread = null;
+        }
+    }
+
+    private static class JarState {
+
+        private final URL url;
+
+        /**
+         * 地址是不是放着多个版本的目录
+         */
+        private final boolean directory;
+
+        /**
+         * 最后一次写事件的时间，0表示没有等待检查
+         */
+        private long lastEvent;
+
+        private long sampleSize = -1;
+
+        private String sampleHash;
+
+        /**
+         * 最后一次加载成功的jar包摘要，刷新任务在别的线程里结束时更新
+         */
+        private volatile String loadedHash;
+
+        /**
+         * 已经提交了刷新还没结束的jar包摘要，避免同样的内容重复提交
+         */
+        private volatile String reloadingHash;
+
+        JarState(URL url, boolean directory) {
+            this.url = url;
+            this.directory = directory;
+        }
+
+        void touch(long now) {
+            lastEvent = now;
+        }
+
+        void reset() {
+            lastEvent = 0;
+            sampleSize = -1;
+            sampleHash = null;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.rdpaas.dynamic.core;
+
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一次异步刷新扩展包的任务，记录排队、执行到哪个阶段、每个阶段的耗时和结果，排队期间同一个扩展包再来的刷新请求会合并
+ * 到这个任务上
+ * @author rongdi
+ * @date 2021-04-24
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class ReloadJob {
+
+    public enum State {
+        QUEUED, RUNNING, SUCCEEDED, FAILED
+    }
+
+    private final String id;
+
+    private final String moduleId;
+
+    /**
+     * 合并时用最新一次请求的jar地址
+     */
+    private volatile URL url;
+
+    private volatile State state = State.QUEUED;
+
+    /**
+     * 当前执行到的阶段
+     */
+    private volatile String phase;
+
+    /**
+     * 每个已经完成的阶段的耗时，单位毫秒
+     */
+    private final Map<String, Long> phaseCosts = new LinkedHashMap<>();
+
+    private long phaseStart;
+
+    private final long submitTime = System.currentTimeMillis();
+
+    private volatile long startTime;
+
+    private volatile long endTime;
+
+    /**
+     * 合并进来的请求数
+     */
+    private final AtomicInteger merged = new AtomicInteger();
+
+    private volatile String error;
+
+    /**
+     * 任务结束时完成，不管成功还是失败
+     */
+    private final CompletableFuture<ReloadJob> completion = new CompletableFuture<>();
+
+    public ReloadJob(String id, String moduleId, URL url) {
+        this.id = id;
+        this.moduleId = moduleId;
+        this.url = url;
+    }
+
+    /**
+     * 排队期间又来了一次刷新请求
+     */
+    void merge(URL url) {
+        this.url = url;
+        merged.incrementAndGet();
+    }
+
+    void start() {
+        startTime = System.currentTimeMillis();
+        state = State.RUNNING;
+    }
+
+    /**
+     * 进入下一个阶段，同时记下上一个阶段的耗时
+     */
+    synchronized void phase(String phase) {
+        long now = System.currentTimeMillis();
+        if (this.phase != null) {
+            phaseCosts.put(this.phase, now - phaseStart);
+        }
+        this.phase = phase;
+        this.phaseStart = now;
+    }
+
+    void succeed() {
+        finish(State.SUCCEEDED);
+    }
+
+    void fail(Throwable e) {
+        error = e.toString();
+        finish(State.FAILED);
+    }
+
+    private void finish(State state) {
+        synchronized (this) {
+            if (phase != null) {
+                phaseCosts.put(phase, System.currentTimeMillis() - phaseStart);
+                phase = null;
+            }
+            endTime = System.currentTimeMillis();
+            this.state = state;
+        }
+        completion.complete(this);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getModuleId() {
+        return moduleId;
+    }
+
+    public URL getUrl() {
+        return url;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public String getPhase() {
+        return phase;
+    }
+
+    public synchronized Map<String, Long> getPhaseCosts() {
+        return new LinkedHashMap<>(phaseCosts);
+    }
+
+    public long getSubmitTime() {
+        return submitTime;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getEndTime() {
+        return endTime;
+    }
+
+    public int getMerged() {
+        return merged.get();
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * 任务结束后回调，回调里用getState()区分成功和失败
+     */
+    public CompletionStage<ReloadJob> getCompletion() {
+        return completion;
+    }
+
+    @Override
+    public String toString() {
+        return "ReloadJob{" +
+            "id='" + id + '\'' +
+            ", moduleId='" + moduleId + '\'' +
+            ", state=" + state +
+            ", phaseCosts=" + getPhaseCosts() +
+            ", merged=" + merged +
+            '}';
+    }
+}
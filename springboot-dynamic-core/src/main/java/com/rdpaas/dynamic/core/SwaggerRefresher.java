@@ -0,0 +1,96 @@
+package com.rdpaas.dynamic.core;
+
+import com.rdpaas.dynamic.utils.Accessors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import springfox.documentation.spi.service.DocumentationPlugin;
+import springfox.documentation.spring.web.plugins.DocumentationPluginsBootstrapper;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 只重新生成扩展包那一个分组的swagger文档，DocumentationPluginsBootstrapper的stop()和start()会把宿主所有分组都重新
+ * 解析一遍，扩展包刷新时没必要。异步模式下文档在后台线程生成，刷新扩展包不用等它，连续多次刷新只会生成一次
+ * @author rongdi
+ * @date 2021-04-10
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class SwaggerRefresher {
+
+    private final static Logger logger = LoggerFactory.getLogger(SwaggerRefresher.class);
+
+    private boolean async;
+
+    private ExecutorService executor;
+
+    /**
+     * 是否已经有一次生成在排队，排队期间再来的刷新直接合并
+     */
+    private final AtomicBoolean pending = new AtomicBoolean();
+
+    /**
+     * 排队的那一次要用最新的Docket
+     */
+    private final AtomicReference<DocumentationPlugin> latest = new AtomicReference<>();
+
+    /**
+     * 重新生成docket分组的文档
+     * @param bootstrapper swagger解析文档的入口类
+     * @param docket 扩展包的文档分组
+     */
+    public void refresh(DocumentationPluginsBootstrapper bootstrapper, DocumentationPlugin docket) {
+        if (!async) {
+            regenerate(bootstrapper, docket);
+            return;
+        }
+        latest.set(docket);
+        if (pending.compareAndSet(false, true)) {
+            getExecutor().execute(() -> {
+                pending.set(false);
+                regenerate(bootstrapper, latest.get());
+            });
+        }
+    }
+
+    private void regenerate(DocumentationPluginsBootstrapper bootstrapper, DocumentationPlugin docket) {
+        long start = System.currentTimeMillis();
+        try {
+            /**
+             * 只解析这一个分组，解析结果会按分组名覆盖DocumentationCache里原来的文档，其它分组不受影响
+             */
+            Accessors.SCAN_DOCUMENTATION.invoke(bootstrapper, Accessors.BUILD_CONTEXT.invoke(bootstrapper, docket));
+        } catch (Exception e) {
+            /**
+             * springfox版本不一样私有方法可能对不上，退回到全部重新生成
+             */
+            logger.warn("refresh swagger group '{}' error, fall back to full refresh: {}", docket.getGroupName(), e.toString());
+            bootstrapper.stop();
+            bootstrapper.start();
+        }
+        logger.info("refresh swagger group '{}' cost {} ms", docket.getGroupName(), System.currentTimeMillis() - start);
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "swagger-refresher");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
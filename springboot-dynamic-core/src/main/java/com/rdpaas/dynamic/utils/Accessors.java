@@ -0,0 +1,601 @@
+package com.rdpaas.dynamic.utils;
+
+import org.apache.ibatis.binding.MapperRegistry;
+import org.apache.ibatis.builder.xml.XMLMapperBuilder;
+import org.apache.ibatis.parsing.XPathParser;
+import org.apache.ibatis.session.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.aop.framework.ProxyProcessorSupport;
+import org.springframework.beans.factory.support.AbstractBeanFactory;
+import org.springframework.beans.factory.support.DefaultSingletonBeanRegistry;
+import org.springframework.core.SpringVersion;
+import org.springframework.core.SimpleAliasRegistry;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.ReflectionUtils;
+import org.springframework.web.servlet.handler.AbstractHandlerMethodMapping;
+import springfox.documentation.spi.service.DocumentationPlugin;
+import springfox.documentation.spi.service.contexts.DocumentationContext;
+import springfox.documentation.spring.web.plugins.DocumentationPluginsBootstrapper;
+import springfox.documentation.spring.web.plugins.DocumentationPluginsManager;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 刷新扩展包要用到的spring、mybatis、springfox和jdk的非公开属性和方法，第一次用到时解析成MethodHandle缓存起来，
+ * 不用每个类、每个xml都反射查找一遍。启动时调用verify把它们全部解析一遍，版本不兼容时直接启动失败，而不是等到刷新扩展包时才报错
+ * @author rongdi
+ * @date 2021-05-08
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class Accessors {
+
+    private final static Logger logger = LoggerFactory.getLogger(Accessors.class);
+
+    private final static MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private final static String MAPPING_REGISTRY = AbstractHandlerMethodMapping.class.getName() + "$MappingRegistry";
+
+    /**
+     * 非隔离模式下把扩展包的类装载到AppClassLoader
+     */
+    public final static MethodAccessor DEFINE_CLASS = new MethodAccessor(ClassLoader.class.getName(), "defineClass",
+            String.class, byte[].class, int.class, int.class);
+
+    public final static FieldAccessor LOADED_RESOURCES = new FieldAccessor(Configuration.class.getName(), "loadedResources");
+
+    public final static FieldAccessor MAPPED_STATEMENTS = new FieldAccessor(Configuration.class.getName(), "mappedStatements");
+
+    public final static FieldAccessor RESULT_MAPS = new FieldAccessor(Configuration.class.getName(), "resultMaps");
+
+    public final static FieldAccessor PARAMETER_MAPS = new FieldAccessor(Configuration.class.getName(), "parameterMaps");
+
+    public final static FieldAccessor KEY_GENERATORS = new FieldAccessor(Configuration.class.getName(), "keyGenerators");
+
+    public final static FieldAccessor CACHES = new FieldAccessor(Configuration.class.getName(), "caches");
+
+    public final static FieldAccessor CACHE_REF_MAP = new FieldAccessor(Configuration.class.getName(), "cacheRefMap");
+
+    /**
+     * ModuleConfiguration创建时从宿主复制过来的settings、TypeHandler、类型别名、插件等属性，各种注册表每个ModuleConfiguration
+     * 自己一份，不复制
+     */
+    public final static FieldCopier CONFIGURATION_SETTINGS = new FieldCopier(Configuration.class.getName(), "mapperRegistry",
+            "mappedStatements", "caches", "resultMaps", "parameterMaps", "keyGenerators", "loadedResources", "sqlFragments",
+            "incompleteStatements", "incompleteCacheRefs", "incompleteResultMaps", "incompleteMethods", "cacheRefMap");
+
+    /**
+     * mybatis-plus的MybatisMapperRegistry有自己的knownMappers，按实际的类往父类找，会先找到子类的
+     */
+    public final static FieldAccessor KNOWN_MAPPERS = new FieldAccessor(MapperRegistry.class.getName(), "knownMappers");
+
+    public final static FieldAccessor ALIAS_MAP = new FieldAccessor(SimpleAliasRegistry.class.getName(), "aliasMap");
+
+    /**
+     * 删掉bean定义以后合并过的定义还留着，要整个删掉，见ModuleCacheCleaner.evictMergedBeanDefinition
+     */
+    public final static FieldAccessor MERGED_BEAN_DEFINITIONS = new FieldAccessor(AbstractBeanFactory.class.getName(),
+            "mergedBeanDefinitions");
+
+    /**
+     * bean的销毁回调，隔离模式下新版本重新注册同名bean之前把旧bean的摘下来，等旧版本处理完手上的请求再执行
+     */
+    public final static FieldAccessor DISPOSABLE_BEANS = new FieldAccessor(DefaultSingletonBeanRegistry.class.getName(),
+            "disposableBeans");
+
+    /**
+     * cglib生成代理对象用的objenesis，以代理类为key缓存着构造器，隔离模式下卸载扩展包时要清掉
+     */
+    public final static StaticFieldAccessor OBJENESIS = new StaticFieldAccessor("org.springframework.aop.framework.ObjenesisCglibAopProxy",
+            "objenesis");
+
+    /**
+     * XMLMapperBuilder接收XPathParser的构造方法是私有的，用它复用已经解析好的文档，找不到时让XMLMapperBuilder自己再解析一遍，所以不是必须的
+     */
+    public final static ConstructorAccessor MAPPER_BUILDER = new ConstructorAccessor(XMLMapperBuilder.class.getName(),
+            XPathParser.class, Configuration.class, String.class, Map.class);
+
+    public final static FieldAccessor PROXY_CLASS_LOADER = new FieldAccessor(ProxyProcessorSupport.class.getName(), "proxyClassLoader");
+
+    public final static MethodAccessor GET_MAPPING_REGISTRY = new MethodAccessor(AbstractHandlerMethodMapping.class.getName(),
+            "getMappingRegistry");
+
+    public final static MethodAccessor GET_MAPPING_FOR_METHOD = new MethodAccessor(AbstractHandlerMethodMapping.class.getName(),
+            "getMappingForMethod", Method.class, Class.class);
+
+    public final static FieldAccessor URL_LOOKUP = new FieldAccessor(MAPPING_REGISTRY, "urlLookup");
+
+    public final static FieldAccessor READ_WRITE_LOCK = new FieldAccessor(MAPPING_REGISTRY, "readWriteLock");
+
+    public final static FieldAccessor DOCUMENTATION_PLUGINS_MANAGER = new FieldAccessor(DocumentationPluginsBootstrapper.class.getName(),
+            "documentationPluginsManager");
+
+    public final static FieldAccessor DOCUMENTATION_PLUGINS = new FieldAccessor(DocumentationPluginsManager.class.getName(),
+            "documentationPlugins");
+
+    /**
+     * swagger的插件集合是不能修改的集合，拿到它包装的list
+     */
+    public final static FieldAccessor UNMODIFIABLE_LIST = new FieldAccessor(Collections.unmodifiableList(new ArrayList<>()).getClass().getName(),
+            "list");
+
+    /**
+     * 只重新解析一个swagger分组，找不到时会退回到全部重新生成，所以不是必须的
+     */
+    public final static MethodAccessor BUILD_CONTEXT = new MethodAccessor(DocumentationPluginsBootstrapper.class.getName(),
+            "buildContext", DocumentationPlugin.class);
+
+    public final static MethodAccessor SCAN_DOCUMENTATION = new MethodAccessor(DocumentationPluginsBootstrapper.class.getName(),
+            "scanDocumentation", DocumentationContext.class);
+
+    private final static List<Accessor> REQUIRED = Arrays.asList(LOADED_RESOURCES, MAPPED_STATEMENTS, RESULT_MAPS,
+            PARAMETER_MAPS, KEY_GENERATORS, CACHES, CACHE_REF_MAP, CONFIGURATION_SETTINGS, KNOWN_MAPPERS, ALIAS_MAP, MERGED_BEAN_DEFINITIONS,
+            PROXY_CLASS_LOADER, GET_MAPPING_REGISTRY, GET_MAPPING_FOR_METHOD, URL_LOOKUP, READ_WRITE_LOCK);
+
+    private final static List<Accessor> SWAGGER = Arrays.asList(DOCUMENTATION_PLUGINS_MANAGER, DOCUMENTATION_PLUGINS,
+            UNMODIFIABLE_LIST);
+
+    private final static List<Accessor> OPTIONAL = Arrays.asList(BUILD_CONTEXT, SCAN_DOCUMENTATION);
+
+    /**
+     * 按属性名读取的属性，类型 -> 属性名 -> getter，属性不存在或者访问不了时为空
+     */
+    private final static ClassValue<Map<String, Optional<MethodHandle>>> NAMED_FIELDS = new ClassValue<Map<String, Optional<MethodHandle>>>() {
+        @Override
+        protected Map<String, Optional<MethodHandle>> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
+    /**
+     * 解析所有要用到的非公开属性和方法，有解析不了的直接抛出异常，列出所有不兼容的地方和当前的版本
+     * @param defineClass 是否要把扩展包的类装载到AppClassLoader，隔离模式下不需要，但卸载时要清理objenesis的缓存，
+     *                    替换版本时要推迟旧bean的销毁
+     * @param swagger 是否要刷新扩展包的swagger文档
+     */
+    public static void verify(boolean defineClass, boolean swagger) {
+        List<Accessor> required = new ArrayList<>(REQUIRED);
+        if (defineClass) {
+            required.add(DEFINE_CLASS);
+        } else {
+            required.add(OBJENESIS);
+            required.add(DISPOSABLE_BEANS);
+        }
+        if (swagger) {
+            required.addAll(SWAGGER);
+        }
+        List<String> errors = new ArrayList<>();
+        for (Accessor accessor : required) {
+            try {
+                accessor.resolve();
+            } catch (RuntimeException e) {
+                errors.add(e.getMessage());
+            }
+        }
+        if (!errors.isEmpty()) {
+            throw new IllegalStateException("springboot-dynamic is not compatible with spring " + SpringVersion.getVersion()
+                    + ", mybatis " + version(Configuration.class) + ", springfox " + version(DocumentationPluginsBootstrapper.class)
+                    + " on java " + System.getProperty("java.version") + ": " + String.join("; ", errors));
+        }
+        try {
+            MAPPER_BUILDER.resolve();
+        } catch (RuntimeException e) {
+            logger.warn("{}, mapper xmls will be parsed twice on every refresh", e.getMessage());
+        }
+        if (swagger) {
+            for (Accessor accessor : OPTIONAL) {
+                try {
+                    accessor.resolve();
+                } catch (RuntimeException e) {
+                    logger.warn("{}, swagger will be fully regenerated on every refresh", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * 按属性名读取一个对象的非公开属性，往父类找，属性不存在或者访问不了返回null。给不同版本的spring、mybatis不一定都有的属性用，
+     * 每个类型每个属性只解析一次
+     */
+    public static Object readField(Object target, String name) {
+        if (target == null) {
+            return null;
+        }
+        Class<?> type = target.getClass();
+        Optional<MethodHandle> getter = NAMED_FIELDS.get(type).computeIfAbsent(name, key -> {
+            Field field = ReflectionUtils.findField(type, key);
+            if (field == null) {
+                return Optional.empty();
+            }
+            try {
+                makeAccessible(field, "field " + field.getDeclaringClass().getName() + "." + key);
+                return Optional.of(LOOKUP.unreflectGetter(field).asType(MethodType.methodType(Object.class, Object.class)));
+            } catch (IllegalStateException | IllegalAccessException e) {
+                logger.warn("read field '{}' of {} error: {}", key, type.getName(), e.getMessage());
+                return Optional.empty();
+            }
+        });
+        if (!getter.isPresent()) {
+            return null;
+        }
+        try {
+            return (Object) getter.get().invokeExact(target);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static String version(Class<?> clazz) {
+        String version = clazz.getPackage() == null ? null : clazz.getPackage().getImplementationVersion();
+        /**
+         * springfox的MANIFEST里版本号写的是字符串null
+         */
+        return version == null || "null".equals(version) ? "unknown" : version;
+    }
+
+    private static Class<?> forName(String className) {
+        try {
+            return ClassUtils.forName(className, Accessors.class.getClassLoader());
+        } catch (ClassNotFoundException | LinkageError e) {
+            throw new IllegalStateException("class " + className + " not found");
+        }
+    }
+
+    /**
+     * jdk9以上没有--add-opens时setAccessible会抛InaccessibleObjectException
+     */
+    private static <T extends java.lang.reflect.AccessibleObject> T makeAccessible(T member, String description) {
+        try {
+            member.setAccessible(true);
+            return member;
+        } catch (RuntimeException e) {
+            throw new IllegalStateException("can not access " + description + ": " + e.getMessage());
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable e) {
+        if (e instanceof RuntimeException) {
+            return (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        return new IllegalStateException(e);
+    }
+
+    private interface Accessor {
+
+        /**
+         * 解析出MethodHandle，解析不了抛出IllegalStateException
+         */
+        void resolve();
+    }
+
+    /**
+     * 读取一个非公开属性，按目标对象的实际类型往父类找属性，每个类型只找一次
+     */
+    public static class FieldAccessor implements Accessor {
+
+        private final String owner;
+
+        private final String name;
+
+        private final ClassValue<MethodHandle> getters = new ClassValue<MethodHandle>() {
+            @Override
+            protected MethodHandle computeValue(Class<?> type) {
+                Field field = ReflectionUtils.findField(type, name);
+                if (field == null) {
+                    throw new IllegalStateException("field " + type.getName() + "." + name + " not found");
+                }
+                makeAccessible(field, "field " + field.getDeclaringClass().getName() + "." + name);
+                try {
+                    return LOOKUP.unreflectGetter(field).asType(MethodType.methodType(Object.class, Object.class));
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException("can not access field " + field.getDeclaringClass().getName() + "." + name
+                            + ": " + e.getMessage());
+                }
+            }
+        };
+
+        FieldAccessor(String owner, String name) {
+            this.owner = owner;
+            this.name = name;
+        }
+
+        public Object get(Object target) {
+            try {
+                return (Object) getters.get(target.getClass()).invokeExact(target);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public void resolve() {
+            getters.get(forName(owner));
+        }
+
+        @Override
+        public String toString() {
+            return owner + "." + name;
+        }
+    }
+
+    /**
+     * 把一个类自己声明的非静态属性从一个对象原样复制到另一个同类型或者子类型的对象上，包括final属性，子类声明的属性不复制
+     */
+    public static class FieldCopier implements Accessor {
+
+        private final String owner;
+
+        private final Set<String> excluded;
+
+        private volatile List<MethodHandle> getters;
+
+        private volatile List<MethodHandle> setters;
+
+        FieldCopier(String owner, String... excluded) {
+            this.owner = owner;
+            this.excluded = new HashSet<>(Arrays.asList(excluded));
+        }
+
+        public void copy(Object source, Object target) {
+            resolve();
+            List<MethodHandle> getters = this.getters;
+            List<MethodHandle> setters = this.setters;
+            try {
+                for (int i = 0; i < getters.size(); i++) {
+                    setters.get(i).invokeExact(target, (Object) getters.get(i).invokeExact(source));
+                }
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public void resolve() {
+            if (setters != null) {
+                return;
+            }
+            List<MethodHandle> getters = new ArrayList<>();
+            List<MethodHandle> setters = new ArrayList<>();
+            for (Field field : forName(owner).getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || excluded.contains(field.getName())) {
+                    continue;
+                }
+                makeAccessible(field, "field " + owner + "." + field.getName());
+                try {
+                    getters.add(LOOKUP.unreflectGetter(field).asType(MethodType.methodType(Object.class, Object.class)));
+                    setters.add(LOOKUP.unreflectSetter(field).asType(MethodType.methodType(void.class, Object.class, Object.class)));
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException("can not copy field " + owner + "." + field.getName() + ": " + e.getMessage());
+                }
+            }
+            this.getters = getters;
+            this.setters = setters;
+        }
+
+        @Override
+        public String toString() {
+            return owner + " fields";
+        }
+    }
+
+    /**
+     * 调用一个非公开方法，在声明它的类上解析一次，子类重写了照样会调用到子类的方法
+     */
+    public static class MethodAccessor implements Accessor {
+
+        private final String owner;
+
+        private final String name;
+
+        private final Class<?>[] parameterTypes;
+
+        private volatile MethodHandle handle;
+
+        MethodAccessor(String owner, String name, Class<?>... parameterTypes) {
+            this.owner = owner;
+            this.name = name;
+            this.parameterTypes = parameterTypes;
+        }
+
+        /**
+         * 和Method.invoke一样，方法本身抛出的异常包装成InvocationTargetException
+         */
+        public Object invoke(Object target, Object... args) throws InvocationTargetException {
+            MethodHandle handle = getHandle();
+            try {
+                return (Object) handle.invokeExact(target, args);
+            } catch (Throwable e) {
+                throw new InvocationTargetException(e);
+            }
+        }
+
+        private MethodHandle getHandle() {
+            MethodHandle handle = this.handle;
+            if (handle == null) {
+                resolve();
+                handle = this.handle;
+            }
+            return handle;
+        }
+
+        @Override
+        public void resolve() {
+            if (handle != null) {
+                return;
+            }
+            Method method = ReflectionUtils.findMethod(forName(owner), name, parameterTypes);
+            if (method == null) {
+                throw new IllegalStateException("method " + this + " not found");
+            }
+            makeAccessible(method, "method " + this);
+            try {
+                handle = LOOKUP.unreflect(method)
+                        .asType(MethodType.genericMethodType(parameterTypes.length + 1))
+                        .asSpreader(Object[].class, parameterTypes.length);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("can not access method " + this + ": " + e.getMessage());
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringJoiner joiner = new StringJoiner(", ", owner + "." + name + "(", ")");
+            for (Class<?> parameterType : parameterTypes) {
+                joiner.add(parameterType.getSimpleName());
+            }
+            return joiner.toString();
+        }
+    }
+
+    /**
+     * 读取一个非公开的静态属性
+     */
+    public static class StaticFieldAccessor implements Accessor {
+
+        private final String owner;
+
+        private final String name;
+
+        private volatile MethodHandle handle;
+
+        StaticFieldAccessor(String owner, String name) {
+            this.owner = owner;
+            this.name = name;
+        }
+
+        public Object get() {
+            resolve();
+            try {
+                return (Object) handle.invokeExact();
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public void resolve() {
+            if (handle != null) {
+                return;
+            }
+            Field field = ReflectionUtils.findField(forName(owner), name);
+            if (field == null) {
+                throw new IllegalStateException("field " + this + " not found");
+            }
+            makeAccessible(field, "field " + this);
+            try {
+                handle = LOOKUP.unreflectGetter(field).asType(MethodType.methodType(Object.class));
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("can not access field " + this + ": " + e.getMessage());
+            }
+        }
+
+        @Override
+        public String toString() {
+            return owner + "." + name;
+        }
+    }
+
+    /**
+     * 调用一个非公开的构造方法
+     */
+    public static class ConstructorAccessor implements Accessor {
+
+        private final String owner;
+
+        private final Class<?>[] parameterTypes;
+
+        private volatile MethodHandle handle;
+
+        /**
+         * 解析失败的原因，解析不了的不再重复解析
+         */
+        private volatile IllegalStateException failure;
+
+        ConstructorAccessor(String owner, Class<?>... parameterTypes) {
+            this.owner = owner;
+            this.parameterTypes = parameterTypes;
+        }
+
+        /**
+         * 和Constructor.newInstance一样，构造方法本身抛出的异常包装成InvocationTargetException
+         */
+        public Object newInstance(Object... args) throws InvocationTargetException {
+            resolve();
+            try {
+                return (Object) handle.invokeExact(args);
+            } catch (Throwable e) {
+                throw new InvocationTargetException(e);
+            }
+        }
+
+        /**
+         * 能不能解析出来，给有退路的地方先判断
+         */
+        public boolean isAvailable() {
+            try {
+                resolve();
+                return true;
+            } catch (IllegalStateException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void resolve() {
+            if (handle != null) {
+                return;
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            try {
+                Constructor<?> constructor;
+                try {
+                    constructor = forName(owner).getDeclaredConstructor(parameterTypes);
+                } catch (NoSuchMethodException e) {
+                    throw new IllegalStateException("constructor " + this + " not found");
+                }
+                makeAccessible(constructor, "constructor " + this);
+                try {
+                    handle = LOOKUP.unreflectConstructor(constructor)
+                            .asType(MethodType.genericMethodType(parameterTypes.length))
+                            .asSpreader(Object[].class, parameterTypes.length);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException("can not access constructor " + this + ": " + e.getMessage());
+                }
+            } catch (IllegalStateException e) {
+                failure = e;
+                throw e;
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringJoiner joiner = new StringJoiner(", ", owner + "(", ")");
+            for (Class<?> parameterType : parameterTypes) {
+                joiner.add(parameterType.getSimpleName());
+            }
+            return joiner.toString();
+        }
+    }
+}
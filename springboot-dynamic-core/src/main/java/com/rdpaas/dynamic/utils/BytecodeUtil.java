@@ -0,0 +1,105 @@
+package com.rdpaas.dynamic.utils;
+
+import org.springframework.asm.ClassReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 字节码工具包，直接读class文件的内容，不需要把类装载进jvm
+ * @author rongdi
+ * @date 2021-03-20
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class BytecodeUtil {
+
+    private final static int CONSTANT_UTF8 = 1;
+
+    private final static int CONSTANT_CLASS = 7;
+
+    /**
+     * 匹配字段描述符、方法描述符和泛型签名里的类型，如Lcom/rdpaas/demo/ext/entity/User1;
+     */
+    private final static Pattern TYPE_DESCRIPTOR = Pattern.compile("L([\\w/$]+)[;<]");
+
+    /**
+     * 拿到字节码常量池里引用到的所有类的全限定名，包括父类、接口、字段和方法签名里的类型、注解、new和方法调用的目标类等，
+     * 结果只会多不会少
+     * @param bytes
+     * @return
+     */
+    public static Set<String> getReferencedClassNames(byte[] bytes) {
+        Set<String> classNames = new HashSet<>();
+        ClassReader classReader = new ClassReader(bytes);
+        char[] charBuffer = new char[classReader.getMaxStringLength()];
+        for (int i = 1; i < classReader.getItemCount(); i++) {
+            int offset = classReader.getItem(i);
+            /**
+             * long和double在常量池里占两个位置，第二个位置是空的
+             */
+            if (offset == 0) {
+                continue;
+            }
+            int tag = classReader.readByte(offset - 1);
+            if (tag == CONSTANT_CLASS) {
+                String internalName = classReader.readUTF8(offset, charBuffer);
+                if (internalName.startsWith("[")) {
+                    addDescriptorTypes(internalName, classNames);
+                } else {
+                    classNames.add(toClassName(internalName));
+                }
+            } else if (tag == CONSTANT_UTF8) {
+                addDescriptorTypes(readUtf8(bytes, offset), classNames);
+            }
+        }
+        return classNames;
+    }
+
+    /**
+     * 拿到父类和直接实现的接口的全限定名，定义一个类之前jvm必须先能装载到它们
+     * @param bytes
+     * @return
+     */
+    public static List<String> getSuperTypeNames(byte[] bytes) {
+        ClassReader classReader = new ClassReader(bytes);
+        List<String> superTypeNames = new ArrayList<>();
+        if (classReader.getSuperName() != null) {
+            superTypeNames.add(toClassName(classReader.getSuperName()));
+        }
+        for (String interfaceName : classReader.getInterfaces()) {
+            superTypeNames.add(toClassName(interfaceName));
+        }
+        return superTypeNames;
+    }
+
+    private static void addDescriptorTypes(String value, Set<String> classNames) {
+        Matcher matcher = TYPE_DESCRIPTOR.matcher(value);
+        while (matcher.find()) {
+            classNames.add(toClassName(matcher.group(1)));
+        }
+    }
+
+    /**
+     * CONSTANT_Utf8_info的内容就是u2长度加上modified UTF-8，刚好是DataInput.readUTF的格式
+     */
+    private static String readUtf8(byte[] bytes, int offset) {
+        try {
+            return new DataInputStream(new ByteArrayInputStream(bytes, offset, bytes.length - offset)).readUTF();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String toClassName(String internalName) {
+        return internalName.replace('/', '.');
+    }
+
+}
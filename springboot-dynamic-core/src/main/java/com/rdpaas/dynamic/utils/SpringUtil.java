@@ -1,12 +1,10 @@
 package com.rdpaas.dynamic.utils;
 
-import org.apache.ibatis.annotations.Mapper;
-import org.springframework.context.annotation.Configuration;
+import org.springframework.core.annotation.AnnotatedElementUtils;
 import org.springframework.stereotype.Component;
 import org.springframework.stereotype.Controller;
-import org.springframework.stereotype.Repository;
-import org.springframework.stereotype.Service;
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.util.StringUtils;
+import org.springframework.web.bind.annotation.RequestMapping;
 
 import java.lang.reflect.Modifier;
 
@@ -32,14 +30,9 @@ public class SpringUtil {
         Class targetClass = cla;
         while(targetClass != null) {
             /**
-             * 如果包含spring注解则返回true
+             * 如果包含spring注解则返回true，@Service、@RestController这些注解以及自定义的组合注解上都有@Component
              */
-            if (targetClass.isAnnotationPresent(Component.class) ||
-                    targetClass.isAnnotationPresent(Repository.class) ||
-                    targetClass.isAnnotationPresent(Service.class) ||
-                    targetClass.isAnnotationPresent(Configuration.class) ||
-                    targetClass.isAnnotationPresent(Controller.class) ||
-                    targetClass.isAnnotationPresent(RestController.class)) {
+            if (AnnotatedElementUtils.isAnnotated(targetClass, Component.class)) {
                 return true;
             }
             targetClass = targetClass.getSuperclass();
@@ -48,4 +41,22 @@ public class SpringUtil {
         return false;
     }
 
+    /**
+     * 根据类的全限定名得到beanName，扩展包的bean都按这个规则命名
+     */
+    public static String getBeanName(String className) {
+        //将变量首字母置小写
+        String beanName = StringUtils.uncapitalize(className);
+        beanName = beanName.substring(beanName.lastIndexOf(".") + 1);
+        return StringUtils.uncapitalize(beanName);
+    }
+
+    /**
+     * 判断class对象是否是springmvc的controller
+     */
+    public static boolean isControllerClass(Class<?> cla) {
+        return cla != null && (AnnotatedElementUtils.hasAnnotation(cla, Controller.class) ||
+                AnnotatedElementUtils.hasAnnotation(cla, RequestMapping.class));
+    }
+
 }
@@ -0,0 +1,86 @@
+package com.rdpaas.dynamic.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 目录里放着同一个扩展包的多个版本时要取版本号最大的那个
+ * @author rongdi
+ * @date 2021-05-08
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class DirectoryModuleSourceTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    public void comparesNumericPartsAsNumbers() {
+        assertTrue(DirectoryModuleSource.compareVersion("1.0.10", "1.0.9") > 0);
+        assertTrue(DirectoryModuleSource.compareVersion("1.2", "1.10") < 0);
+        assertTrue(DirectoryModuleSource.compareVersion("2.0.0", "10.0.0") < 0);
+        assertEquals(0, DirectoryModuleSource.compareVersion("1.0.0", "1.0.0"));
+    }
+
+    @Test
+    public void extraNumberIsNewerButSuffixIsOlder() {
+        assertTrue(DirectoryModuleSource.compareVersion("1.0.0.1", "1.0.0") > 0);
+        assertTrue(DirectoryModuleSource.compareVersion("1.0.0-SNAPSHOT", "1.0.0") < 0);
+        assertTrue(DirectoryModuleSource.compareVersion("1.0.0", "1.0.0-SNAPSHOT") > 0);
+        assertTrue(DirectoryModuleSource.compareVersion("1.0.1-SNAPSHOT", "1.0.0") > 0);
+        /**
+         * 数字比文字新，文字之间不区分大小写
+         */
+        assertTrue(DirectoryModuleSource.compareVersion("1.0.0-1", "1.0.0-rc") > 0);
+        assertEquals(0, DirectoryModuleSource.compareVersion("1.0.0-rc", "1.0.0-RC"));
+    }
+
+    @Test
+    public void versionWithoutNumberIsTheOldest() {
+        assertTrue(DirectoryModuleSource.compareVersion("", "0.0.1") < 0);
+        assertEquals("1.0.0-SNAPSHOT", DirectoryModuleSource.getVersion(new File("ext-1.0.0-SNAPSHOT.jar")));
+        assertEquals("", DirectoryModuleSource.getVersion(new File("ext.jar")));
+        /**
+         * 超过long范围的数字段按文字比较，不能抛NumberFormatException
+         */
+        assertTrue(DirectoryModuleSource.compareVersion("1.12345678901234567890", "1.2") < 0);
+    }
+
+    @Test
+    public void resolvesTheHighestVersion() throws IOException {
+        for (String name : new String[]{"ext-1.0.9.jar", "ext-1.0.10-SNAPSHOT.jar", "ext-1.0.10.jar", "ext.jar", "readme.txt"}) {
+            Files.write(new File(tempDir, name).toPath(), name.getBytes());
+        }
+        DirectoryModuleSource source = new DirectoryModuleSource();
+
+        assertTrue(source.supports(tempDir.toURI().toURL()));
+        assertEquals("ext-1.0.10.jar", source.resolve(tempDir.toURI().toURL()).getFile().getName());
+    }
+
+    @Test
+    public void sameVersionTakesTheLastModified() throws IOException {
+        File older = new File(tempDir, "ext-1.0.0.jar");
+        File newer = new File(tempDir, "ext-hotfix-1.0.0.jar");
+        Files.write(older.toPath(), new byte[]{1});
+        Files.write(newer.toPath(), new byte[]{2});
+        long now = System.currentTimeMillis();
+        assertTrue(older.setLastModified(now - 60000));
+        assertTrue(newer.setLastModified(now));
+
+        assertEquals("ext-hotfix-1.0.0.jar", new DirectoryModuleSource().resolve(tempDir.toURI().toURL()).getFile().getName());
+    }
+
+    @Test
+    public void emptyDirectoryFails() {
+        assertThrows(FileNotFoundException.class, () -> new DirectoryModuleSource().resolve(tempDir.toURI().toURL()));
+    }
+}
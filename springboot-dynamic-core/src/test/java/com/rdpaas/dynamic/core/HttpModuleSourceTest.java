@@ -0,0 +1,150 @@
+package com.rdpaas.dynamic.core;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.DigestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 用jdk自带的HttpServer模拟放扩展包的服务器，验证条件下载和按md5复用缓存
+ * @author rongdi
+ * @date 2021-05-08
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class HttpModuleSourceTest {
+
+    private final static byte[] JAR = "module jar v1".getBytes(StandardCharsets.UTF_8);
+
+    private final static String JAR_MD5 = DigestUtils.md5DigestAsHex(JAR);
+
+    @TempDir
+    File tempDir;
+
+    private HttpServer server;
+
+    private HttpModuleSource source;
+
+    /**
+     * 服务端返回200的次数
+     */
+    private final AtomicInteger downloads = new AtomicInteger();
+
+    /**
+     * 最近一次请求带的If-None-Match
+     */
+    private volatile String ifNoneMatch;
+
+    private volatile int status = 200;
+
+    private volatile String checksum;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+        source = new HttpModuleSource(new ModuleJarCache(tempDir));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    /**
+     * /nginx/下的ETag是长度加修改时间那种，/oss/下的ETag是内容的md5。/oss/故意返回别的内容，客户端真的下载了就能看出来
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        boolean oss = exchange.getRequestURI().getPath().startsWith("/oss/");
+        String etag = oss ? "\"" + JAR_MD5 + "\"" : "\"5f9b2c1a-d\"";
+        byte[] body = oss ? "not the cached jar".getBytes(StandardCharsets.UTF_8) : JAR;
+        exchange.getResponseHeaders().set("ETag", etag);
+        if (checksum != null) {
+            exchange.getResponseHeaders().set("X-Checksum-Md5", checksum);
+        }
+        if (status != 200) {
+            exchange.sendResponseHeaders(status, -1);
+        } else if (etag.equals(ifNoneMatch)) {
+            exchange.sendResponseHeaders(304, -1);
+        } else {
+            downloads.incrementAndGet();
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        }
+        exchange.close();
+    }
+
+    private URL url(String path) throws IOException {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + path);
+    }
+
+    @Test
+    public void downloadsOnceAndRevalidatesWithEtag() throws IOException {
+        URL url = url("/nginx/ext-1.0.0.jar");
+
+        ModuleJar first = source.resolve(url);
+        assertEquals(JAR_MD5, first.getHash());
+        assertArrayEquals(JAR, Files.readAllBytes(first.getFile().toPath()));
+        assertNull(ifNoneMatch);
+
+        ModuleJar second = source.resolve(url);
+        assertEquals("\"5f9b2c1a-d\"", ifNoneMatch);
+        assertEquals(1, downloads.get());
+        assertEquals(first.getFile(), second.getFile());
+        assertEquals(JAR_MD5, second.getHash());
+    }
+
+    @Test
+    public void md5EtagReusesJarCachedFromAnotherUrl() throws IOException {
+        source.resolve(url("/nginx/ext-1.0.0.jar"));
+        assertEquals(1, downloads.get());
+
+        /**
+         * 换了个地址，服务端返回200，但ETag就是缓存里已有内容的md5，不读响应体直接用缓存
+         */
+        ModuleJar jar = source.resolve(url("/oss/ext-1.0.0.jar"));
+        assertEquals(JAR_MD5, jar.getHash());
+        assertArrayEquals(JAR, Files.readAllBytes(jar.getFile().toPath()));
+    }
+
+    @Test
+    public void serverErrorFallsBackToCache() throws IOException {
+        URL url = url("/nginx/ext-1.0.0.jar");
+        ModuleJar first = source.resolve(url);
+
+        status = 500;
+        assertEquals(first.getFile(), source.resolve(url).getFile());
+
+        assertThrows(IOException.class, () -> source.resolve(url("/nginx/other-1.0.0.jar")));
+    }
+
+    @Test
+    public void corruptedDownloadIsRejected() throws IOException {
+        checksum = DigestUtils.md5DigestAsHex("something else".getBytes(StandardCharsets.UTF_8));
+
+        IOException e = assertThrows(IOException.class, () -> source.resolve(url("/nginx/ext-1.0.0.jar")));
+        assertTrue(e.getMessage().contains("corrupted"), e.getMessage());
+        assertNull(source.getCache().get(JAR_MD5));
+    }
+}
@@ -0,0 +1,210 @@
+package com.rdpaas.dynamic.core;
+
+import org.apache.ibatis.datasource.unpooled.UnpooledDataSource;
+import org.apache.ibatis.mapping.Environment;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.ResultMap;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.apache.ibatis.session.defaults.DefaultSqlSessionFactory;
+import org.apache.ibatis.transaction.jdbc.JdbcTransactionFactory;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * MapperLoader刷新、删除mapper.xml时configuration里的注册表要和xml保持一致，失败时回滚到刷新之前，不需要数据库
+ * @author rongdi
+ * @date 2021-05-08
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class MapperLoaderTest {
+
+    private final static String USER_MAPPER = UserMapper.class.getName();
+
+    private final static String ORDER_MAPPER = OrderMapper.class.getName();
+
+    private Configuration configuration;
+
+    private SqlSessionFactory sqlSessionFactory;
+
+    private MapperLoader mapperLoader;
+
+    @BeforeEach
+    public void setUp() {
+        /**
+         * MapperFactoryBean构造SqlSessionTemplate时要取数据源，只注册不执行语句，不会真的去连
+         */
+        configuration = new Configuration(new Environment("test", new JdbcTransactionFactory(), new UnpooledDataSource()));
+        sqlSessionFactory = new DefaultSqlSessionFactory(configuration);
+        mapperLoader = new MapperLoader();
+    }
+
+    @Test
+    public void refreshRegistersStatementsAndMapper() {
+        Map<String, Object> mapperMap = mapperLoader.refresh(sqlSessionFactory, xmls("user.xml", userXml("findAll", "findById")));
+
+        assertNotNull(mapperMap);
+        assertEquals(Collections.singleton(USER_MAPPER), mapperMap.keySet());
+        assertTrue(configuration.hasStatement(USER_MAPPER + ".findAll"));
+        assertTrue(configuration.hasStatement(USER_MAPPER + ".findById"));
+        assertTrue(configuration.hasMapper(UserMapper.class));
+        assertEquals(2, mapperLoader.getLastStatementCount());
+    }
+
+    @Test
+    public void refreshReplacesStatementsRemovedFromXml() {
+        mapperLoader.refresh(sqlSessionFactory, xmls("user.xml", userXml("findAll", "findById")));
+        Map<String, Object> mapperMap = mapperLoader.refresh(sqlSessionFactory, xmls("user.xml", userXml("findAll", "count")));
+
+        assertNotNull(mapperMap);
+        assertTrue(configuration.hasStatement(USER_MAPPER + ".findAll"));
+        assertTrue(configuration.hasStatement(USER_MAPPER + ".count"));
+        assertFalse(configuration.hasStatement(USER_MAPPER + ".findById"));
+        assertFalse(configuration.getMappedStatementNames().contains("findById"));
+        assertTrue(configuration.hasMapper(UserMapper.class));
+        assertEquals(1, configuration.getMapperRegistry().getMappers().size());
+    }
+
+    @Test
+    public void refreshSkipsUnchangedXml() {
+        mapperLoader.refresh(sqlSessionFactory, xmls("user.xml", userXml("findAll")));
+        Map<String, Object> mapperMap = mapperLoader.refresh(sqlSessionFactory, xmls("user.xml", userXml("findAll")));
+
+        assertEquals(Collections.singleton(USER_MAPPER), mapperMap.keySet());
+        assertEquals(0, mapperLoader.getLastStatementCount());
+        assertTrue(configuration.hasStatement(USER_MAPPER + ".findAll"));
+    }
+
+    @Test
+    public void removeCleansOnlyTheRemovedNamespace() {
+        Map<String, byte[]> xmls = xmls("user.xml", userXml("findAll"));
+        xmls.putAll(xmls("order.xml", orderXml()));
+        mapperLoader.refresh(sqlSessionFactory, xmls);
+
+        Set<String> removed = mapperLoader.remove(sqlSessionFactory, xmls("user.xml", userXml("findAll")), null);
+
+        assertEquals(Collections.singleton(USER_MAPPER), removed);
+        assertFalse(configuration.hasStatement(USER_MAPPER + ".findAll"));
+        assertFalse(configuration.hasMapper(UserMapper.class));
+        assertFalse(configuration.isResourceLoaded("user.xml"));
+        assertTrue(configuration.hasStatement(ORDER_MAPPER + ".findAll"));
+        assertTrue(configuration.hasMapper(OrderMapper.class));
+    }
+
+    @Test
+    public void removeWithoutIndexFallsBackToXml() {
+        mapperLoader.refresh(sqlSessionFactory, xmls("user.xml", userXml("findAll")));
+
+        /**
+         * 换一个MapperLoader，没有上次注册时的索引，只能按xml推算
+         */
+        new MapperLoader().remove(sqlSessionFactory, xmls("user.xml", userXml("findAll")), null);
+
+        assertFalse(configuration.hasStatement(USER_MAPPER + ".findAll"));
+        assertFalse(configuration.hasMapper(UserMapper.class));
+    }
+
+    @Test
+    public void failedBuildLeavesConfigurationUntouched() {
+        mapperLoader.refresh(sqlSessionFactory, xmls("user.xml", userXml("findAll", "findById")));
+        Map<String, byte[]> xmls = xmls("user.xml", userXml("findAll", "count"));
+        xmls.putAll(xmls("order.xml", header(ORDER_MAPPER)
+                + "<select id=\"findAll\" resultMap=\"missing\">select 1</select></mapper>"));
+
+        assertNull(mapperLoader.refresh(sqlSessionFactory, xmls));
+
+        assertTrue(configuration.hasStatement(USER_MAPPER + ".findById"));
+        assertFalse(configuration.hasStatement(USER_MAPPER + ".count"));
+        assertFalse(configuration.hasStatement(ORDER_MAPPER + ".findAll"));
+        assertFalse(configuration.hasMapper(OrderMapper.class));
+    }
+
+    @Test
+    public void failedCommitRollsBackToPreviousVersion() {
+        mapperLoader.refresh(sqlSessionFactory, xmls("user.xml", userXml("findAll", "findById")));
+        MappedStatement findAll = configuration.getMappedStatement(USER_MAPPER + ".findAll");
+        /**
+         * 没有数据源时构造MapperFactoryBean会失败，这时新版本已经合并进configuration了
+         */
+        Environment environment = configuration.getEnvironment();
+        configuration.setEnvironment(null);
+
+        assertNull(mapperLoader.refresh(sqlSessionFactory, xmls("user.xml", userXml("findAll", "count"))));
+
+        assertSame(findAll, configuration.getMappedStatement(USER_MAPPER + ".findAll"));
+        assertTrue(configuration.hasStatement(USER_MAPPER + ".findById"));
+        assertFalse(configuration.hasStatement(USER_MAPPER + ".count"));
+        assertTrue(configuration.hasMapper(UserMapper.class));
+        assertTrue(configuration.isResourceLoaded("user.xml"));
+
+        configuration.setEnvironment(environment);
+        assertNotNull(mapperLoader.refresh(sqlSessionFactory, xmls("user.xml", userXml("findAll", "count"))));
+        assertFalse(configuration.hasStatement(USER_MAPPER + ".findById"));
+        assertTrue(configuration.hasStatement(USER_MAPPER + ".count"));
+    }
+
+    @Test
+    public void stagedStatementsResolveReferencesThroughConfiguration() {
+        mapperLoader.refresh(sqlSessionFactory, xmls("user.xml", userXmlWithResultMap("id")));
+        mapperLoader.refresh(sqlSessionFactory, xmls("order.xml", header(ORDER_MAPPER)
+                + "<select id=\"findAll\" resultMap=\"" + USER_MAPPER + ".userMap\">select 1</select></mapper>"));
+        MappedStatement findAll = configuration.getMappedStatement(ORDER_MAPPER + ".findAll");
+        assertSame(configuration.getResultMap(USER_MAPPER + ".userMap"), findAll.getResultMaps().get(0));
+
+        /**
+         * 引用的resultMap被替换以后，语句通过自己的配置查到的是configuration里最新的
+         */
+        mapperLoader.refresh(sqlSessionFactory, xmls("user.xml", userXmlWithResultMap("name")));
+        ResultMap userMap = findAll.getConfiguration().getResultMap(USER_MAPPER + ".userMap");
+        assertSame(configuration.getResultMap(USER_MAPPER + ".userMap"), userMap);
+        assertEquals("name", userMap.getResultMappings().get(0).getProperty());
+    }
+
+    static Map<String, byte[]> xmls(String resource, String xml) {
+        Map<String, byte[]> xmls = new HashMap<>();
+        xmls.put(resource, xml.getBytes(StandardCharsets.UTF_8));
+        return xmls;
+    }
+
+    static String userXml(String... statements) {
+        StringBuilder builder = new StringBuilder(header(USER_MAPPER));
+        for (String statement : statements) {
+            builder.append("<select id=\"").append(statement).append("\" resultType=\"map\">select 1</select>");
+        }
+        return builder.append("</mapper>").toString();
+    }
+
+    static String userXmlWithResultMap(String property) {
+        return header(USER_MAPPER) + "<resultMap id=\"userMap\" type=\"map\"><result property=\"" + property
+                + "\" column=\"" + property + "\"/></resultMap></mapper>";
+    }
+
+    static String orderXml() {
+        return header(ORDER_MAPPER) + "<select id=\"findAll\" resultType=\"map\">select 1</select></mapper>";
+    }
+
+    static String header(String namespace) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<!DOCTYPE mapper PUBLIC \"-//mybatis.org//DTD Mapper 3.0//EN\" \"http://mybatis.org/dtd/mybatis-3-mapper.dtd\">"
+                + "<mapper namespace=\"" + namespace + "\">";
+    }
+
+    public interface UserMapper {
+    }
+
+    public interface OrderMapper {
+    }
+}
@@ -0,0 +1,86 @@
+package com.rdpaas.dynamic.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 压缩和堆外两种保留方式取出来的字节码都要和放进去的一样
+ * @author rongdi
+ * @date 2021-05-08
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class ModuleClassBytesTest {
+
+    private static Map<String, byte[]> classBytesMap() {
+        Map<String, byte[]> classBytesMap = new LinkedHashMap<>();
+        StringBuilder repeated = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            repeated.append("java/lang/Object;");
+        }
+        classBytesMap.put("demo.Compressible", repeated.toString().getBytes(StandardCharsets.UTF_8));
+        byte[] random = new byte[4096];
+        new Random(1).nextBytes(random);
+        classBytesMap.put("demo.Incompressible", random);
+        /**
+         * 5个0压缩后也是5个字节，没有变短，要原样存放
+         */
+        classBytesMap.put("demo.SameLength", new byte[5]);
+        classBytesMap.put("demo.OneByte", new byte[]{42});
+        classBytesMap.put("demo.Empty", new byte[0]);
+        return classBytesMap;
+    }
+
+    @Test
+    public void compressedRoundTrip() {
+        Map<String, byte[]> classBytesMap = classBytesMap();
+        ModuleClassBytes classBytes = ModuleClassBytes.of(ModuleClassBytes.Retention.COMPRESS, classBytesMap);
+
+        classBytesMap.forEach((className, bytes) -> assertArrayEquals(bytes, classBytes.get(className), className));
+        assertTrue(classBytes.getRetainedBytes() < 4096 + 17 * 200);
+    }
+
+    @Test
+    public void offHeapRoundTrip() {
+        Map<String, byte[]> classBytesMap = classBytesMap();
+        ModuleClassBytes classBytes = ModuleClassBytes.of(ModuleClassBytes.Retention.OFF_HEAP, classBytesMap);
+
+        classBytesMap.forEach((className, bytes) -> assertArrayEquals(bytes, classBytes.get(className), className));
+        assertEquals(4096 + 17 * 200 + 5 + 1, classBytes.getRetainedBytes());
+    }
+
+    @Test
+    public void removedClassesAreNoLongerRetained() {
+        for (ModuleClassBytes.Retention retention : new ModuleClassBytes.Retention[]{ModuleClassBytes.Retention.COMPRESS,
+                ModuleClassBytes.Retention.OFF_HEAP}) {
+            ModuleClassBytes classBytes = ModuleClassBytes.of(retention, classBytesMap());
+            classBytes.remove("demo.Compressible");
+
+            assertFalse(classBytes.contains("demo.Compressible"));
+            assertNull(classBytes.get("demo.Compressible"));
+            assertTrue(classBytes.contains("demo.Incompressible"));
+            assertEquals(4, classBytes.size());
+        }
+    }
+
+    @Test
+    public void parsesRetention() {
+        assertEquals(ModuleClassBytes.Retention.KEEP, ModuleClassBytes.Retention.of(null));
+        assertEquals(ModuleClassBytes.Retention.KEEP, ModuleClassBytes.Retention.of(" "));
+        assertEquals(ModuleClassBytes.Retention.COMPRESS, ModuleClassBytes.Retention.of("Compress"));
+        assertEquals(ModuleClassBytes.Retention.OFF_HEAP, ModuleClassBytes.Retention.of(" off-heap "));
+
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> ModuleClassBytes.Retention.of("offheap"));
+        assertTrue(e.getMessage().contains("keep, compress, off-heap"), e.getMessage());
+    }
+}
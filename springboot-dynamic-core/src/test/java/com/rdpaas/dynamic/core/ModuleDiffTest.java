@@ -0,0 +1,84 @@
+package com.rdpaas.dynamic.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author rongdi
+ * @date 2021-05-08
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class ModuleDiffTest {
+
+    @Test
+    public void classifiesChangedAddedRemovedAndUnchanged() {
+        Map<String, String> previousClasses = map("a.A", "1", "a.B", "2", "a.C", "3");
+        Map<String, String> classes = map("a.A", "1", "a.B", "20", "a.D", "4");
+        Map<String, String> previousXmls = map("mapper/a.xml", "x", "mapper/b.xml", "y");
+        Map<String, String> xmls = map("mapper/a.xml", "x", "mapper/c.xml", "z");
+
+        ModuleDiff diff = new ModuleDiff(previousClasses, classes, previousXmls, xmls);
+
+        assertEquals(set("a.B", "a.D"), diff.getChangedClasses());
+        assertEquals(set("a.B"), diff.getModifiedClasses());
+        assertEquals(set("a.C"), diff.getRemovedClasses());
+        assertEquals(set("a.A"), diff.getUnchangedClasses());
+        assertEquals(set("mapper/c.xml"), diff.getChangedXmls());
+        assertEquals(set("mapper/b.xml"), diff.getRemovedXmls());
+        assertEquals(set("mapper/a.xml"), diff.getUnchangedXmls());
+        assertFalse(diff.isEmpty());
+    }
+
+    @Test
+    public void firstVersionHasOnlyAddedEntries() {
+        ModuleDiff diff = new ModuleDiff(Collections.emptyMap(), map("a.A", "1"), Collections.emptyMap(), map("mapper/a.xml", "x"));
+
+        assertEquals(set("a.A"), diff.getChangedClasses());
+        assertTrue(diff.getModifiedClasses().isEmpty());
+        assertEquals(set("mapper/a.xml"), diff.getChangedXmls());
+    }
+
+    @Test
+    public void identicalVersionsAreEmpty() {
+        Map<String, String> classes = map("a.A", "1");
+        Map<String, String> xmls = map("mapper/a.xml", "x");
+
+        assertTrue(new ModuleDiff(classes, classes, xmls, xmls).isEmpty());
+    }
+
+    @Test
+    public void hashFollowsContent() {
+        Map<String, byte[]> bytesMap = new HashMap<>();
+        bytesMap.put("a", new byte[]{1, 2, 3});
+        bytesMap.put("b", new byte[]{1, 2, 3});
+        bytesMap.put("c", new byte[]{1, 2, 4});
+
+        Map<String, String> hashes = ModuleDiff.hash(bytesMap);
+
+        assertEquals(hashes.get("a"), hashes.get("b"));
+        assertNotEquals(hashes.get("a"), hashes.get("c"));
+        assertEquals(32, hashes.get("a").length());
+    }
+
+    private static Map<String, String> map(String... keyValues) {
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            map.put(keyValues[i], keyValues[i + 1]);
+        }
+        return map;
+    }
+
+    private static HashSet<String> set(String... values) {
+        return new HashSet<>(Arrays.asList(values));
+    }
+}
@@ -0,0 +1,155 @@
+package com.rdpaas.dynamic.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 直接从外层jar包里读自带的第三方jar包，不压缩和压缩过的内层jar包都要能读，外层文件被原地改写后要报错
+ * @author rongdi
+ * @date 2021-05-08
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class ModuleLibrariesTest {
+
+    private final static byte[] CLASS_A = "class a".getBytes(StandardCharsets.UTF_8);
+
+    private final static byte[] CLASS_B = "class b".getBytes(StandardCharsets.UTF_8);
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    public void readsStoredAndCompressedLibraries() throws IOException {
+        File jar = writeModuleJar(new File(tempDir, "ext-1.0.0.jar"), "v1");
+
+        try (ModuleLibraries libraries = ModuleLibraries.open(jar)) {
+            assertEquals(Arrays.asList("lib/stored.jar", "BOOT-INF/lib/deflated.jar"), libraries.getJarNames());
+            assertArrayEquals(CLASS_A, libraries.findClass("demo.a.A"));
+            assertArrayEquals(CLASS_B, libraries.findClass("demo.b.B"));
+            assertTrue(libraries.containsClass("demo.a.A"));
+            assertFalse(libraries.containsClass("demo.a.Missing"));
+            assertNull(libraries.findClass("demo.c.C"));
+
+            URL resource = libraries.findResource("META-INF/demo.properties");
+            assertEquals("stored=v1", read(resource));
+            List<URL> resources = libraries.findResources("META-INF/demo.properties");
+            assertEquals(2, resources.size());
+            assertEquals("deflated=v1", read(resources.get(1)));
+        }
+    }
+
+    @Test
+    public void failsWhenJarIsRewrittenInPlace() throws IOException {
+        File jar = writeModuleJar(new File(tempDir, "ext-1.0.0.jar"), "v1");
+
+        try (ModuleLibraries libraries = ModuleLibraries.open(jar)) {
+            /**
+             * 原地覆盖，还是同一个文件，内层jar包的位置全变了
+             */
+            writeModuleJar(jar, "version2");
+
+            IOException e = assertThrows(IOException.class, () -> libraries.findClass("demo.a.A"));
+            assertTrue(e.getMessage().contains("modified after it was opened"), e.getMessage());
+            /**
+             * 打开时已经整体解压到内存里的不受影响
+             */
+            assertArrayEquals(CLASS_B, libraries.findClass("demo.b.B"));
+        }
+    }
+
+    @Test
+    public void failsWhenSameSizeContentIsRewritten() throws IOException {
+        File jar = writeModuleJar(new File(tempDir, "ext-1.0.0.jar"), "v1");
+
+        try (ModuleLibraries libraries = ModuleLibraries.open(jar)) {
+            writeModuleJar(jar, "v2");
+            assertTrue(jar.setLastModified(jar.lastModified() + 2000));
+
+            assertThrows(IOException.class, () -> libraries.findClass("demo.a.A"));
+        }
+    }
+
+    @Test
+    public void keepsReadingWhenJarIsReplaced() throws IOException {
+        File jar = writeModuleJar(new File(tempDir, "ext-1.0.0.jar"), "v1");
+
+        try (ModuleLibraries libraries = ModuleLibraries.open(jar)) {
+            /**
+             * 先写到别的文件再改名覆盖，开着的还是旧文件
+             */
+            File replacement = writeModuleJar(new File(tempDir, "ext-1.0.0.jar.tmp"), "version2");
+            Files.move(replacement.toPath(), jar.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            assertArrayEquals(CLASS_A, libraries.findClass("demo.a.A"));
+            assertEquals("stored=v1", read(libraries.findResource("META-INF/demo.properties")));
+        }
+    }
+
+    private static String read(URL url) throws IOException {
+        try (InputStream input = url.openStream()) {
+            return StreamUtils.copyToString(input, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * 扩展包里放一个不压缩的lib/stored.jar和一个压缩过的BOOT-INF/lib/deflated.jar
+     */
+    private static File writeModuleJar(File file, String version) throws IOException {
+        byte[] stored = writeLibrary("demo/a/A.class", CLASS_A, "stored=" + version);
+        byte[] deflated = writeLibrary("demo/b/B.class", CLASS_B, "deflated=" + version);
+        try (ZipOutputStream output = new ZipOutputStream(new FileOutputStream(file))) {
+            output.putNextEntry(new ZipEntry("com/demo/Ext.class"));
+            output.write(version.getBytes(StandardCharsets.UTF_8));
+            output.closeEntry();
+            ZipEntry storedEntry = new ZipEntry("lib/stored.jar");
+            storedEntry.setMethod(ZipEntry.STORED);
+            storedEntry.setSize(stored.length);
+            CRC32 crc = new CRC32();
+            crc.update(stored);
+            storedEntry.setCrc(crc.getValue());
+            output.putNextEntry(storedEntry);
+            output.write(stored);
+            output.closeEntry();
+            output.putNextEntry(new ZipEntry("BOOT-INF/lib/deflated.jar"));
+            output.write(deflated);
+            output.closeEntry();
+        }
+        return file;
+    }
+
+    private static byte[] writeLibrary(String className, byte[] classBytes, String properties) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream output = new ZipOutputStream(bytes)) {
+            output.putNextEntry(new ZipEntry(className));
+            output.write(classBytes);
+            output.closeEntry();
+            output.putNextEntry(new ZipEntry("META-INF/demo.properties"));
+            output.write(properties.getBytes(StandardCharsets.UTF_8));
+            output.closeEntry();
+        }
+        return bytes.toByteArray();
+    }
+}
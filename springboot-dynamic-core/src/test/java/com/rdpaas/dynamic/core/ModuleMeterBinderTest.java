@@ -0,0 +1,63 @@
+package com.rdpaas.dynamic.core;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * ModuleMetrics记下的耗时和数量要同步到micrometer里
+ * @author rongdi
+ * @date 2021-05-08
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class ModuleMeterBinderTest {
+
+    @Test
+    public void recordsPhasesAndCountersPerModule() {
+        ModuleMetrics metrics = new ModuleMetrics();
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        new ModuleMeterBinder(metrics).bindTo(registry);
+
+        metrics.record("ext", ModuleMetrics.MAPPER_REFRESH, TimeUnit.MILLISECONDS.toNanos(20));
+        metrics.record("ext", ModuleMetrics.MAPPER_REFRESH, TimeUnit.MILLISECONDS.toNanos(10));
+        metrics.record("other", ModuleMetrics.RELOAD, TimeUnit.MILLISECONDS.toNanos(5));
+        metrics.increment("ext", ModuleMetrics.STATEMENTS_REPLACED, 3);
+        metrics.increment("ext", ModuleMetrics.STATEMENTS_REPLACED, 2);
+
+        FunctionTimer timer = registry.find(ModuleMeterBinder.PHASE_TIMER).tag("module", "ext")
+                .tag("phase", ModuleMetrics.MAPPER_REFRESH).functionTimer();
+        assertNotNull(timer);
+        assertEquals(2, timer.count(), 0.001);
+        assertEquals(30, timer.totalTime(TimeUnit.MILLISECONDS), 0.001);
+        assertEquals(1, registry.find(ModuleMeterBinder.PHASE_TIMER).tag("module", "other").functionTimer().count());
+        assertEquals(5, registry.find(ModuleMeterBinder.COUNTER_PREFIX + ModuleMetrics.STATEMENTS_REPLACED)
+                .tag("module", "ext").functionCounter().count(), 0.001);
+        /**
+         * 同一组标签只注册一次
+         */
+        assertEquals(1, registry.find(ModuleMeterBinder.PHASE_TIMER).tag("module", "ext").functionTimers().size());
+    }
+
+    @Test
+    public void includesRecordingsMadeBeforeBinding() {
+        ModuleMetrics metrics = new ModuleMetrics();
+        metrics.record("ext", ModuleMetrics.RELOAD, TimeUnit.MILLISECONDS.toNanos(40));
+        metrics.increment("ext", ModuleMetrics.CLASSES_DEFINED, 7);
+
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        new ModuleMeterBinder(metrics).bindTo(registry);
+        metrics.record("ext", ModuleMetrics.RELOAD, TimeUnit.MILLISECONDS.toNanos(10));
+
+        FunctionTimer timer = registry.find(ModuleMeterBinder.PHASE_TIMER).tag("phase", ModuleMetrics.RELOAD).functionTimer();
+        assertEquals(2, timer.count(), 0.001);
+        assertEquals(50, timer.totalTime(TimeUnit.MILLISECONDS), 0.001);
+        FunctionCounter counter = registry.find(ModuleMeterBinder.COUNTER_PREFIX + ModuleMetrics.CLASSES_DEFINED).functionCounter();
+        assertEquals(7, counter.count(), 0.001);
+    }
+}
@@ -0,0 +1,73 @@
+package com.rdpaas.dynamic.core;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.URL;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * 旧版本被替换以后到释放之前，它的beanName还要能找到它，请求计数才不会漏
+ * @author rongdi
+ * @date 2021-05-08
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class ModuleRegistryTest {
+
+    private final ModuleRegistry moduleRegistry = new ModuleRegistry(1);
+
+    @AfterEach
+    public void tearDown() {
+        moduleRegistry.shutdown();
+    }
+
+    @Test
+    public void previousVersionKeepsItsBeanNamesUntilReleased() throws Exception {
+        URL url = new URL("file:/tmp/ext-1.0.0.jar");
+        Module v1 = new Module("ext", 1, url);
+        v1.getBeanNames().add("userController@v1");
+        moduleRegistry.register(v1);
+        Module v2 = new Module("ext", 2, url);
+        v2.getBeanNames().add("userController@v2");
+        moduleRegistry.bindBeanName("userController@v2", v2);
+        moduleRegistry.register(v2);
+
+        assertSame(v1, moduleRegistry.findByBeanName("userController@v1"));
+        assertSame(v2, moduleRegistry.findByBeanName("userController@v2"));
+
+        moduleRegistry.unbindBeanNames(v1.getBeanNames(), v1);
+        assertNull(moduleRegistry.findByBeanName("userController@v1"));
+    }
+
+    @Test
+    public void sameBeanNameBelongsToTheNewVersion() throws Exception {
+        URL url = new URL("file:/tmp/ext-1.0.0.jar");
+        Module v1 = new Module("ext", 1, url);
+        v1.getBeanNames().add("userController");
+        moduleRegistry.register(v1);
+        Module v2 = new Module("ext", 2, url);
+        moduleRegistry.bindBeanName("userController", v2);
+
+        /**
+         * 释放旧版本时不能把新版本的删掉
+         */
+        moduleRegistry.unbindBeanNames(Collections.singleton("userController"), v1);
+        assertSame(v2, moduleRegistry.findByBeanName("userController"));
+    }
+
+    @Test
+    public void incrementalVersionTakesOverBeanNames() throws Exception {
+        Module v1 = new Module("ext", 1, new URL("file:/tmp/ext-1.0.0.jar"));
+        v1.getBeanNames().add("userService");
+        v1.getMapperNamespaces().add("com.demo.UserMapper");
+        moduleRegistry.register(v1);
+        Module v2 = Module.next("ext", v1, new URL("file:/tmp/ext-1.0.1.jar"));
+        moduleRegistry.register(v2);
+
+        assertSame(v2, moduleRegistry.findByBeanName("userService"));
+        assertSame(v2, moduleRegistry.findByBeanName("com.demo.UserMapper"));
+    }
+}
@@ -0,0 +1,342 @@
+package com.rdpaas.dynamic.core;
+
+import org.apache.ibatis.datasource.unpooled.UnpooledDataSource;
+import org.apache.ibatis.mapping.Environment;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.apache.ibatis.session.defaults.DefaultSqlSessionFactory;
+import org.apache.ibatis.transaction.jdbc.JdbcTransactionFactory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.asm.AnnotationVisitor;
+import org.springframework.asm.ClassWriter;
+import org.springframework.asm.FieldVisitor;
+import org.springframework.asm.MethodVisitor;
+import org.springframework.asm.Opcodes;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.mock.web.MockServletContext;
+import org.springframework.transaction.annotation.EnableTransactionManagement;
+import org.springframework.util.ReflectionUtils;
+import org.springframework.web.context.support.AnnotationConfigWebApplicationContext;
+import org.springframework.web.servlet.config.annotation.EnableWebMvc;
+import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerMapping;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 隔离模式下反复加载、卸载同一个扩展包，卸载后的类要真的被回收，元空间不能跟着加载次数一直涨。一个只用类加载器，
+ * 一个走ModuleApplication在最小的spring容器里注册和释放带事务代理的service、mapper和controller
+ * @author rongdi
+ * @date 2021-05-08
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class ModuleUnloadTest {
+
+    private final static int CLASSES = 20;
+
+    private final static int WARMUP = 100;
+
+    private final static int RELOADS = 1000;
+
+    /**
+     * 每次加载定义20个类，泄漏的话1000次少说也有几十MB
+     */
+    private final static long MAX_METASPACE_GROWTH = 8 * 1024 * 1024;
+
+    private final static int MODULE_WARMUP = 20;
+
+    private final static int MODULE_RELOADS = 200;
+
+    /**
+     * 每次加载除了扩展包的3个类，还有cglib代理类和mapper的jdk代理类，泄漏的话200次也远超这个数
+     */
+    private final static long MAX_MODULE_METASPACE_GROWTH = 4 * 1024 * 1024;
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    public void reloadingIsolatedModuleKeepsMetaspaceFlat() throws Exception {
+        File jar = writeJar(new File(tempDir, "unload-1.0.0.jar"));
+        for (int i = 0; i < WARMUP; i++) {
+            loadAndUnload(jar);
+        }
+        MemoryPoolMXBean metaspace = getMetaspace();
+        ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+        collect();
+        long metaspaceBefore = metaspace.getUsage().getUsed();
+        long unloadedBefore = classLoading.getUnloadedClassCount();
+
+        for (int i = 0; i < RELOADS; i++) {
+            loadAndUnload(jar);
+        }
+        collect();
+        long metaspaceGrowth = metaspace.getUsage().getUsed() - metaspaceBefore;
+        long unloaded = classLoading.getUnloadedClassCount() - unloadedBefore;
+
+        assertTrue(metaspaceGrowth < MAX_METASPACE_GROWTH, "metaspace grew " + metaspaceGrowth + " bytes after " + RELOADS + " reloads");
+        assertTrue(unloaded >= CLASSES * RELOADS * 9L / 10, "only " + unloaded + " classes unloaded after " + RELOADS + " reloads");
+    }
+
+    @Test
+    public void reloadingThroughModuleApplicationReleasesBeansMappersAndControllers() throws Exception {
+        URL url = writeModuleJar(new File(tempDir, "unload-module-1.0.0.jar")).toURI().toURL();
+        String moduleId = ModuleRegistry.resolveModuleId(url);
+        AnnotationConfigWebApplicationContext applicationContext = new AnnotationConfigWebApplicationContext();
+        applicationContext.setServletContext(new MockServletContext());
+        applicationContext.register(MinimalConfig.class);
+        applicationContext.refresh();
+        ModuleApplication moduleApplication = new ModuleApplication();
+        moduleApplication.setIsolated(true);
+        moduleApplication.setDrainTimeout(0);
+        SqlSessionFactory sqlSessionFactory = new DefaultSqlSessionFactory(new org.apache.ibatis.session.Configuration(
+                new Environment("unload", new JdbcTransactionFactory(), new UnpooledDataSource())));
+        try {
+            for (int i = 0; i < MODULE_WARMUP; i++) {
+                reloadAndUnload(moduleApplication, moduleId, url, applicationContext, sqlSessionFactory);
+            }
+            MemoryPoolMXBean metaspace = getMetaspace();
+            collect();
+            long metaspaceBefore = metaspace.getUsage().getUsed();
+
+            List<WeakReference<ClassLoader>> classLoaders = new ArrayList<>();
+            for (int i = 0; i < MODULE_RELOADS; i++) {
+                classLoaders.add(reloadAndUnload(moduleApplication, moduleId, url, applicationContext, sqlSessionFactory));
+            }
+            collect();
+            long metaspaceGrowth = metaspace.getUsage().getUsed() - metaspaceBefore;
+            long alive = classLoaders.stream().filter(reference -> reference.get() != null).count();
+
+            assertEquals(0, alive, alive + " of " + MODULE_RELOADS + " module class loaders are still reachable");
+            assertTrue(metaspaceGrowth < MAX_MODULE_METASPACE_GROWTH, "metaspace grew " + metaspaceGrowth + " bytes after "
+                    + MODULE_RELOADS + " reloads");
+        } finally {
+            moduleApplication.destroy();
+            applicationContext.close();
+        }
+    }
+
+    /**
+     * 加载扩展包，确认bean、mapper和接口都注册上了，再卸载，确认都没了，返回这次的类加载器的弱引用
+     */
+    private WeakReference<ClassLoader> reloadAndUnload(ModuleApplication moduleApplication, String moduleId, URL url,
+                                                       ConfigurableApplicationContext applicationContext,
+                                                       SqlSessionFactory sqlSessionFactory) throws Exception {
+        moduleApplication.reloadJar(moduleId, url, applicationContext, sqlSessionFactory);
+        Module module = moduleApplication.getModuleRegistry().get(moduleId);
+        WeakReference<ClassLoader> classLoader = new WeakReference<>(module.getClassLoader());
+        module = null;
+
+        Object service = applicationContext.getBean("unloadService");
+        assertTrue(AopUtils.isCglibProxy(service), "unloadService is not a cglib proxy");
+        assertEquals(classLoader.get(), service.getClass().getClassLoader());
+        assertNotNull(applicationContext.getBean("unload.UnloadMapper"));
+        assertTrue(hasMapping(applicationContext, "/unload/hello"));
+        service = null;
+
+        assertTrue(moduleApplication.unloadModule(moduleId, applicationContext, sqlSessionFactory));
+        assertFalse(applicationContext.containsBean("unloadService"));
+        assertFalse(applicationContext.containsBean("unloadController"));
+        assertFalse(applicationContext.containsBean("unload.UnloadMapper"));
+        assertFalse(hasMapping(applicationContext, "/unload/hello"));
+        return classLoader;
+    }
+
+    private static boolean hasMapping(ApplicationContext applicationContext, String pattern) {
+        return applicationContext.getBean(RequestMappingHandlerMapping.class).getHandlerMethods().keySet().stream()
+                .anyMatch(info -> info.getPatternsCondition().getPatterns().contains(pattern));
+    }
+
+    /**
+     * 只有springmvc和事务代理的最小容器，cglib代理让事务代理类生成在扩展包的类加载器里
+     */
+    @Configuration
+    @EnableWebMvc
+    @EnableTransactionManagement(proxyTargetClass = true)
+    static class MinimalConfig {
+    }
+
+    private void loadAndUnload(File jar) throws Exception {
+        ModuleClassLoader classLoader = new ModuleClassLoader(getClass().getClassLoader(), jar.toURI().toURL());
+        classLoader.setIsolated(true);
+        assertEquals(CLASSES, classLoader.load().size());
+        Class<?> clazz = classLoader.loadClass("unload.Generated0");
+        assertEquals(classLoader, clazz.getClassLoader());
+        assertEquals("unload.Generated0", ((Supplier<?>) clazz.getDeclaredConstructor().newInstance()).get());
+        /**
+         * 顺便让spring的反射缓存引用到扩展包的类，卸载时要靠ModuleCacheCleaner清掉
+         */
+        ReflectionUtils.getDeclaredMethods(clazz);
+        ModuleCacheCleaner.clean(classLoader, new DefaultListableBeanFactory(), null, Collections.emptySet());
+        classLoader.close();
+    }
+
+    private static MemoryPoolMXBean getMetaspace() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if ("Metaspace".equals(pool.getName())) {
+                return pool;
+            }
+        }
+        throw new IllegalStateException("no Metaspace memory pool");
+    }
+
+    private static void collect() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * 生成一个扩展包，每个类实现Supplier，返回自己的类名，再带几个方法撑大元数据
+     */
+    private static File writeJar(File file) throws IOException {
+        try (JarOutputStream output = new JarOutputStream(new FileOutputStream(file))) {
+            for (int i = 0; i < CLASSES; i++) {
+                String name = "unload/Generated" + i;
+                output.putNextEntry(new JarEntry(name + ".class"));
+                output.write(generateClass(name));
+                output.closeEntry();
+            }
+        }
+        return file;
+    }
+
+    /**
+     * 生成一个扩展包：mapper接口和它的mapper.xml，注入mapper、带@Transactional的service，注入service的controller
+     */
+    private static File writeModuleJar(File file) throws IOException {
+        try (JarOutputStream output = new JarOutputStream(new FileOutputStream(file))) {
+            output.putNextEntry(new JarEntry("unload/UnloadMapper.class"));
+            output.write(generateMapper());
+            output.closeEntry();
+            output.putNextEntry(new JarEntry("unload/UnloadService.class"));
+            output.write(generateService());
+            output.closeEntry();
+            output.putNextEntry(new JarEntry("unload/UnloadController.class"));
+            output.write(generateController());
+            output.closeEntry();
+            output.putNextEntry(new JarEntry("mapper/UnloadMapper.xml"));
+            output.write(("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                    + "<!DOCTYPE mapper PUBLIC \"-//mybatis.org//DTD Mapper 3.0//EN\" \"http://mybatis.org/dtd/mybatis-3-mapper.dtd\">"
+                    + "<mapper namespace=\"unload.UnloadMapper\"><select id=\"findAll\" resultType=\"map\">select 1</select></mapper>")
+                    .getBytes(StandardCharsets.UTF_8));
+            output.closeEntry();
+        }
+        return file;
+    }
+
+    private static byte[] generateMapper() {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_ABSTRACT | Opcodes.ACC_INTERFACE, "unload/UnloadMapper", null,
+                "java/lang/Object", null);
+        writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_ABSTRACT, "findAll", "()Ljava/util/List;", null, null).visitEnd();
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    private static byte[] generateService() {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, "unload/UnloadService", null, "java/lang/Object", null);
+        writer.visitAnnotation("Lorg/springframework/stereotype/Service;", true).visitEnd();
+        writer.visitAnnotation("Lorg/springframework/transaction/annotation/Transactional;", true).visitEnd();
+        FieldVisitor mapper = writer.visitField(Opcodes.ACC_PRIVATE, "mapper", "Lunload/UnloadMapper;", null, null);
+        mapper.visitAnnotation("Lorg/springframework/beans/factory/annotation/Autowired;", true).visitEnd();
+        mapper.visitEnd();
+        visitConstructor(writer);
+        MethodVisitor findAll = writer.visitMethod(Opcodes.ACC_PUBLIC, "findAll", "()Ljava/util/List;", null, null);
+        findAll.visitCode();
+        findAll.visitVarInsn(Opcodes.ALOAD, 0);
+        findAll.visitFieldInsn(Opcodes.GETFIELD, "unload/UnloadService", "mapper", "Lunload/UnloadMapper;");
+        findAll.visitMethodInsn(Opcodes.INVOKEINTERFACE, "unload/UnloadMapper", "findAll", "()Ljava/util/List;", true);
+        findAll.visitInsn(Opcodes.ARETURN);
+        findAll.visitMaxs(0, 0);
+        findAll.visitEnd();
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    private static byte[] generateController() {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, "unload/UnloadController", null, "java/lang/Object", null);
+        writer.visitAnnotation("Lorg/springframework/web/bind/annotation/RestController;", true).visitEnd();
+        FieldVisitor service = writer.visitField(Opcodes.ACC_PRIVATE, "service", "Lunload/UnloadService;", null, null);
+        service.visitAnnotation("Lorg/springframework/beans/factory/annotation/Autowired;", true).visitEnd();
+        service.visitEnd();
+        visitConstructor(writer);
+        MethodVisitor hello = writer.visitMethod(Opcodes.ACC_PUBLIC, "hello", "()Ljava/lang/String;", null, null);
+        AnnotationVisitor mapping = hello.visitAnnotation("Lorg/springframework/web/bind/annotation/GetMapping;", true);
+        AnnotationVisitor paths = mapping.visitArray("value");
+        paths.visit(null, "/unload/hello");
+        paths.visitEnd();
+        mapping.visitEnd();
+        hello.visitCode();
+        hello.visitLdcInsn("hello");
+        hello.visitInsn(Opcodes.ARETURN);
+        hello.visitMaxs(0, 0);
+        hello.visitEnd();
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    private static void visitConstructor(ClassWriter writer) {
+        MethodVisitor constructor = writer.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        constructor.visitCode();
+        constructor.visitVarInsn(Opcodes.ALOAD, 0);
+        constructor.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        constructor.visitInsn(Opcodes.RETURN);
+        constructor.visitMaxs(0, 0);
+        constructor.visitEnd();
+    }
+
+    private static byte[] generateClass(String internalName) {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, internalName, null, "java/lang/Object",
+                new String[]{"java/util/function/Supplier"});
+        MethodVisitor constructor = writer.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        constructor.visitCode();
+        constructor.visitVarInsn(Opcodes.ALOAD, 0);
+        constructor.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        constructor.visitInsn(Opcodes.RETURN);
+        constructor.visitMaxs(0, 0);
+        constructor.visitEnd();
+        MethodVisitor get = writer.visitMethod(Opcodes.ACC_PUBLIC, "get", "()Ljava/lang/Object;", null, null);
+        get.visitCode();
+        get.visitLdcInsn(internalName.replace('/', '.'));
+        get.visitInsn(Opcodes.ARETURN);
+        get.visitMaxs(0, 0);
+        get.visitEnd();
+        for (int i = 0; i < 10; i++) {
+            MethodVisitor method = writer.visitMethod(Opcodes.ACC_PUBLIC, "method" + i, "()Ljava/lang/String;", null, null);
+            method.visitCode();
+            method.visitLdcInsn(internalName + "#" + i);
+            method.visitInsn(Opcodes.ARETURN);
+            method.visitMaxs(0, 0);
+            method.visitEnd();
+        }
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+}
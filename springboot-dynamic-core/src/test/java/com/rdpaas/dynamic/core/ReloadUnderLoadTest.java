@@ -0,0 +1,307 @@
+package com.rdpaas.dynamic.core;
+
+import org.apache.ibatis.datasource.unpooled.UnpooledDataSource;
+import org.apache.ibatis.mapping.Environment;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.apache.ibatis.session.defaults.DefaultSqlSessionFactory;
+import org.apache.ibatis.transaction.jdbc.JdbcTransactionFactory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.asm.AnnotationVisitor;
+import org.springframework.asm.ClassWriter;
+import org.springframework.asm.FieldVisitor;
+import org.springframework.asm.MethodVisitor;
+import org.springframework.asm.Opcodes;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.servlet.context.AnnotationConfigServletWebServerApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.DispatcherServlet;
+import org.springframework.web.servlet.config.annotation.EnableWebMvc;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * springboot-dynamic-benchmarks里ReloadUnderLoadHarness的单元测试版：起一个内嵌tomcat，几个线程不停请求宿主接口和
+ * 扩展包接口，同时反复刷新扩展包，期间只要有一个请求不是2xx或者抛了异常、有一次刷新失败就算失败。隔离模式下直接替换
+ * 和蓝绿刷新各跑一遍，延迟分布还是用harness看
+ * @author rongdi
+ * @date 2021-05-08
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class ReloadUnderLoadTest {
+
+    private final static int THREADS = 4;
+
+    private final static int RELOADS = 20;
+
+    private final static long INTERVAL = 100;
+
+    private final static long WARMUP = 500;
+
+    /**
+     * 失败信息最多记这么多条，够看出是哪种错误就行
+     */
+    private final static int MAX_FAILURES = 20;
+
+    @TempDir
+    File tempDir;
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    private final Queue<String> failures = new ConcurrentLinkedQueue<>();
+
+    @Test
+    public void isolatedReloadServesEveryRequest() throws Exception {
+        reloadUnderLoad(false);
+    }
+
+    @Test
+    public void blueGreenReloadServesEveryRequest() throws Exception {
+        reloadUnderLoad(true);
+    }
+
+    private void reloadUnderLoad(boolean blueGreen) throws Exception {
+        URL url = writeModuleJar(new File(tempDir, "load-1.0.0.jar")).toURI().toURL();
+        String moduleId = ModuleRegistry.resolveModuleId(url);
+        ModuleApplication moduleApplication = new ModuleApplication();
+        moduleApplication.setIsolated(true);
+        moduleApplication.setBlueGreen(blueGreen);
+        SqlSessionFactory sqlSessionFactory = new DefaultSqlSessionFactory(new org.apache.ibatis.session.Configuration(
+                new Environment("load", new JdbcTransactionFactory(), new UnpooledDataSource())));
+
+        AnnotationConfigServletWebServerApplicationContext applicationContext = new AnnotationConfigServletWebServerApplicationContext();
+        applicationContext.getBeanFactory().registerSingleton("moduleApplication", moduleApplication);
+        applicationContext.register(WebConfig.class, HostController.class);
+        applicationContext.refresh();
+        List<Thread> workers = new ArrayList<>();
+        try {
+            moduleApplication.reloadJar(moduleId, url, applicationContext, sqlSessionFactory);
+            int port = applicationContext.getWebServer().getPort();
+            List<URL> endpoints = Arrays.asList(new URL("http://127.0.0.1:" + port + "/host/ping"),
+                    new URL("http://127.0.0.1:" + port + "/load/hello"));
+            for (int i = 0; i < THREADS; i++) {
+                Thread worker = new Thread(() -> drive(endpoints), "reload-load-" + i);
+                worker.setDaemon(true);
+                worker.start();
+                workers.add(worker);
+            }
+
+            Thread.sleep(WARMUP);
+            for (int i = 1; i <= RELOADS; i++) {
+                Thread.sleep(INTERVAL);
+                try {
+                    moduleApplication.reloadJar(moduleId, url, applicationContext, sqlSessionFactory);
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                    fail("reload " + i + " failed: " + e);
+                }
+            }
+            /**
+             * 最后一次刷新后的旧版本还在后台等着释放，再压一会儿
+             */
+            Thread.sleep(INTERVAL);
+        } finally {
+            workers.forEach(Thread::interrupt);
+            for (Thread worker : workers) {
+                worker.join(TimeUnit.SECONDS.toMillis(10));
+            }
+            applicationContext.close();
+            moduleApplication.destroy();
+        }
+
+        assertTrue(requests.get() > RELOADS * THREADS, "only " + requests.get() + " requests sent");
+        assertTrue(errors.get() == 0, errors.get() + " of " + requests.get() + " requests or reloads failed, blue-green "
+                + blueGreen + ": " + failures);
+    }
+
+    /**
+     * 压测线程轮流请求每个接口，直到被中断
+     */
+    private void drive(List<URL> endpoints) {
+        while (!Thread.currentThread().isInterrupted()) {
+            for (URL endpoint : endpoints) {
+                call(endpoint);
+            }
+        }
+    }
+
+    private void call(URL endpoint) {
+        requests.incrementAndGet();
+        try {
+            HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+            connection.setConnectTimeout(1000);
+            connection.setReadTimeout(10000);
+            int status = connection.getResponseCode();
+            InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (in != null) {
+                try (InputStream body = in) {
+                    byte[] buffer = new byte[1024];
+                    while (body.read(buffer) >= 0) {
+                        // 读完响应才能复用连接
+                    }
+                }
+            }
+            if (status / 100 != 2) {
+                errors.incrementAndGet();
+                fail(endpoint.getPath() + " returned " + status);
+            }
+        } catch (IOException e) {
+            errors.incrementAndGet();
+            fail(endpoint.getPath() + " threw " + e);
+        }
+    }
+
+    private void fail(String failure) {
+        if (failures.size() < MAX_FAILURES) {
+            failures.add(failure);
+        }
+    }
+
+    /**
+     * 只有springmvc的最小web容器，和DynamicConfig一样挂上统计进行中请求的拦截器，旧版本才能等请求处理完再释放
+     */
+    @Configuration
+    @EnableWebMvc
+    static class WebConfig {
+
+        @Bean
+        public TomcatServletWebServerFactory webServerFactory() {
+            return new TomcatServletWebServerFactory(0);
+        }
+
+        @Bean
+        public DispatcherServlet dispatcherServlet() {
+            return new DispatcherServlet();
+        }
+
+        @Bean
+        public WebMvcConfigurer moduleInFlightConfigurer(ModuleApplication moduleApplication) {
+            ModuleInFlightInterceptor interceptor = new ModuleInFlightInterceptor(moduleApplication.getModuleRegistry());
+            return new WebMvcConfigurer() {
+                @Override
+                public void addInterceptors(InterceptorRegistry registry) {
+                    registry.addInterceptor(interceptor);
+                }
+            };
+        }
+    }
+
+    @RestController
+    static class HostController {
+
+        @GetMapping("/host/ping")
+        public String ping() {
+            return "pong";
+        }
+    }
+
+    /**
+     * 生成一个扩展包：mapper接口和它的mapper.xml，一个service，注入service的controller
+     */
+    private static File writeModuleJar(File file) throws IOException {
+        try (JarOutputStream output = new JarOutputStream(new FileOutputStream(file))) {
+            output.putNextEntry(new JarEntry("load/LoadMapper.class"));
+            output.write(generateMapper());
+            output.closeEntry();
+            output.putNextEntry(new JarEntry("load/LoadService.class"));
+            output.write(generateService());
+            output.closeEntry();
+            output.putNextEntry(new JarEntry("load/LoadController.class"));
+            output.write(generateController());
+            output.closeEntry();
+            output.putNextEntry(new JarEntry("mapper/LoadMapper.xml"));
+            output.write(("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                    + "<!DOCTYPE mapper PUBLIC \"-//mybatis.org//DTD Mapper 3.0//EN\" \"http://mybatis.org/dtd/mybatis-3-mapper.dtd\">"
+                    + "<mapper namespace=\"load.LoadMapper\"><select id=\"findAll\" resultType=\"map\">select 1</select></mapper>")
+                    .getBytes(StandardCharsets.UTF_8));
+            output.closeEntry();
+        }
+        return file;
+    }
+
+    private static byte[] generateMapper() {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_ABSTRACT | Opcodes.ACC_INTERFACE, "load/LoadMapper", null,
+                "java/lang/Object", null);
+        writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_ABSTRACT, "findAll", "()Ljava/util/List;", null, null).visitEnd();
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    private static byte[] generateService() {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, "load/LoadService", null, "java/lang/Object", null);
+        writer.visitAnnotation("Lorg/springframework/stereotype/Service;", true).visitEnd();
+        FieldVisitor mapper = writer.visitField(Opcodes.ACC_PRIVATE, "mapper", "Lload/LoadMapper;", null, null);
+        mapper.visitAnnotation("Lorg/springframework/beans/factory/annotation/Autowired;", true).visitEnd();
+        mapper.visitEnd();
+        visitConstructor(writer);
+        MethodVisitor hello = writer.visitMethod(Opcodes.ACC_PUBLIC, "hello", "()Ljava/lang/String;", null, null);
+        hello.visitCode();
+        hello.visitLdcInsn("hello");
+        hello.visitInsn(Opcodes.ARETURN);
+        hello.visitMaxs(0, 0);
+        hello.visitEnd();
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    private static byte[] generateController() {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, "load/LoadController", null, "java/lang/Object", null);
+        writer.visitAnnotation("Lorg/springframework/web/bind/annotation/RestController;", true).visitEnd();
+        FieldVisitor service = writer.visitField(Opcodes.ACC_PRIVATE, "service", "Lload/LoadService;", null, null);
+        service.visitAnnotation("Lorg/springframework/beans/factory/annotation/Autowired;", true).visitEnd();
+        service.visitEnd();
+        visitConstructor(writer);
+        MethodVisitor hello = writer.visitMethod(Opcodes.ACC_PUBLIC, "hello", "()Ljava/lang/String;", null, null);
+        AnnotationVisitor mapping = hello.visitAnnotation("Lorg/springframework/web/bind/annotation/GetMapping;", true);
+        AnnotationVisitor paths = mapping.visitArray("value");
+        paths.visit(null, "/load/hello");
+        paths.visitEnd();
+        mapping.visitEnd();
+        hello.visitCode();
+        hello.visitVarInsn(Opcodes.ALOAD, 0);
+        hello.visitFieldInsn(Opcodes.GETFIELD, "load/LoadController", "service", "Lload/LoadService;");
+        hello.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "load/LoadService", "hello", "()Ljava/lang/String;", false);
+        hello.visitInsn(Opcodes.ARETURN);
+        hello.visitMaxs(0, 0);
+        hello.visitEnd();
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    private static void visitConstructor(ClassWriter writer) {
+        MethodVisitor constructor = writer.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        constructor.visitCode();
+        constructor.visitVarInsn(Opcodes.ALOAD, 0);
+        constructor.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        constructor.visitInsn(Opcodes.RETURN);
+        constructor.visitMaxs(0, 0);
+        constructor.visitEnd();
+    }
+}
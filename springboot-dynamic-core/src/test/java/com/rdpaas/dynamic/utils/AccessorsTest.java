@@ -0,0 +1,83 @@
+package com.rdpaas.dynamic.utils;
+
+import com.rdpaas.dynamic.core.ModuleConfiguration;
+import org.apache.ibatis.builder.xml.XMLMapperBuilder;
+import org.apache.ibatis.builder.xml.XMLMapperEntityResolver;
+import org.apache.ibatis.parsing.XPathParser;
+import org.apache.ibatis.session.Configuration;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.beans.factory.support.RootBeanDefinition;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 隔离模式下不需要defineClass，其它要用到的非公开属性和方法在当前的spring、mybatis版本上都要能解析出来
+ * @author rongdi
+ * @date 2021-05-08
+ * @blog https://www.cnblogs.com/rongdi
+ */
+public class AccessorsTest {
+
+    @Test
+    public void verifyResolvesEverythingIsolatedModeNeeds() {
+        Accessors.verify(false, false);
+
+        assertNotNull(Accessors.OBJENESIS.get());
+        assertTrue(Accessors.DISPOSABLE_BEANS.get(new DefaultListableBeanFactory()) instanceof Map);
+        assertTrue(Accessors.MAPPER_BUILDER.isAvailable());
+    }
+
+    @Test
+    public void mapperBuilderReusesParsedDocument() throws Exception {
+        Configuration configuration = new Configuration();
+        XPathParser parser = new XPathParser("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<!DOCTYPE mapper PUBLIC \"-//mybatis.org//DTD Mapper 3.0//EN\" \"http://mybatis.org/dtd/mybatis-3-mapper.dtd\">"
+                + "<mapper namespace=\"demo\"><select id=\"findAll\" resultType=\"map\">select 1</select></mapper>",
+                true, configuration.getVariables(), new XMLMapperEntityResolver());
+
+        ((XMLMapperBuilder) Accessors.MAPPER_BUILDER.newInstance(parser, configuration, "demo.xml",
+                configuration.getSqlFragments())).parse();
+
+        assertTrue(configuration.hasStatement("demo.findAll"));
+    }
+
+    @Test
+    public void moduleConfigurationCopiesSettingsButNotRegistries() {
+        Configuration configuration = new Configuration();
+        configuration.setMapUnderscoreToCamelCase(true);
+        configuration.getTypeAliasRegistry().registerAlias("demoUser", Object.class);
+
+        ModuleConfiguration moduleConfiguration = new ModuleConfiguration(configuration);
+
+        assertTrue(moduleConfiguration.isMapUnderscoreToCamelCase());
+        assertSame(configuration.getTypeAliasRegistry(), moduleConfiguration.getTypeAliasRegistry());
+        assertSame(configuration.getTypeHandlerRegistry(), moduleConfiguration.getTypeHandlerRegistry());
+        assertNotSame(Accessors.MAPPED_STATEMENTS.get(configuration), Accessors.MAPPED_STATEMENTS.get(moduleConfiguration));
+        assertNotSame(configuration.getMapperRegistry(), moduleConfiguration.getMapperRegistry());
+        /**
+         * 快照：宿主之后改的settings不会带过来
+         */
+        configuration.setMapUnderscoreToCamelCase(false);
+        assertTrue(moduleConfiguration.isMapUnderscoreToCamelCase());
+    }
+
+    @Test
+    public void readFieldFindsInheritedFieldsAndIgnoresMissingOnes() {
+        DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+        beanFactory.registerBeanDefinition("demo", new RootBeanDefinition(Object.class));
+        beanFactory.getMergedBeanDefinition("demo");
+
+        Map<?, ?> merged = (Map<?, ?>) Accessors.readField(beanFactory, "mergedBeanDefinitions");
+        assertTrue(merged.containsKey("demo"));
+        assertSame(merged, Accessors.MERGED_BEAN_DEFINITIONS.get(beanFactory));
+        assertNull(Accessors.readField(beanFactory, "noSuchField"));
+        assertNull(Accessors.readField(null, "mergedBeanDefinitions"));
+    }
+}
@@ -1,8 +1,9 @@
 package com.rdpass.dynamic.demo.controller;
 
+import com.rdpaas.dynamic.config.DynamicConfig;
 import com.rdpaas.dynamic.core.ModuleApplication;
-import com.rdpass.dynamic.demo.service.UserService;
-import com.sun.webkit.network.URLs;
+import com.rdpaas.dynamic.core.ModuleRegistry;
+import com.rdpaas.dynamic.core.ReloadJob;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import org.apache.ibatis.session.SqlSessionFactory;
@@ -16,6 +17,11 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
 @Api(value = "ReloadController", tags = "刷新扩展包Api")
 @RestController
 @RequestMapping("/reload")
@@ -32,13 +38,46 @@ public class ReloadController implements ApplicationContextAware {
 
     private ApplicationContext applicationContext;
 
-    @ApiOperation(nickname = "reload", value = "刷新容器")
+    @ApiOperation(nickname = "reload", value = "刷新容器，不传module则刷新全部扩展包")
     @GetMapping()
-    public String get() throws Exception {
-        moduleApplication.reloadJar(URLs.newURL(dynamicJar),applicationContext,sqlSessionFactory);
+    public String get(@RequestParam(value = "module", required = false) String module) throws Exception {
+        List<URL> urls = DynamicConfig.getDynamicJarUrls(dynamicJar);
+        if (module != null) {
+            urls = urls.stream().filter(url -> module.equals(ModuleRegistry.resolveModuleId(url))).collect(Collectors.toList());
+        }
+        moduleApplication.reloadJars(urls,applicationContext,sqlSessionFactory);
         return "ok";
     }
 
+    @ApiOperation(nickname = "reloadAsync", value = "异步刷新扩展包，马上返回任务，不传module则刷新全部扩展包")
+    @GetMapping("/async")
+    public List<ReloadJob> async(@RequestParam(value = "module", required = false) String module) throws Exception {
+        List<URL> urls = DynamicConfig.getDynamicJarUrls(dynamicJar);
+        if (module != null) {
+            urls = urls.stream().filter(url -> module.equals(ModuleRegistry.resolveModuleId(url))).collect(Collectors.toList());
+        }
+        return urls.stream().map(url -> moduleApplication.submitReload(url, applicationContext, sqlSessionFactory))
+                .collect(Collectors.toList());
+    }
+
+    @ApiOperation(nickname = "job", value = "查询异步刷新任务的进度")
+    @GetMapping("/job")
+    public ReloadJob job(@RequestParam("id") String id) {
+        return moduleApplication.getReloadJob(id);
+    }
+
+    @ApiOperation(nickname = "metrics", value = "刷新每个阶段的耗时和数量，按扩展包分组")
+    @GetMapping("/metrics")
+    public Map<String, Object> metrics() {
+        return moduleApplication.getMetrics().snapshot();
+    }
+
+    @ApiOperation(nickname = "unload", value = "卸载扩展包")
+    @GetMapping("/unload")
+    public String unload(@RequestParam("module") String module) throws Exception {
+        return moduleApplication.unloadModule(module,applicationContext,sqlSessionFactory) ? "ok" : "not found";
+    }
+
     @Override
     public void setApplicationContext(ApplicationContext applicationContext) throws BeansException {
         this.applicationContext = applicationContext;
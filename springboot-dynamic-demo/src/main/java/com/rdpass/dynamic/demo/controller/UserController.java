@@ -2,7 +2,6 @@ package com.rdpass.dynamic.demo.controller;
 
 import com.rdpaas.dynamic.core.ModuleApplication;
 import com.rdpass.dynamic.demo.service.UserService;
-import com.sun.webkit.network.URLs;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import org.apache.ibatis.session.SqlSessionFactory;
@@ -0,0 +1,111 @@
+package com.rdpaas.dynamic.plugin;
+
+import com.rdpaas.dynamic.core.ModuleClassLoader;
+import com.rdpaas.dynamic.core.ModuleClassScanner;
+import com.rdpaas.dynamic.core.ModuleIndex;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * 打包前给扩展包生成索引，写到classes目录的META-INF/springboot-dynamic/module-index.json，跟着jar包一起打进去，
+ * 装载扩展包时直接读索引，不用再逐个读字节码判断类型和计算摘要。默认绑定在process-classes阶段，这样jar插件打包时
+ * 索引已经在classes目录里了
+ * @author rongdi
+ * @date 2021-05-08
+ * @blog https://www.cnblogs.com/rongdi
+ */
+@Mojo(name = "index", defaultPhase = LifecyclePhase.PROCESS_CLASSES, requiresDependencyResolution = ResolutionScope.COMPILE,
+        threadSafe = true)
+public class ModuleIndexMojo extends AbstractMojo {
+
+    @Parameter(defaultValue = "${project.build.outputDirectory}", required = true)
+    private File classesDirectory;
+
+    /**
+     * 扩展包外的父类和注解从编译时的classpath里找
+     */
+    @Parameter(defaultValue = "${project.compileClasspathElements}", readonly = true, required = true)
+    private List<String> classpathElements;
+
+    @Parameter(property = "dynamic.index.skip", defaultValue = "false")
+    private boolean skip;
+
+    @Override
+    public void execute() throws MojoExecutionException {
+        if (skip) {
+            getLog().info("skip module index");
+            return;
+        }
+        if (!classesDirectory.isDirectory()) {
+            getLog().info("no classes in " + classesDirectory + ", skip module index");
+            return;
+        }
+        Path root = classesDirectory.toPath();
+        Map<String, byte[]> classBytesMap = new HashMap<>();
+        Map<String, byte[]> xmlBytesMap = new HashMap<>();
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                /**
+                 * 按jar包里的路径判断，和ModuleClassLoader挑选jar包项的规则保持一致
+                 */
+                String name = root.relativize(file).toString().replace(File.separatorChar, '/');
+                if (ModuleClassLoader.isClassEntry(name)) {
+                    String className = name.substring(0, name.length() - ".class".length()).replace('/', '.');
+                    classBytesMap.put(className, Files.readAllBytes(file));
+                } else if (ModuleClassLoader.isXmlEntry(name)) {
+                    xmlBytesMap.put(name, Files.readAllBytes(file));
+                }
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("read " + classesDirectory + " failed", e);
+        }
+
+        ModuleIndex index;
+        try (URLClassLoader classLoader = new URLClassLoader(toUrls(classpathElements), getClass().getClassLoader())) {
+            index = ModuleIndex.build(classBytesMap, xmlBytesMap, new ModuleClassScanner(classBytesMap, classLoader));
+        } catch (IOException e) {
+            throw new MojoExecutionException("build module index failed", e);
+        }
+
+        File indexFile = new File(classesDirectory, ModuleIndex.LOCATION);
+        try {
+            Files.createDirectories(indexFile.getParentFile().toPath());
+            Files.write(indexFile.toPath(), index.toBytes());
+        } catch (IOException e) {
+            throw new MojoExecutionException("write " + indexFile + " failed", e);
+        }
+        long beans = index.getClasses().values().stream()
+                .filter(entry -> entry.getKind() != null && entry.getKind().isBean()).count();
+        long controllers = index.getClasses().values().stream()
+                .filter(entry -> entry.getKind() == ModuleClassScanner.Kind.CONTROLLER).count();
+        getLog().info("module index: " + classBytesMap.size() + " classes, " + beans + " beans, " + controllers
+                + " controllers, " + xmlBytesMap.size() + " mapper xmls -> " + indexFile);
+    }
+
+    private URL[] toUrls(List<String> elements) throws MojoExecutionException {
+        URL[] urls = new URL[elements.size()];
+        for (int i = 0; i < urls.length; i++) {
+            try {
+                urls[i] = new File(elements.get(i)).toURI().toURL();
+            } catch (IOException e) {
+                throw new MojoExecutionException("invalid classpath element " + elements.get(i), e);
+            }
+        }
+        return urls;
+    }
+}